@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.collect;
+
+/**
+ * A Bloom filter for `long` values, which confines all probes for a given
+ * value to a single 512-bit block (the size of a typical cache line), so a
+ * lookup touches only one line of memory. This makes it much cheaper to
+ * probe than a hash set, at the cost of a slightly higher false-positive
+ * rate than a classic Bloom filter of the same size.
+ *
+ * The filter is not threadsafe while values are being added, but can
+ * be queried concurrently once it has been built (and safely published).
+ */
+public class BlockedBloomFilter
+{
+    private final long[] words;
+    private final int blockMask;
+
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int HASH_COUNT = 6;
+    private static final int MAX_BLOCKS = 1 << 24;     // 1 GB
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param expectedCount     the number of values that will be added
+     * @param bitsPerValue      the number of bits to reserve per value
+     *                          (10 to 16 are reasonable choices; a higher
+     *                          number means fewer false positives)
+     */
+    public BlockedBloomFilter(long expectedCount, int bitsPerValue)
+    {
+        long blocksNeeded = (expectedCount * bitsPerValue + 511) / 512;
+        int blockCount = 1;
+        while(blockCount < blocksNeeded && blockCount < MAX_BLOCKS) blockCount <<= 1;
+        words = new long[blockCount * WORDS_PER_BLOCK];
+        blockMask = blockCount - 1;
+    }
+
+    private static long mix(long v)
+    {
+        // finalizer of MurmurHash3
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    public void add(long v)
+    {
+        long h = mix(v);
+        int block = ((int)(h >>> 32) & blockMask) * WORDS_PER_BLOCK;
+        long bits = mix(h);
+        for(int i=0; i<HASH_COUNT; i++)
+        {
+            int bit = (int)bits & 511;
+            words[block + (bit >>> 6)] |= 1L << bit;
+            bits >>>= 9;
+        }
+    }
+
+    /**
+     * Checks whether the filter may contain the given value.
+     *
+     * @return false if the value has definitely not been added
+     *   to the filter
+     */
+    public boolean mightContain(long v)
+    {
+        long h = mix(v);
+        int block = ((int)(h >>> 32) & blockMask) * WORDS_PER_BLOCK;
+        long bits = mix(h);
+        for(int i=0; i<HASH_COUNT; i++)
+        {
+            int bit = (int)bits & 511;
+            if((words[block + (bit >>> 6)] & (1L << bit)) == 0) return false;
+            bits >>>= 9;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.collect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A growable block of off-heap memory to which primitive values and byte
+ * sequences can be appended. Each `put` method returns the position at which
+ * the value was written, so callers can use positions as compact references
+ * instead of holding on to objects. Values are stored in little-endian order;
+ * variable-length integers use the same encoding as Protocol Buffers.
+ *
+ * An arena is limited to 2 GB. It is not threadsafe while being written to,
+ * but concurrent reads are safe once writing has finished.
+ */
+public class OffHeapArena
+{
+    private ByteBuffer buf;
+    private int pos;
+
+    public OffHeapArena(int initialCapacity)
+    {
+        buf = allocate(Math.max(initialCapacity, 64));
+    }
+
+    private static ByteBuffer allocate(int capacity)
+    {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the underlying buffer. The buffer is replaced whenever the arena
+     * grows, so the returned reference must not be retained across writes.
+     */
+    public ByteBuffer buffer()
+    {
+        return buf;
+    }
+
+    public int size()
+    {
+        return pos;
+    }
+
+    public int capacity()
+    {
+        return buf.capacity();
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        long required = (long)pos + extra;
+        int capacity = buf.capacity();
+        if(required <= capacity) return;
+        if(required > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Arena exceeds 2 GB");
+        }
+        long newCapacity = Math.min(
+            Math.max((long)capacity * 2, required), Integer.MAX_VALUE);
+        ByteBuffer newBuf = allocate((int)newCapacity);
+        newBuf.put(0, buf, 0, pos);
+        buf = newBuf;
+    }
+
+    public int putByte(int v)
+    {
+        ensureCapacity(1);
+        int p = pos;
+        buf.put(p, (byte)v);
+        pos = p + 1;
+        return p;
+    }
+
+    public int putInt(int v)
+    {
+        ensureCapacity(4);
+        int p = pos;
+        buf.putInt(p, v);
+        pos = p + 4;
+        return p;
+    }
+
+    public int putLong(long v)
+    {
+        ensureCapacity(8);
+        int p = pos;
+        buf.putLong(p, v);
+        pos = p + 8;
+        return p;
+    }
+
+    public int putVarint(long v)
+    {
+        ensureCapacity(10);
+        int start = pos;
+        int p = start;
+        while((v & ~0x7fL) != 0)
+        {
+            buf.put(p++, (byte)((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put(p++, (byte)v);
+        pos = p;
+        return start;
+    }
+
+    public int putSignedVarint(long v)
+    {
+        return putVarint((v << 1) ^ (v >> 63));
+    }
+
+    public int putBytes(byte[] b, int ofs, int len)
+    {
+        ensureCapacity(len);
+        int p = pos;
+        buf.put(p, b, ofs, len);
+        pos = p + len;
+        return p;
+    }
+
+    public int getInt(int p)
+    {
+        return buf.getInt(p);
+    }
+
+    public long getLong(int p)
+    {
+        return buf.getLong(p);
+    }
+
+    public void putLong(int p, long v)
+    {
+        buf.putLong(p, v);
+    }
+
+    /**
+     * Discards everything past position `p`.
+     */
+    public void truncate(int p)
+    {
+        assert p >= 0 && p <= pos;
+        pos = p;
+    }
+
+    public void clear()
+    {
+        pos = 0;
+    }
+
+    /**
+     * Shrinks the arena's capacity to its current size. Call this once
+     * writing has finished to return unused memory.
+     */
+    public void trim()
+    {
+        if(buf.capacity() - pos < 4096) return;
+        ByteBuffer newBuf = allocate(Math.max(pos, 64));
+        newBuf.put(0, buf, 0, pos);
+        buf = newBuf;
+    }
+}
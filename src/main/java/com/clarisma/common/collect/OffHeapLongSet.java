@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.collect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable set of non-negative `long` values, stored off-heap as a
+ * sorted array (8 bytes per value). Lookups use binary search.
+ * Safe for concurrent reads.
+ */
+public class OffHeapLongSet
+{
+    private final ByteBuffer buf;
+    private final int size;
+
+    /**
+     * Creates a set from the values written to an arena (as a sequence of
+     * 8-byte values). The arena's memory is taken over by the set, and the
+     * arena must no longer be used.
+     *
+     * @param values    an arena containing the values (in any order, may
+     *                  contain duplicates)
+     */
+    public OffHeapLongSet(OffHeapArena values)
+    {
+        int count = values.size() / 8;
+        ByteBuffer buf = values.buffer();
+        if(count > 1)
+        {
+            ByteBuffer scratch = ByteBuffer.allocateDirect(count * 8).order(buf.order());
+            RadixSort.sort(buf, count, 8, scratch);
+            int n = 1;
+            long prev = buf.getLong(0);
+            for(int i=1; i<count; i++)
+            {
+                long v = buf.getLong(i * 8);
+                if(v != prev)
+                {
+                    buf.putLong(n * 8, v);
+                    n++;
+                    prev = v;
+                }
+            }
+            values.truncate(n * 8);
+            count = n;
+        }
+        values.trim();
+        this.buf = values.buffer();
+        this.size = count;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long get(int i)
+    {
+        return buf.getLong(i * 8);
+    }
+
+    /**
+     * Returns the index of the given value, or -1 if the set does not
+     * contain it.
+     */
+    public int indexOf(long v)
+    {
+        int lo = 0;
+        int hi = size - 1;
+        while(lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            long midValue = buf.getLong(mid * 8);
+            if(midValue < v)
+            {
+                lo = mid + 1;
+            }
+            else if(midValue > v)
+            {
+                hi = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(long v)
+    {
+        return indexOf(v) >= 0;
+    }
+
+    /**
+     * Checks whether the set contains any value in the range `min` to
+     * `max` (inclusive).
+     */
+    public boolean containsAnyInRange(long min, long max)
+    {
+        int lo = 0;
+        int hi = size;
+        while(lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(buf.getLong(mid * 8) < min)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo < size && buf.getLong(lo * 8) <= max;
+    }
+
+    /**
+     * Returns the number of bytes of off-heap memory used by this set.
+     */
+    public long memoryUsed()
+    {
+        return buf.capacity();
+    }
+}
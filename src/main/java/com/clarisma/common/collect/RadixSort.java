@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.collect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LSD radix sort for 64-bit keys, 8 bits per pass. Keys are treated as
+ * unsigned. Passes in which all keys share the same byte are skipped, which
+ * means that sorting IDs of typical magnitude (< 2^40) takes 5 passes rather
+ * than 8. The sort is stable.
+ */
+public class RadixSort
+{
+    /**
+     * Sorts fixed-size records stored in a buffer, in ascending order of
+     * the 64-bit key at the start of each record.
+     *
+     * @param buf           the buffer containing the records (starting at 0)
+     * @param count         the number of records
+     * @param recordSize    the size of each record (must be a multiple of 8)
+     * @param scratch       a buffer of at least `count * recordSize` bytes,
+     *                      with the same byte order as `buf`, used as
+     *                      temporary storage
+     */
+    public static void sort(ByteBuffer buf, int count, int recordSize, ByteBuffer scratch)
+    {
+        assert recordSize % 8 == 0;
+        assert buf.order() == scratch.order();
+        if(count < 2) return;
+        ByteBuffer src = buf;
+        ByteBuffer dest = scratch;
+        int[] counts = new int[256];
+        for(int shift=0; shift<64; shift+=8)
+        {
+            if(!countBytes(src, count, recordSize, shift, counts)) continue;
+            int p = 0;
+            for(int i=0; i<count; i++)
+            {
+                long key = src.getLong(p);
+                int bucket = (int)(key >>> shift) & 0xff;
+                int q = counts[bucket]++ * recordSize;
+                for(int n=0; n<recordSize; n+=8) dest.putLong(q+n, src.getLong(p+n));
+                p += recordSize;
+            }
+            ByteBuffer swap = src;
+            src = dest;
+            dest = swap;
+        }
+        if(src != buf) buf.put(0, src, 0, count * recordSize);
+    }
+
+    /**
+     * Sorts the first `count` values of an array in ascending (unsigned)
+     * order.
+     *
+     * @param a         the array to sort
+     * @param count     the number of values to sort
+     */
+    public static void sort(long[] a, int count)
+    {
+        if(count < 2) return;
+        long[] src = a;
+        long[] dest = new long[count];
+        int[] counts = new int[256];
+        for(int shift=0; shift<64; shift+=8)
+        {
+            Arrays.fill(counts, 0);
+            for(int i=0; i<count; i++) counts[(int)(src[i] >>> shift) & 0xff]++;
+            if(counts[(int)(src[0] >>> shift) & 0xff] == count) continue;
+            int total = 0;
+            for(int i=0; i<256; i++)
+            {
+                int c = counts[i];
+                counts[i] = total;
+                total += c;
+            }
+            for(int i=0; i<count; i++)
+            {
+                long v = src[i];
+                dest[counts[(int)(v >>> shift) & 0xff]++] = v;
+            }
+            long[] swap = src;
+            src = dest;
+            dest = swap;
+        }
+        if(src != a) System.arraycopy(src, 0, a, 0, count);
+    }
+
+    /**
+     * Counts the keys per bucket and turns the counts into starting
+     * positions.
+     *
+     * @return false if all keys fall into the same bucket (in which case
+     *   this pass can be skipped)
+     */
+    private static boolean countBytes(ByteBuffer buf, int count, int recordSize,
+        int shift, int[] counts)
+    {
+        Arrays.fill(counts, 0);
+        int p = 0;
+        for(int i=0; i<count; i++)
+        {
+            counts[(int)(buf.getLong(p) >>> shift) & 0xff]++;
+            p += recordSize;
+        }
+        if(counts[(int)(buf.getLong(0) >>> shift) & 0xff] == count) return false;
+        int total = 0;
+        for(int i=0; i<256; i++)
+        {
+            int c = counts[i];
+            counts[i] = total;
+            total += c;
+        }
+        return true;
+    }
+}
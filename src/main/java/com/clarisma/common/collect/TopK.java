@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.collect;
+
+import java.util.*;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Finds the most frequent items of a stream, using a bounded amount of
+ * memory (the "Frequent Items" sketch of Misra and Gries, in the mergeable
+ * form described by Agarwal et al.).
+ *
+ * At most `2 * k` items are tracked. Whenever this limit is exceeded,
+ * the weight of the (k+1)-th heaviest item is subtracted from all items,
+ * and items whose weight drops to zero or below are dropped. The reported
+ * weights are therefore underestimates, by at most
+ * {@link #maxError()}; any item whose true weight exceeds
+ * `totalWeight / (k + 1)` is guaranteed to be reported.
+ *
+ * Not threadsafe.
+ *
+ * @param <T> the type of the items
+ */
+public class TopK<T>
+{
+    private final int k;
+    private final Map<T, double[]> items = new HashMap<>();
+    private double totalWeight;
+    private double maxError;
+
+    public TopK(int k)
+    {
+        if(k < 1) throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+    }
+
+    public void add(T item, double weight)
+    {
+        totalWeight += weight;
+        double[] w = items.get(item);
+        if(w != null)
+        {
+            w[0] += weight;
+            return;
+        }
+        items.put(item, new double[] { weight });
+        if(items.size() > 2 * k) prune();
+    }
+
+    public void merge(TopK<T> other)
+    {
+        totalWeight += other.totalWeight;
+        maxError += other.maxError;
+        for(Map.Entry<T, double[]> e: other.items.entrySet())
+        {
+            double[] w = items.get(e.getKey());
+            if(w != null)
+            {
+                w[0] += e.getValue()[0];
+            }
+            else
+            {
+                items.put(e.getKey(), new double[] { e.getValue()[0] });
+            }
+        }
+        if(items.size() > k) prune();
+    }
+
+    /**
+     * Reduces the number of items to at most k.
+     */
+    private void prune()
+    {
+        double[] weights = new double[items.size()];
+        int n = 0;
+        for(double[] w: items.values()) weights[n++] = w[0];
+        Arrays.sort(weights);
+        double cut = weights[weights.length - k - 1];
+        maxError += cut;
+        Iterator<double[]> iter = items.values().iterator();
+        while(iter.hasNext())
+        {
+            double[] w = iter.next();
+            w[0] -= cut;
+            if(w[0] <= 0) iter.remove();
+        }
+    }
+
+    /**
+     * Returns the total weight of all items that have been added.
+     */
+    public double totalWeight()
+    {
+        return totalWeight;
+    }
+
+    /**
+     * Returns the maximum amount by which the weight of an item may
+     * have been underestimated.
+     */
+    public double maxError()
+    {
+        return maxError;
+    }
+
+    /**
+     * Calls the given consumer for the (up to) k heaviest items, in order
+     * of descending weight.
+     */
+    public void forEach(ObjDoubleConsumer<T> consumer)
+    {
+        List<Map.Entry<T, double[]>> list = new ArrayList<>(items.entrySet());
+        list.sort((a, b) -> Double.compare(b.getValue()[0], a.getValue()[0]));
+        int count = Math.min(k, list.size());
+        for(int i=0; i<count; i++)
+        {
+            Map.Entry<T, double[]> e = list.get(i);
+            consumer.accept(e.getKey(), e.getValue()[0]);
+        }
+    }
+}
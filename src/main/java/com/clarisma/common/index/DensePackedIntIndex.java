@@ -45,6 +45,21 @@ public class DensePackedIntIndex extends MappedFile implements IntIndex
 			>>> bitShift) & mask;
 	}
 	
+	@Override public void prefetch(long fromKey, long toKey)
+	{
+		long start = fromKey / slotsPerBlock * BLOCK_SIZE;
+		long end = (toKey / slotsPerBlock + 1) * BLOCK_SIZE;
+		try
+		{
+			load(start, end);
+		}
+		catch(IOException ex)
+		{
+			// Prefetching is merely a hint; if it fails, the
+			// actual lookup will report the problem
+		}
+	}
+
 	public void put(long key, int value) throws IOException
 	{
 		assert (value & mask) == value; 
@@ -13,4 +13,18 @@ public interface IntIndex
 {
 	int get(long key) throws IOException;
 	void put(long key, int value) throws IOException;
+
+	/**
+	 * Hints that the entries for the given range of keys will be read
+	 * soon. Implementations backed by a file may use this to read the
+	 * corresponding part of the file sequentially, rather than faulting
+	 * in its pages one by one. The default implementation does nothing.
+	 *
+	 * @param fromKey	the first key
+	 * @param toKey		the last key (inclusive)
+	 */
+	default void prefetch(long fromKey, long toKey)
+	{
+		// do nothing
+	}
 }
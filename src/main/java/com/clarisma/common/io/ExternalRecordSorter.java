@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.io;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts an arbitrary number of variable-length records by a key that
+ * consists of a group and an ID, using a bounded amount of memory.
+ * Records are collected in memory; whenever their total size exceeds
+ * the limit, they are sorted and written to a temporary file (a "run").
+ * {@link #merge(RecordHandler)} then merges the runs, and passes each
+ * record to a handler, in key order. Records with the same key are passed
+ * only once (the first record added for a key wins, if the key is added
+ * multiple times within the same run).
+ *
+ * Not threadsafe.
+ */
+public class ExternalRecordSorter implements Closeable
+{
+    private final Path tempDir;
+    private final long maxMemory;
+    private final List<Record> records = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private long memoryUsed;
+
+    /**
+     * The approximate per-record overhead (object header, fields
+     * and array header) that counts against the memory limit
+     */
+    private static final int RECORD_OVERHEAD = 48;
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+    private static final Comparator<Record> KEY_ORDER =
+        Comparator.comparingInt((Record r) -> r.group).thenComparingLong(r -> r.id);
+
+    public interface RecordHandler
+    {
+        void record(int group, long id, byte[] data, int len) throws IOException;
+    }
+
+    private static class Record
+    {
+        final int group;
+        final long id;
+        final byte[] data;
+
+        Record(int group, long id, byte[] data)
+        {
+            this.group = group;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param tempDir       the folder for run files (or `null` to use
+     *                      the default temporary-file directory)
+     * @param maxMemory     the approximate number of bytes of records to
+     *                      keep in memory before spilling them to disk
+     */
+    public ExternalRecordSorter(Path tempDir, long maxMemory)
+    {
+        this.tempDir = tempDir;
+        this.maxMemory = maxMemory;
+    }
+
+    public void add(int group, long id, byte[] data) throws IOException
+    {
+        records.add(new Record(group, id, data));
+        memoryUsed += data.length + RECORD_OVERHEAD;
+        if(memoryUsed > maxMemory) spill();
+    }
+
+    private void spill() throws IOException
+    {
+        records.sort(KEY_ORDER);    // stable, so first record wins
+        Path path = tempDir != null ?
+            Files.createTempFile(tempDir, "run-", ".tmp") :
+            Files.createTempFile("run-", ".tmp");
+        runs.add(path);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(path), RUN_BUFFER_SIZE)))
+        {
+            for(Record r: records)
+            {
+                out.writeInt(r.group);
+                out.writeLong(r.id);
+                out.writeInt(r.data.length);
+                out.write(r.data);
+            }
+        }
+        records.clear();
+        memoryUsed = 0;
+    }
+
+    private static class RunReader
+    {
+        final DataInputStream in;
+        final int run;
+        int group;
+        long id;
+        byte[] data = new byte[256];
+        int len;
+
+        RunReader(Path path, int run) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path), RUN_BUFFER_SIZE));
+            this.run = run;
+        }
+
+        boolean next() throws IOException
+        {
+            try
+            {
+                group = in.readInt();
+            }
+            catch(EOFException ex)
+            {
+                return false;
+            }
+            id = in.readLong();
+            len = in.readInt();
+            if(len > data.length) data = new byte[Math.max(len, data.length * 2)];
+            in.readFully(data, 0, len);
+            return true;
+        }
+    }
+
+    /**
+     * Passes all records to the given handler, in key order, skipping
+     * records whose key has already been seen.
+     */
+    public void merge(RecordHandler handler) throws IOException
+    {
+        merge(handler, Long.MAX_VALUE);
+    }
+
+    /**
+     * Passes the first `maxRecords` records to the given handler, in key
+     * order, skipping records whose key has already been seen. The
+     * remaining records are not read.
+     */
+    public void merge(RecordHandler handler, long maxRecords) throws IOException
+    {
+        long count = 0;
+        if(runs.isEmpty())
+        {
+            // Everything fits into memory
+            records.sort(KEY_ORDER);
+            Record prev = null;
+            for(Record r: records)
+            {
+                if(count == maxRecords) break;
+                if(prev == null || r.group != prev.group || r.id != prev.id)
+                {
+                    handler.record(r.group, r.id, r.data, r.data.length);
+                    count++;
+                }
+                prev = r;
+            }
+            records.clear();
+            return;
+        }
+        if(!records.isEmpty()) spill();
+
+        // Ties are broken by run number, so the record from the earliest
+        // run wins
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(
+            Comparator.comparingInt((RunReader r) -> r.group)
+                .thenComparingLong(r -> r.id)
+                .thenComparingInt(r -> r.run));
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        try
+        {
+            for(int i=0; i<runs.size(); i++)
+            {
+                RunReader reader = new RunReader(runs.get(i), i);
+                readers.add(reader);
+                if(reader.next()) queue.add(reader);
+            }
+            boolean first = true;
+            int prevGroup = 0;
+            long prevId = 0;
+            while(!queue.isEmpty() && count < maxRecords)
+            {
+                RunReader reader = queue.poll();
+                if(first || reader.group != prevGroup || reader.id != prevId)
+                {
+                    handler.record(reader.group, reader.id, reader.data, reader.len);
+                    count++;
+                    prevGroup = reader.group;
+                    prevId = reader.id;
+                    first = false;
+                }
+                if(reader.next()) queue.add(reader);
+            }
+        }
+        finally
+        {
+            for(RunReader reader: readers) reader.in.close();
+        }
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    @Override public void close() throws IOException
+    {
+        for(Path path: runs) Files.deleteIfExists(path);
+        runs.clear();
+        records.clear();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal builder for FlatBuffers (https://flatbuffers.dev), sufficient
+ * to write formats with a fixed schema without pulling in the FlatBuffers
+ * runtime. Works like the official builder: the buffer is filled from the
+ * back, so children (strings, vectors, tables) must be created before the
+ * table that references them, and tables cannot be nested while they are
+ * being built. Offsets returned by the `create`/`end` methods are
+ * measured from the end of the buffer. Vtables are not deduplicated.
+ */
+public class FlatBufferBuilder
+{
+    private byte[] buf;
+    private int space;
+    private int minAlign = 1;
+    private int[] vtable;
+    private int objectStart;
+    private int vectorLength;
+
+    public FlatBufferBuilder(int initialCapacity)
+    {
+        buf = new byte[Math.max(initialCapacity, 64)];
+        space = buf.length;
+    }
+
+    public void clear()
+    {
+        space = buf.length;
+        minAlign = 1;
+        vtable = null;
+    }
+
+    public int offset()
+    {
+        return buf.length - space;
+    }
+
+    private void grow(int needed)
+    {
+        int used = offset();
+        int newCapacity = buf.length * 2;
+        while(newCapacity - used < needed) newCapacity *= 2;
+        byte[] newBuf = new byte[newCapacity];
+        System.arraycopy(buf, space, newBuf, newCapacity - used, used);
+        space = newCapacity - used;
+        buf = newBuf;
+    }
+
+    private void pad(int n)
+    {
+        for(int i=0; i<n; i++) buf[--space] = 0;
+    }
+
+    /**
+     * Ensures there is room for `additional` bytes followed by a value
+     * of `size` bytes, and aligns the position so the value will be
+     * aligned on a `size`-byte boundary once the additional bytes have
+     * been written.
+     */
+    private void prep(int size, int additional)
+    {
+        if(size > minAlign) minAlign = size;
+        int alignSize = -(offset() + additional) & (size - 1);
+        int needed = alignSize + size + additional;
+        if(space < needed) grow(needed);
+        pad(alignSize);
+    }
+
+    private void putByte(int v)
+    {
+        buf[--space] = (byte)v;
+    }
+
+    private void putShort(int v)
+    {
+        buf[--space] = (byte)(v >>> 8);
+        buf[--space] = (byte)v;
+    }
+
+    private void putInt(int v)
+    {
+        buf[--space] = (byte)(v >>> 24);
+        buf[--space] = (byte)(v >>> 16);
+        buf[--space] = (byte)(v >>> 8);
+        buf[--space] = (byte)v;
+    }
+
+    private void putLong(long v)
+    {
+        putInt((int)(v >>> 32));
+        putInt((int)v);
+    }
+
+    public void addByte(int v)
+    {
+        prep(1, 0);
+        putByte(v);
+    }
+
+    public void addShort(int v)
+    {
+        prep(2, 0);
+        putShort(v);
+    }
+
+    public void addInt(int v)
+    {
+        prep(4, 0);
+        putInt(v);
+    }
+
+    public void addLong(long v)
+    {
+        prep(8, 0);
+        putLong(v);
+    }
+
+    public void addDouble(double v)
+    {
+        addLong(Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Adds a reference to an object (string, vector or table) that has
+     * already been created.
+     */
+    public void addOffset(int ofs)
+    {
+        prep(4, 0);
+        putInt(offset() - ofs + 4);
+    }
+
+    public void startVector(int elementSize, int count, int alignment)
+    {
+        prep(4, elementSize * count);
+        prep(alignment, elementSize * count);
+        vectorLength = count;
+    }
+
+    public int endVector()
+    {
+        putInt(vectorLength);
+        return offset();
+    }
+
+    public int createString(String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        addByte(0);
+        return createByteVector(bytes, 0, bytes.length);
+    }
+
+    public int createByteVector(byte[] b, int start, int len)
+    {
+        startVector(1, len, 1);
+        space -= len;
+        System.arraycopy(b, start, buf, space, len);
+        return endVector();
+    }
+
+    /**
+     * Creates a vector of references to objects that have already been
+     * created.
+     */
+    public int createOffsetVector(int[] offsets, int count)
+    {
+        startVector(4, count, 4);
+        for(int i=count-1; i>=0; i--) addOffset(offsets[i]);
+        return endVector();
+    }
+
+    public void startTable(int fieldCount)
+    {
+        vtable = new int[fieldCount];
+        objectStart = offset();
+    }
+
+    private void slot(int field)
+    {
+        vtable[field] = offset();
+    }
+
+    public void addByteField(int field, int v, int defaultValue)
+    {
+        if(v == defaultValue) return;
+        addByte(v);
+        slot(field);
+    }
+
+    public void addShortField(int field, int v, int defaultValue)
+    {
+        if(v == defaultValue) return;
+        addShort(v);
+        slot(field);
+    }
+
+    public void addIntField(int field, int v, int defaultValue)
+    {
+        if(v == defaultValue) return;
+        addInt(v);
+        slot(field);
+    }
+
+    public void addLongField(int field, long v, long defaultValue)
+    {
+        if(v == defaultValue) return;
+        addLong(v);
+        slot(field);
+    }
+
+    /**
+     * Adds a reference to an object; does nothing if `ofs` is 0
+     * (which means the field is absent).
+     */
+    public void addOffsetField(int field, int ofs)
+    {
+        if(ofs == 0) return;
+        addOffset(ofs);
+        slot(field);
+    }
+
+    public int endTable()
+    {
+        addInt(0);      // placeholder for the offset of the vtable
+        int objectOffset = offset();
+        int fieldCount = vtable.length;
+        while(fieldCount > 0 && vtable[fieldCount-1] == 0) fieldCount--;
+        for(int i=fieldCount-1; i>=0; i--)
+        {
+            addShort(vtable[i] != 0 ? objectOffset - vtable[i] : 0);
+        }
+        addShort(objectOffset - objectStart);
+        addShort((fieldCount + 2) * 2);
+        int vtableOffset = offset();
+        int p = buf.length - objectOffset;
+        int rel = vtableOffset - objectOffset;
+        buf[p] = (byte)rel;
+        buf[p+1] = (byte)(rel >>> 8);
+        buf[p+2] = (byte)(rel >>> 16);
+        buf[p+3] = (byte)(rel >>> 24);
+        vtable = null;
+        return objectOffset;
+    }
+
+    /**
+     * Completes the buffer, prefixing it with its size (as is common for
+     * streams of FlatBuffers).
+     */
+    public void finishSizePrefixed(int root)
+    {
+        prep(minAlign, 8);
+        addOffset(root);
+        addInt(offset());
+    }
+
+    public int size()
+    {
+        return offset();
+    }
+
+    public void writeTo(OutputStream out) throws IOException
+    {
+        out.write(buf, space, offset());
+    }
+
+    public byte[] toByteArray()
+    {
+        byte[] b = new byte[offset()];
+        System.arraycopy(buf, space, b, 0, b.length);
+        return b;
+    }
+}
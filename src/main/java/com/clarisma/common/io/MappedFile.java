@@ -243,6 +243,27 @@ public class MappedFile
 	}
 	 */
 	
+	/**
+	 * Loads the given range of the file into physical memory, so subsequent
+	 * random reads in this range do not incur page faults. Only the portion
+	 * of the range that lies in the file is loaded.
+	 *
+	 * @param start		the start of the range
+	 * @param end		the end of the range (exclusive)
+	 */
+	protected void load(long start, long end) throws IOException
+	{
+		end = Math.min(end, channel.size());
+		while(start < end)
+		{
+			int n = (int)(start / MAPPING_SIZE);
+			int ofs = (int)(start % MAPPING_SIZE);
+			int len = (int)Math.min(end - start, MAPPING_SIZE - ofs);
+			getMapping(n).slice(ofs, len).load();
+			start += len;
+		}
+	}
+
 	public void close() throws IOException
 	{
 		if(!unmapSegments()) System.err.format("Warning! Failed to unmap %s\n", path);
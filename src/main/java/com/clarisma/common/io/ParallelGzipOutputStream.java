@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that gzip-compresses its data using multiple threads
+ * (in the manner of `pigz`). The data is split into blocks, which are
+ * compressed independently by a pool of workers; each block becomes a
+ * separate gzip member. A gzip file may consist of any number of members,
+ * which decompressors treat as a single stream.
+ *
+ * Multiple streams can share the same pool of workers (see
+ * {@link #newExecutor(int)}).
+ *
+ * Compressed blocks are written to the underlying stream in order, by the
+ * thread that writes to this stream. To bound memory use, the writer waits
+ * for the oldest pending block once twice as many blocks as there are
+ * threads are in flight.
+ *
+ * Since each block starts without a dictionary, the output is slightly
+ * larger than that of single-threaded gzip; the default block size of
+ * 1 MB keeps this overhead small.
+ *
+ * Not threadsafe (the compression itself is done in parallel, but only
+ * one thread may write to the stream).
+ */
+public class ParallelGzipOutputStream extends OutputStream
+{
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int blockSize;
+    private final int maxPending;
+    private final int level;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<byte[]> spareBlocks = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Deflater> deflater;
+    private byte[] block;
+    private int pos;
+    private boolean empty = true;
+    private boolean closed;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final byte[] HEADER =
+    {
+        0x1f, (byte)0x8b,       // magic
+        8,                      // method: deflate
+        0,                      // flags
+        0, 0, 0, 0,             // modification time: none
+        0,                      // extra flags
+        (byte)255               // OS: unknown
+    };
+
+    public ParallelGzipOutputStream(OutputStream out, int threads)
+    {
+        this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level)
+    {
+        this(out, newExecutor(threads), true, threads, blockSize, level);
+    }
+
+    /**
+     * Creates a stream that compresses its blocks using the given executor,
+     * which may be shared with other streams. The executor is not shut
+     * down when the stream is closed.
+     *
+     * @param out       the underlying stream
+     * @param executor  the executor (see {@link #newExecutor(int)})
+     * @param threads   the number of threads of the executor
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int threads)
+    {
+        this(out, executor, false, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private ParallelGzipOutputStream(OutputStream out, ExecutorService executor,
+        boolean ownsExecutor, int threads, int blockSize, int level)
+    {
+        if(threads < 1) throw new IllegalArgumentException("Must use at least 1 thread");
+        this.out = out;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.blockSize = blockSize;
+        this.level = level;
+        maxPending = threads * 2;
+        deflater = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+        block = new byte[blockSize];
+    }
+
+    /**
+     * Creates a pool of worker threads that can be shared by
+     * multiple streams.
+     */
+    public static ExecutorService newExecutor(int threads)
+    {
+        if(threads < 1) throw new IllegalArgumentException("Must use at least 1 thread");
+        return Executors.newFixedThreadPool(threads, r ->
+        {
+            Thread t = new Thread(r, "gzip");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override public void write(int b) throws IOException
+    {
+        if(pos == blockSize) submitBlock();
+        block[pos++] = (byte)b;
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException
+    {
+        while(len > 0)
+        {
+            if(pos == blockSize) submitBlock();
+            int n = Math.min(len, blockSize - pos);
+            System.arraycopy(b, off, block, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void submitBlock() throws IOException
+    {
+        if(closed) throw new IOException("Stream closed");
+        while(pending.size() >= maxPending) writeNext();
+        byte[] data = block;
+        int len = pos;
+        pending.add(executor.submit(() -> compress(data, len)));
+        empty = false;
+        block = spareBlocks.poll();
+        if(block == null) block = new byte[blockSize];
+        pos = 0;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream buf, int v)
+    {
+        buf.write(v);
+        buf.write(v >>> 8);
+        buf.write(v >>> 16);
+        buf.write(v >>> 24);
+    }
+
+    /**
+     * Compresses a block into a complete gzip member.
+     */
+    private byte[] compress(byte[] data, int len)
+    {
+        Deflater def = deflater.get();
+        def.reset();
+        def.setInput(data, 0, len);
+        def.finish();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, len);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(len / 3 + 64);
+        buf.write(HEADER, 0, HEADER.length);
+        byte[] chunk = new byte[64 * 1024];
+        while(!def.finished())
+        {
+            int n = def.deflate(chunk);
+            buf.write(chunk, 0, n);
+        }
+        writeIntLE(buf, (int)crc.getValue());
+        writeIntLE(buf, len);
+        spareBlocks.add(data);
+        return buf.toByteArray();
+    }
+
+    /**
+     * Waits until the oldest pending block has been compressed, and
+     * writes it to the underlying stream.
+     */
+    private void writeNext() throws IOException
+    {
+        Future<byte[]> f = pending.remove();
+        byte[] compressed;
+        try
+        {
+            compressed = f.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", ex);
+        }
+        catch(ExecutionException ex)
+        {
+            throw new IOException("Compression failed", ex.getCause());
+        }
+        out.write(compressed);
+    }
+
+    /**
+     * Compresses and writes all data that has been written so far. Since
+     * each flush ends a gzip member, frequent flushing reduces the
+     * compression ratio.
+     */
+    @Override public void flush() throws IOException
+    {
+        if(pos > 0) submitBlock();
+        while(!pending.isEmpty()) writeNext();
+        out.flush();
+    }
+
+    @Override public void close() throws IOException
+    {
+        if(closed) return;
+        try
+        {
+            // An empty stream still needs one member to be a valid gzip file
+            if(pos > 0 || empty) submitBlock();
+            while(!pending.isEmpty()) writeNext();
+        }
+        finally
+        {
+            closed = true;
+            if(ownsExecutor) executor.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A buffered sink for text, which encodes characters as UTF-8 and writes
+ * the bytes to a channel or output stream. Unlike a `PrintStream`, the
+ * sink is not synchronized and does not go through a `CharsetEncoder`;
+ * ASCII characters (the vast majority of output) are copied straight into
+ * the buffer, and numbers are formatted without creating strings.
+ * Buffers are pooled, so short-lived sinks are cheap to create.
+ *
+ * A sink must only be used by a single thread. I/O errors are reported as
+ * `UncheckedIOException`. A lone surrogate (including a surrogate pair that
+ * is split across two calls to `print(char)`) is written as `?`.
+ */
+public class Utf8Sink extends OutputStream implements Appendable
+{
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private byte[] buf;
+    private int pos;
+    private long bytesFlushed;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final int MAX_FIXED_LENGTH = 40;
+    private static final long[] POWERS_OF_TEN =
+    {
+        1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+        100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L,
+        1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+        1_000_000_000_000_000L
+    };
+
+    public Utf8Sink(OutputStream out)
+    {
+        this.out = out;
+        this.channel = null;
+        buf = acquireBuffer();
+    }
+
+    public Utf8Sink(WritableByteChannel channel)
+    {
+        this.out = null;
+        this.channel = channel;
+        buf = acquireBuffer();
+    }
+
+    private static byte[] acquireBuffer()
+    {
+        byte[] b = pool.poll();
+        return b != null ? b : new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(byte[] b)
+    {
+        // The size check is racy, but it doesn't matter if the pool
+        // holds a few more buffers than intended
+        if(pool.size() < MAX_POOLED_BUFFERS) pool.add(b);
+    }
+
+    private void flushBuffer()
+    {
+        if(pos == 0) return;
+        try
+        {
+            if(channel != null)
+            {
+                ByteBuffer b = ByteBuffer.wrap(buf, 0, pos);
+                while(b.hasRemaining()) channel.write(b);
+            }
+            else
+            {
+                out.write(buf, 0, pos);
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        bytesFlushed += pos;
+        pos = 0;
+    }
+
+    /**
+     * Returns the number of bytes that have been written to this sink
+     * (including bytes that are still buffered).
+     */
+    public long bytesWritten()
+    {
+        return bytesFlushed + pos;
+    }
+
+    @Override public void write(int b)
+    {
+        if(pos == buf.length) flushBuffer();
+        buf[pos++] = (byte)b;
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+    {
+        if(len > buf.length - pos)
+        {
+            flushBuffer();
+            if(len >= buf.length)
+            {
+                // Large arrays bypass the buffer
+                try
+                {
+                    if(channel != null)
+                    {
+                        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                        while(bb.hasRemaining()) channel.write(bb);
+                    }
+                    else
+                    {
+                        out.write(b, off, len);
+                    }
+                    bytesFlushed += len;
+                }
+                catch(IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    /**
+     * Encodes a non-ASCII character (the buffer must have room for at
+     * least 4 bytes).
+     *
+     * @param s     the characters
+     * @param ch    the character at index `i`
+     * @param i     the index of the character
+     * @param end   the end of the characters
+     * @return the index of the next character
+     */
+    private int putNonAscii(CharSequence s, char ch, int i, int end)
+    {
+        if(ch < 0x800)
+        {
+            buf[pos++] = (byte)(0xc0 | (ch >> 6));
+            buf[pos++] = (byte)(0x80 | (ch & 0x3f));
+        }
+        else if(Character.isSurrogate(ch))
+        {
+            if(Character.isHighSurrogate(ch) && i+1 < end &&
+                Character.isLowSurrogate(s.charAt(i+1)))
+            {
+                int cp = Character.toCodePoint(ch, s.charAt(i+1));
+                buf[pos++] = (byte)(0xf0 | (cp >> 18));
+                buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte)(0x80 | (cp & 0x3f));
+                return i+2;
+            }
+            buf[pos++] = '?';
+        }
+        else
+        {
+            buf[pos++] = (byte)(0xe0 | (ch >> 12));
+            buf[pos++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+            buf[pos++] = (byte)(0x80 | (ch & 0x3f));
+        }
+        return i+1;
+    }
+
+    public void print(char ch)
+    {
+        if(ch < 0x80)
+        {
+            if(pos == buf.length) flushBuffer();
+            buf[pos++] = (byte)ch;
+            return;
+        }
+        if(pos + 4 > buf.length) flushBuffer();
+        putNonAscii(null, ch, 0, 0);
+    }
+
+    public void print(CharSequence s)
+    {
+        print(s, 0, s.length());
+    }
+
+    public void print(String s)
+    {
+        if(s == null) s = "null";
+        print(s, 0, s.length());
+    }
+
+    private void print(CharSequence s, int start, int end)
+    {
+        int i = start;
+        while(i < end)
+        {
+            int asciiEnd = Math.min(end, i + buf.length - pos);
+            while(i < asciiEnd)
+            {
+                char ch = s.charAt(i);
+                if(ch >= 0x80) break;
+                buf[pos++] = (byte)ch;
+                i++;
+            }
+            if(i == end) break;
+            if(pos + 4 > buf.length) flushBuffer();
+            char ch = s.charAt(i);
+            if(ch < 0x80) continue;     // stopped because buffer was full
+            i = putNonAscii(s, ch, i, end);
+        }
+    }
+
+    public void print(long v)
+    {
+        if(v == Long.MIN_VALUE)
+        {
+            print(Long.toString(v));
+            return;
+        }
+        if(pos + 20 > buf.length) flushBuffer();
+        if(v < 0)
+        {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        pos = putDigits(buf, pos, v);
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative value.
+     *
+     * @return the position after the last digit
+     */
+    private static int putDigits(byte[] b, int p, long v)
+    {
+        int digits = 1;
+        for(long n = v; n >= 10; n /= 10) digits++;
+        int end = p + digits;
+        p = end;
+        do
+        {
+            b[--p] = (byte)('0' + (v % 10));
+            v /= 10;
+        }
+        while(v != 0);
+        return end;
+    }
+
+    /**
+     * Writes a number rounded to the given number of decimal places, without
+     * trailing zeroes (e.g. `12.5` rather than `12.5000000` at precision 7).
+     * Digits are produced with integer arithmetic, straight into the buffer.
+     * Values too large to be scaled to a `long` (and NaN or infinity) are
+     * written the way `Double.toString()` formats them.
+     *
+     * @param v             the value
+     * @param precision     the maximum number of decimal places (0 to 15)
+     */
+    public void printFixed(double v, int precision)
+    {
+        if(pos + MAX_FIXED_LENGTH > buf.length) flushBuffer();
+        pos = putFixed(buf, pos, v, precision);
+    }
+
+    /**
+     * Formats a number the way {@link #printFixed(double, int)} writes it.
+     */
+    public static String formatFixed(double v, int precision)
+    {
+        byte[] b = new byte[MAX_FIXED_LENGTH];
+        int len = putFixed(b, 0, v, precision);
+        return new String(b, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int putFixed(byte[] b, int p, double v, int precision)
+    {
+        long scale = POWERS_OF_TEN[precision];
+        double scaled = v * scale;
+        if(!(Math.abs(scaled) < 1e18))      // also true for NaN
+        {
+            String s = Double.toString(v);
+            for(int i=0; i<s.length(); i++) b[p++] = (byte)s.charAt(i);
+            return p;
+        }
+        long n = Math.round(scaled);
+        if(n < 0)
+        {
+            b[p++] = '-';
+            n = -n;
+        }
+        long intPart = n / scale;
+        long frac = n - intPart * scale;
+        p = putDigits(b, p, intPart);
+        if(frac == 0) return p;
+        int fracDigits = precision;
+        while(frac % 10 == 0)
+        {
+            frac /= 10;
+            fracDigits--;
+        }
+        b[p++] = '.';
+        int end = p + fracDigits;
+        p = end;
+        while(fracDigits-- > 0)
+        {
+            b[--p] = (byte)('0' + (frac % 10));
+            frac /= 10;
+        }
+        return end;
+    }
+
+    public void print(int v)
+    {
+        print((long)v);
+    }
+
+    public void print(double v)
+    {
+        print(Double.toString(v));
+    }
+
+    public void print(Object obj)
+    {
+        print(String.valueOf(obj));
+    }
+
+    public void println()
+    {
+        print(LINE_SEPARATOR);
+    }
+
+    public void println(char ch)
+    {
+        print(ch);
+        println();
+    }
+
+    public void println(String s)
+    {
+        print(s);
+        println();
+    }
+
+    public void println(long v)
+    {
+        print(v);
+        println();
+    }
+
+    public void println(Object obj)
+    {
+        print(obj);
+        println();
+    }
+
+    @Override public Utf8Sink append(CharSequence s)
+    {
+        if(s == null) s = "null";
+        print(s, 0, s.length());
+        return this;
+    }
+
+    @Override public Utf8Sink append(CharSequence s, int start, int end)
+    {
+        if(s == null) s = "null";
+        print(s, start, end);
+        return this;
+    }
+
+    @Override public Utf8Sink append(char ch)
+    {
+        print(ch);
+        return this;
+    }
+
+    /**
+     * Writes any buffered bytes to the underlying stream or channel
+     * (and flushes the stream).
+     */
+    @Override public void flush()
+    {
+        flushBuffer();
+        if(out != null)
+        {
+            try
+            {
+                out.flush();
+            }
+            catch(IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Flushes the sink, closes the underlying stream or channel, and
+     * returns the buffer to the pool. The sink must no longer be used.
+     */
+    @Override public void close()
+    {
+        if(buf == null) return;
+        try
+        {
+            flush();
+            if(channel != null)
+            {
+                channel.close();
+            }
+            else
+            {
+                out.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        finally
+        {
+            releaseBuffer(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Returns the buffer to the pool without writing any buffered bytes
+     * or closing the underlying stream or channel (e.g. after a failed
+     * write). Has no effect if the sink has already been closed.
+     */
+    public void discard()
+    {
+        if(buf == null) return;
+        releaseBuffer(buf);
+        buf = null;
+    }
+}
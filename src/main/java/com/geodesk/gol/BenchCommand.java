@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.clarisma.common.cli.Option;
+import com.clarisma.common.cli.Parameter;
+import com.clarisma.common.cli.Verbosity;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.Filters;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Box;
+import com.geodesk.geom.Tile;
+import com.geodesk.gol.query.AreaCoverage;
+import com.geodesk.gol.query.ParallelQuery;
+import com.geodesk.gol.query.Simplifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how quickly a GOL answers bounding-box queries, so different
+ * builds of the same data (e.g. with different `max-tiles`,
+ * `rtree-bucket-size` or `indexed-keys`) can be compared.
+ *
+ * The workload file lists one GOQL query per line (blank lines and lines
+ * starting with `#` are ignored). Each query is run against a series of
+ * random square bounding boxes of each of the requested sizes. The boxes
+ * are centered on random points within the bounds of the library's most
+ * detailed tiles (or the bounds given via `--bbox` or `--area`). The same
+ * seed and bounds always produce the same boxes; since the tiling depends
+ * on the build settings, pass the same `--bbox` to make the results of
+ * different builds comparable.
+ *
+ * Each query is first run against a number of warmup boxes (which aren't
+ * measured), then against the measured boxes, spread across the worker
+ * threads. The latency of a query is the time it takes to retrieve all of
+ * its features. For each query and box size, the command reports the
+ * throughput (queries per second, across all threads), the 50th, 95th and
+ * 99th percentile latencies, and the average number of tiles (whose
+ * bounds intersect the box) and features per query.
+ *
+ * With `--area-runs`, each query is also run across the entire `--area`
+ * (e.g. a country), on a single thread, the two ways `gol query --area`
+ * could run it: by testing every candidate feature against the area,
+ * and by classifying cells against the rasterized area first (see
+ * {@link AreaCoverage}), which is what `gol query` does. The command
+ * reports the median time of each, and checks that both find the same
+ * features.
+ */
+public class BenchCommand extends GolCommand
+{
+    private Path workloadPath;
+    private double[] sizes = { 1_000, 10_000, 100_000 };
+
+    @Parameter("1=workload")
+    public void workload(String file)
+    {
+        workloadPath = Paths.get(file);
+    }
+
+    @Option("sizes=meters: side lengths of the random boxes, comma-separated (default: 1000,10000,100000)")
+    public void sizes(String s)
+    {
+        String[] parts = s.split(",");
+        sizes = new double[parts.length];
+        for(int i=0; i<parts.length; i++)
+        {
+            try
+            {
+                sizes[i] = Double.parseDouble(parts[i].trim());
+            }
+            catch(NumberFormatException ex)
+            {
+                throw new IllegalArgumentException(String.format(
+                    "Must be a number instead of \"%s\"", parts[i]));
+            }
+            if(sizes[i] <= 0) throw new IllegalArgumentException("Sizes must be positive");
+        }
+    }
+
+    protected int runs = 100;
+
+    @Option("runs=number: measured queries per query and box size (default: 100)")
+    public void runs(int v)
+    {
+        if(v < 1) throw new IllegalArgumentException("Must be at least 1");
+        runs = v;
+    }
+
+    protected int warmup = 20;
+
+    @Option("warmup=number: unmeasured queries per query and box size (default: 20)")
+    public void warmup(int v)
+    {
+        if(v < 0) throw new IllegalArgumentException("Must not be negative");
+        warmup = v;
+    }
+
+    protected int threads = 1;
+
+    @Option("threads=number: number of threads that run queries concurrently (default: 1)")
+    public void threads(int v)
+    {
+        if(v < 1) throw new IllegalArgumentException("Must be at least 1");
+        threads = v;
+    }
+
+    protected int areaRuns;
+
+    @Option("area-runs=number: also run each query across the entire --area, with and without classifying cells (default: 0)")
+    public void areaRuns(int v)
+    {
+        if(v < 0) throw new IllegalArgumentException("Must not be negative");
+        areaRuns = v;
+    }
+
+    @Option("seed=number: seed for the random boxes")
+    protected long seed = 1;
+
+    @Option("json: print the results as JSON")
+    protected boolean json;
+
+    /**
+     * The results for one query and box size.
+     */
+    private static class Result
+    {
+        final String query;
+        final double size;
+        final long[] nanos;
+        long wallNanos;
+        long features;
+        long tiles;
+
+        Result(String query, double size, int runs)
+        {
+            this.query = query;
+            this.size = size;
+            nanos = new long[runs];
+        }
+
+        double throughput()
+        {
+            return nanos.length / (wallNanos / 1e9);
+        }
+
+        /**
+         * Returns the given percentile of the latencies (in milliseconds),
+         * using the nearest-rank method. Latencies must be sorted.
+         */
+        double percentile(double p)
+        {
+            int rank = (int)Math.ceil(p / 100 * nanos.length);
+            return nanos[Math.max(rank, 1) - 1] / 1e6;
+        }
+    }
+
+    /**
+     * The results of running a query across the entire area.
+     */
+    private static class AreaResult
+    {
+        final String query;
+        final long[] filterNanos;
+        final long[] cellNanos;
+        long features;
+
+        AreaResult(String query, int runs)
+        {
+            this.query = query;
+            filterNanos = new long[runs];
+            cellNanos = new long[runs];
+        }
+
+        static double median(long[] nanos)
+        {
+            return nanos[(nanos.length - 1) / 2] / 1e6;
+        }
+    }
+
+    private List<String> readWorkload() throws IOException
+    {
+        List<String> queries = new ArrayList<>();
+        for(String line: Files.readAllLines(workloadPath))
+        {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            queries.add(line);
+        }
+        if(queries.isEmpty())
+        {
+            throw new IllegalArgumentException(workloadPath + ": No queries");
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the area within which boxes are placed: the bounds of the
+     * area or bbox given on the command line, or else the combined bounds
+     * of the library's tiles at the deepest zoom level. (Tiles at lower
+     * zoom levels cover large, sparsely populated regions -- the root tile
+     * covers the entire world -- so most random boxes within them would
+     * come up empty.)
+     */
+    private Bounds extent()
+    {
+        if(area != null) return Filters.intersects(area).bounds();
+        if(bbox != null) return bbox;
+        int maxZoom = -1;
+        long minX = 0;
+        long minY = 0;
+        long maxX = 0;
+        long maxY = 0;
+        TileIndexWalker walker = getTileIndexWalker();
+        while(walker.next())
+        {
+            int tile = walker.tile();
+            int zoom = Tile.zoom(tile);
+            if(zoom < maxZoom) continue;
+            Bounds b = Tile.bounds(tile);
+            if(zoom > maxZoom)
+            {
+                maxZoom = zoom;
+                minX = b.minX();
+                minY = b.minY();
+                maxX = b.maxX();
+                maxY = b.maxY();
+                continue;
+            }
+            minX = Math.min(minX, b.minX());
+            minY = Math.min(minY, b.minY());
+            maxX = Math.max(maxX, b.maxX());
+            maxY = Math.max(maxY, b.maxY());
+        }
+        if(maxZoom < 0) throw new IllegalArgumentException("Library has no tiles");
+        return new Box((int)minX, (int)minY, (int)maxX, (int)maxY);
+    }
+
+    private static int clamp(double v)
+    {
+        return (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v));
+    }
+
+    /**
+     * Creates random square boxes with the given side length (in meters,
+     * at the latitude of each box's center).
+     */
+    private static Box[] randomBoxes(Random random, Bounds extent, double size, int count)
+    {
+        Box[] boxes = new Box[count];
+        for(int i=0; i<count; i++)
+        {
+            double x = extent.minX() + random.nextDouble() * ((double)extent.maxX() - extent.minX());
+            double y = extent.minY() + random.nextDouble() * ((double)extent.maxY() - extent.minY());
+            double half = size / Simplifier.metersPerUnit(y) / 2;
+            boxes[i] = new Box(clamp(x - half), clamp(y - half),
+                clamp(x + half), clamp(y + half));
+        }
+        return boxes;
+    }
+
+    private int countTiles(Box box)
+    {
+        TileIndexWalker walker = new TileIndexWalker(features.store());
+        walker.start(box);
+        int count = 0;
+        while(walker.next()) count++;
+        return count;
+    }
+
+    private static long retrieve(Features selected, Box box)
+    {
+        long count = 0;
+        for(Feature f: selected.in(box)) count++;
+        return count;
+    }
+
+    /**
+     * Runs a query against the given boxes, on all threads.
+     *
+     * @param result    the result to record latencies and feature
+     *                  counts in, or null (for warmup)
+     */
+    private void run(ExecutorService executor, Features selected, Box[] boxes,
+        int start, int end, Result result) throws Exception
+    {
+        AtomicInteger next = new AtomicInteger(start);
+        List<Callable<Long>> workers = new ArrayList<>(threads);
+        for(int i=0; i<threads; i++)
+        {
+            workers.add(() ->
+            {
+                long count = 0;
+                for(;;)
+                {
+                    int n = next.getAndIncrement();
+                    if(n >= end) return count;
+                    long queryStart = System.nanoTime();
+                    count += retrieve(selected, boxes[n]);
+                    if(result != null) result.nanos[n - start] = System.nanoTime() - queryStart;
+                }
+            });
+        }
+        long wallStart = System.nanoTime();
+        long total = 0;
+        for(Future<Long> f: executor.invokeAll(workers)) total += f.get();
+        if(result != null)
+        {
+            result.wallNanos = System.nanoTime() - wallStart;
+            result.features = total;
+        }
+    }
+
+    /**
+     * Runs a query across the entire area, both by testing each candidate
+     * feature against the area and by classifying cells, alternating
+     * between the two (so neither benefits more from a warm cache).
+     */
+    private AreaResult runArea(String query)
+    {
+        Features unfiltered = features.select(query);
+        Filter filter = Filters.intersects(area);
+        Features selected = unfiltered.select(filter);
+        AreaResult result = new AreaResult(query, areaRuns);
+        for(int i=0; i<areaRuns; i++)
+        {
+            long start = System.nanoTime();
+            long count = 0;
+            for(Feature f: selected) count++;
+            result.filterNanos[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ParallelQuery cellQuery = new ParallelQuery(selected, filter.bounds(),
+                null, 1, true, Long.MAX_VALUE);
+            cellQuery.area(area, unfiltered);
+            long cellCount = cellQuery.runSequential(getTileIndexWalker(), null);
+            result.cellNanos[i] = System.nanoTime() - start;
+            if(cellCount != count)
+            {
+                throw new IllegalStateException(String.format(
+                    "%s: Found %d features by classifying cells, but %d by testing each feature",
+                    query, cellCount, count));
+            }
+            result.features = count;
+        }
+        Arrays.sort(result.filterNanos);
+        Arrays.sort(result.cellNanos);
+        return result;
+    }
+
+    private static String jsonString(String s)
+    {
+        StringBuilder buf = new StringBuilder(s.length() + 2);
+        buf.append('"');
+        for(int i=0; i<s.length(); i++)
+        {
+            char ch = s.charAt(i);
+            if(ch == '"' || ch == '\\')
+            {
+                buf.append('\\').append(ch);
+            }
+            else if(ch < 0x20)
+            {
+                buf.append(String.format("\\u%04x", (int)ch));
+            }
+            else
+            {
+                buf.append(ch);
+            }
+        }
+        return buf.append('"').toString();
+    }
+
+    private void printText(List<Result> results, List<AreaResult> areaResults)
+    {
+        String query = null;
+        for(Result r: results)
+        {
+            if(!r.query.equals(query))
+            {
+                query = r.query;
+                System.out.format("\n%s\n", query);
+                System.out.println("    Size (m)        q/s   p50 (ms)   p95 (ms)   p99 (ms)      Tiles     Features");
+            }
+            System.out.format("%,12.0f %,10.1f %10.3f %10.3f %10.3f %10.1f %,12.1f\n",
+                r.size, r.throughput(), r.percentile(50), r.percentile(95),
+                r.percentile(99), (double)r.tiles / r.nanos.length,
+                (double)r.features / r.nanos.length);
+        }
+        if(areaResults.isEmpty()) return;
+        System.out.format("\n%-36s %12s %12s %13s\n", "Entire area",
+            "Filter (ms)", "Cells (ms)", "Features");
+        for(AreaResult r: areaResults)
+        {
+            System.out.format("%-36s %,12.1f %,12.1f %,13d\n", r.query,
+                AreaResult.median(r.filterNanos), AreaResult.median(r.cellNanos),
+                r.features);
+        }
+    }
+
+    private void printJson(List<Result> results, List<AreaResult> areaResults)
+    {
+        System.out.print('[');
+        for(int i=0; i<results.size(); i++)
+        {
+            Result r = results.get(i);
+            if(i > 0) System.out.print(',');
+            System.out.format(Locale.ROOT, "\n{\"query\":%s,\"size\":%.1f,\"runs\":%d," +
+                "\"threads\":%d,\"throughput\":%.3f,\"p50_ms\":%.3f,\"p95_ms\":%.3f," +
+                "\"p99_ms\":%.3f,\"tiles\":%.3f,\"features\":%.3f}",
+                jsonString(r.query), r.size, r.nanos.length, threads, r.throughput(),
+                r.percentile(50), r.percentile(95), r.percentile(99),
+                (double)r.tiles / r.nanos.length, (double)r.features / r.nanos.length);
+        }
+        for(int i=0; i<areaResults.size(); i++)
+        {
+            AreaResult r = areaResults.get(i);
+            if(i > 0 || !results.isEmpty()) System.out.print(',');
+            System.out.format(Locale.ROOT, "\n{\"query\":%s,\"area\":true,\"runs\":%d," +
+                "\"filter_ms\":%.3f,\"cells_ms\":%.3f,\"features\":%d}",
+                jsonString(r.query), r.filterNanos.length, AreaResult.median(r.filterNanos),
+                AreaResult.median(r.cellNanos), r.features);
+        }
+        System.out.println("\n]");
+    }
+
+    @Override protected void performWithLibrary() throws Exception
+    {
+        if(workloadPath == null) throw new IllegalArgumentException("Must specify a workload file");
+        if(areaRuns > 0 && area == null)
+        {
+            throw new IllegalArgumentException("--area-runs requires --area");
+        }
+        List<String> queries = readWorkload();
+        Bounds extent = extent();
+
+        // Boxes (and their tile counts) are shared by all queries, so
+        // their results are directly comparable
+        Random random = new Random(seed);
+        Box[][] boxes = new Box[sizes.length][];
+        long[] tiles = new long[sizes.length];
+        for(int i=0; i<sizes.length; i++)
+        {
+            boxes[i] = randomBoxes(random, extent, sizes[i], warmup + runs);
+            for(int j=warmup; j<warmup+runs; j++) tiles[i] += countTiles(boxes[i][j]);
+        }
+
+        List<Result> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for(String query: queries)
+            {
+                Features selected = features.select(query);
+                for(int i=0; i<sizes.length; i++)
+                {
+                    if(verbosity >= Verbosity.VERBOSE)
+                    {
+                        System.err.format("Running %s with %,.0f m boxes...\n", query, sizes[i]);
+                    }
+                    Result result = new Result(query, sizes[i], runs);
+                    run(executor, selected, boxes[i], 0, warmup, null);
+                    run(executor, selected, boxes[i], warmup, warmup + runs, result);
+                    result.tiles = tiles[i];
+                    Arrays.sort(result.nanos);
+                    results.add(result);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        List<AreaResult> areaResults = new ArrayList<>();
+        if(areaRuns > 0)
+        {
+            for(String query: queries)
+            {
+                if(verbosity >= Verbosity.VERBOSE)
+                {
+                    System.err.format("Running %s across the entire area...\n", query);
+                }
+                areaResults.add(runArea(query));
+            }
+        }
+
+        if(json)
+        {
+            printJson(results, areaResults);
+        }
+        else
+        {
+            printText(results, areaResults);
+        }
+    }
+}
@@ -210,14 +210,13 @@ public class BuildCommand extends BasicCommand
         statePath = workPath.resolve("state.txt");
     }
 
-    private void createIndexFolders(Path indexPath, boolean wayNodes) throws IOException
+    private void createIndexFolders(Path indexPath) throws IOException
     {
         try
         {
+            // The way-node index is a single file (see WayNodeIndex),
+            // so we no longer need a folder per TIP range
             Files.createDirectories(indexPath);
-            int topTip = context.getTileCatalog().topTip();
-            if (wayNodes) createTipFolders(indexPath.resolve("waynodes"), topTip);
-            // createTipFolders(indexPath.resolve("wnodes"), topTip);
         }
         catch(IOException ex)
         {
@@ -227,16 +226,6 @@ public class BuildCommand extends BasicCommand
         }
     }
 
-    private static void createTipFolders(Path folder, int topTip) throws IOException
-    {
-        int maxFolder = topTip >>> 12;
-        for (int n = 0; n <= maxFolder; n++)
-        {
-            Path subFolder = folder.resolve("%03X".formatted(n));
-            Files.createDirectories(subFolder);
-        }
-    }
-
     private int readState() throws IOException
     {
         if(Files.exists(statePath))
@@ -308,7 +297,7 @@ public class BuildCommand extends BasicCommand
         boolean isUpdatable = project.isUpdatable();
         if(project.idIndexing() || isUpdatable)
         {
-            createIndexFolders(context.indexPath(), isUpdatable);
+            createIndexFolders(context.indexPath());
         }
 
         if(!keepWork)
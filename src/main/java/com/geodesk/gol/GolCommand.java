@@ -86,6 +86,11 @@ public abstract class GolCommand extends BasicCommand
         areaFilePath = Paths.get(file);
     }
 
+    protected Path golPath()
+    {
+        return golPath;
+    }
+
     protected abstract void performWithLibrary() throws Exception;
 
     protected void setResult(int result)
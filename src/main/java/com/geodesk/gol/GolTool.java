@@ -27,6 +27,9 @@ public class GolTool extends Application
             "Commands:\n\n" +
             "  build - Create a GOL from an OSM data file\n" +
             "  query - Perform a GOQL query\n" +
+            "  serve - Answer queries over HTTP\n" +
+            "  tiles - Generate vector tiles\n" +
+            "  bench - Measure query performance\n" +
             "  info  - Obtain statistics\n" +
             "  load  - Load an existing tile set\n" +
             "  save  - Export tiles to a tile set\n" +
@@ -10,16 +10,29 @@ package com.geodesk.gol;
 import com.clarisma.common.cli.Option;
 import com.clarisma.common.cli.Parameter;
 import com.clarisma.common.cli.Verbosity;
+import com.clarisma.common.io.ParallelGzipOutputStream;
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Format;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Features;
+import com.geodesk.feature.Filter;
 import com.geodesk.feature.Filters;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Box;
 import com.geodesk.gol.query.*;
 import com.geodesk.util.CoordinateTransformer;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class QueryCommand extends GolCommand
 {
@@ -35,8 +48,15 @@ public class QueryCommand extends GolCommand
      */
     private List<String> formatOptions;
 
-    @Option("format,f=csv|xml|geojson|...: output format")
     protected ResultFormat format = ResultFormat.LIST;
+    private boolean formatSpecified;
+
+    @Option("format,f=csv|xml|geojson|...: output format")
+    public void format(ResultFormat format)
+    {
+        this.format = format;
+        formatSpecified = true;
+    }
 
     protected int precision = 7;
 
@@ -47,15 +67,15 @@ public class QueryCommand extends GolCommand
         precision = v;
     }
 
-    private enum ResultFormat
+    enum ResultFormat
     {
-        LIST, CSV, FAB, GEOJSON, GEOJSONL, XML, WKT, COUNT, MAP, POLY, STATS, TABLE;
+        LIST, CSV, FAB, FGB, GEOJSON, GEOJSONL, XML, PBF, WKT, COUNT, MAP, POLY, STATS, TABLE;
     }
 
     @Option("limit,l=number: maximum number of features to return")
     protected long limit = Long.MAX_VALUE;
 
-    @Parameter("1=query")
+    @Parameter("1=?query")
     public void query(String... args)
     {
         query = String.join(" ", args);
@@ -69,6 +89,88 @@ public class QueryCommand extends GolCommand
     }
 */
 
+    private Path outputPath;
+    private Path queryFilePath;
+
+    @Option("output,o=file: write results to a file instead of stdout (gzip-compressed if the name ends in .gz)")
+    public void output(String file)
+    {
+        outputPath = Paths.get(file);
+    }
+
+    @Option("queries=file: run the queries listed in a file, in a single pass")
+    public void queryFile(String file)
+    {
+        queryFilePath = Paths.get(file);
+    }
+
+    @Option("parallel,p: query tiles in parallel")
+    protected boolean parallel;
+
+    @Option("unordered: don't preserve tile order of results (implies --parallel)")
+    protected boolean unordered;
+
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option("threads=number: number of worker threads for --parallel and for compressing output")
+    public void threads(int v)
+    {
+        if(v < 1) throw new IllegalArgumentException("Must be at least 1");
+        threads = v;
+    }
+
+    /**
+     * "text" or "json" if the query should be profiled, otherwise null
+     */
+    private String profileFormat;
+
+    @Option("profile=text|json: report where the query spends its time (to stderr)")
+    public void profile(String format)
+    {
+        if(format == null) format = "text";
+        if(!format.equals("text") && !format.equals("json"))
+        {
+            throw new IllegalArgumentException("Must be text or json");
+        }
+        profileFormat = format;
+    }
+
+    private Path cacheDir;
+
+    @Option("cache=dir: reuse results of identical queries, stored in this directory")
+    public void cache(String dir)
+    {
+        cacheDir = Paths.get(dir);
+    }
+
+    protected long cacheSize = 1024;
+
+    @Option("cache-size=MB: maximum size of the result cache (default: 1024)")
+    public void cacheSize(long v)
+    {
+        if(v < 1) throw new IllegalArgumentException("Must be at least 1");
+        cacheSize = v;
+    }
+
+    /**
+     * The order in which features are printed, or null for tile order
+     */
+    private FeatureSorter.Order sortOrder;
+
+    @Option("sort=id|type-id|hilbert: print features in a deterministic order")
+    public void sort(String order)
+    {
+        if(order == null) throw new IllegalArgumentException("Must specify id, type-id or hilbert");
+        try
+        {
+            sortOrder = FeatureSorter.Order.valueOf(order.toUpperCase().replace('-', '_'));
+        }
+        catch(IllegalArgumentException ex)
+        {
+            throw new IllegalArgumentException("Must be id, type-id or hilbert");
+        }
+    }
+
     @Option("tags,t=keys: keys of tags to include")
     public void tags(String s)
     {
@@ -102,43 +204,30 @@ public class QueryCommand extends GolCommand
         formatOptions.add(value);
     }
 
-    @Override public void performWithLibrary()
+    private AbstractFeaturePrinter createPrinter(Utf8Sink out)
     {
-        long start = System.currentTimeMillis();
-        long count = 0;
-
-        // PrintStream out = System.out;
-        // Create a stream with autoflush disabled to increase performance
-        PrintStream out = new PrintStream(
-            new BufferedOutputStream(System.out, 64 * 4096));
+        return createPrinter(format, out);
+    }
 
-        // TODO: On Windows CLI, this requires switching code page: chcp 65001
-        //  (Using original System.out worked without change codepage, but
-        //  the default autoFlush reuslts in unacceptable performance)
-        /*
-        PrintStream out = null;
-        try
-        {
-            out = new PrintStream(
-                new FileOutputStream(FileDescriptor.out),
-                false, StandardCharsets.UTF_8);
-        }
-        catch(UnsupportedEncodingException ex)
-        {
-            throw new RuntimeException(ex);
-        }
-         */
+    /**
+     * Creates a printer for the given format, and applies the
+     * formatting options.
+     */
+    private AbstractFeaturePrinter createPrinter(ResultFormat format, Utf8Sink out)
+    {
         AbstractFeaturePrinter printer = switch(format)
         {
             case LIST -> new ListFeaturePrinter(out);
             case CSV -> new CsvFeaturePrinter(out);
             case FAB -> new FabFeaturePrinter(out);
+            case FGB -> new FgbFeaturePrinter(out);
             case GEOJSON -> new GeoJsonFeaturePrinter(out, false);
             case GEOJSONL -> new GeoJsonFeaturePrinter(out, true);
             case MAP -> new MapFeaturePrinter(out);
             case POLY -> new PolyFeaturePrinter(out);
             case WKT -> new WktFeaturePrinter(out);
             case XML -> new OsmXmlFeaturePrinter(out);
+            case PBF -> new PbfFeaturePrinter(out, threads);
             case STATS -> new StatsFeaturePrinter(out);
             case TABLE -> new TableFeaturePrinter(out);
             default -> new NullFeaturePrinter();
@@ -165,36 +254,554 @@ public class QueryCommand extends GolCommand
         }
 
         printer.coordinateTransformer(new CoordinateTransformer.FromMercator(precision));
+        printer.precision(precision);
         printer.columns(tags);
+        return printer;
+    }
 
-        printer.printHeader();
-        Features selected = features.select(query);
+    private static boolean isGzipped(Path path)
+    {
+        return path.getFileName().toString().toLowerCase().endsWith(".gz");
+    }
+
+    /**
+     * Returns the output format implied by the extension of a file
+     * (or the default format, if the extension is unknown). A `.gz`
+     * suffix is ignored.
+     */
+    private ResultFormat formatOf(Path path)
+    {
+        String name = path.getFileName().toString().toLowerCase();
+        if(name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+        String ext = name.substring(name.lastIndexOf('.') + 1);
+        return switch(ext)
+        {
+            case "csv" -> ResultFormat.CSV;
+            case "fab" -> ResultFormat.FAB;
+            case "fgb" -> ResultFormat.FGB;
+            case "geojson", "json" -> ResultFormat.GEOJSON;
+            case "geojsonl", "geojsonseq" -> ResultFormat.GEOJSONL;
+            case "html" -> ResultFormat.MAP;
+            case "osm", "xml" -> ResultFormat.XML;
+            case "pbf" -> ResultFormat.PBF;
+            case "poly" -> ResultFormat.POLY;
+            case "wkt" -> ResultFormat.WKT;
+            default -> ResultFormat.LIST;
+        };
+    }
+
+    // Write UTF-8 directly to the file (or stdout), rather than
+    // through System.out, which synchronizes and encodes every call
+    // (On Windows CLI, this requires switching code page: chcp 65001)
+    // If the file name ends in .gz, the output is compressed on the fly,
+    // using as many threads as the query itself (the outputs of a query
+    // file share one pool of threads)
+
+    private ExecutorService gzipExecutor;
+
+    private Utf8Sink openOutput(Path path) throws IOException
+    {
+        if(path == null)
+        {
+            System.out.flush();
+            return new Utf8Sink(new FileOutputStream(FileDescriptor.out).getChannel());
+        }
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+        if(isGzipped(path))
+        {
+            OutputStream out = Channels.newOutputStream(channel);
+            return new Utf8Sink(gzipExecutor != null ?
+                new ParallelGzipOutputStream(out, gzipExecutor, threads) :
+                new ParallelGzipOutputStream(out, threads));
+        }
+        return new Utf8Sink(channel);
+    }
+
+    /**
+     * Closes an output stream opened by {@link #openOutput(Path)}
+     * (stdout is only flushed).
+     */
+    private static void closeOutput(Path path, Utf8Sink out)
+    {
+        if(path != null)
+        {
+            out.close();
+        }
+        else
+        {
+            out.flush();
+        }
+    }
+
+    /**
+     * Restricts a set of features to the bounding box or area given
+     * on the command line.
+     */
+    private Features selectBounded(Features selected)
+    {
+        if(area != null) return selected.select(Filters.intersects(area));
+        if(bbox != null) return selected.in(bbox);
+        return selected;
+    }
+
+    /**
+     * A query read from a query file, and the state of its output.
+     */
+    private static class OutputQuery
+    {
+        final String query;
+        final Path path;
+        final ResultFormat format;
+        Features selected;
+        Utf8Sink out;
+        AbstractFeaturePrinter printer;
+        long count;
+
+        OutputQuery(String query, Path path, ResultFormat format)
+        {
+            this.query = query;
+            this.path = path;
+            this.format = format;
+        }
+    }
+
+    /**
+     * Reads a query file. Each line consists of the name of an output
+     * file, followed by whitespace and the query whose results should be
+     * written to that file. The output format is determined by the file's
+     * extension. Blank lines and lines starting with `#` are ignored.
+     */
+    private List<OutputQuery> readQueryFile() throws IOException
+    {
+        List<OutputQuery> queries = new ArrayList<>();
+        List<String> lines = Files.readAllLines(queryFilePath);
+        for(int i=0; i<lines.size(); i++)
+        {
+            String line = lines.get(i).trim();
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            int n = 0;
+            while(n < line.length() && !Character.isWhitespace(line.charAt(n))) n++;
+            String q = line.substring(n).trim();
+            if(q.isEmpty())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "%s, line %d: Expected <file> <query>", queryFilePath, i+1));
+            }
+            Path path = Paths.get(line.substring(0, n));
+            queries.add(new OutputQuery(q, path, formatOf(path)));
+        }
+        if(queries.isEmpty())
+        {
+            throw new IllegalArgumentException(queryFilePath + ": No queries");
+        }
+        return queries;
+    }
+
+    /**
+     * Rejects the options that don't apply to the queries of a query
+     * file (each of which has its own output file, whose format is
+     * determined by its extension).
+     */
+    private void checkMultiQueryOptions()
+    {
+        String option = null;
+        if(query != null) option = "a query";
+        else if(outputPath != null) option = "--output";
+        else if(formatSpecified) option = "--format";
+        else if(parallel || unordered) option = "--parallel or --unordered";
+        else if(sortOrder != null) option = "--sort";
+        else if(profileFormat != null) option = "--profile";
+        else if(cacheDir != null) option = "--cache";
+        if(option != null)
+        {
+            throw new IllegalArgumentException(
+                "Cannot specify " + option + " along with --queries");
+        }
+    }
+
+    /**
+     * Runs all queries of a query file in a single pass: the union of the
+     * queries is retrieved once (so each tile is only searched once), and
+     * each feature is passed to the printers of the queries that match it.
+     * Retrieval stops once every query has reached the limit.
+     *
+     * The library doesn't tell which part of the union matched a feature,
+     * so each feature is matched against every query once more.
+     */
+    private long performMultiQuery() throws Exception
+    {
+        List<OutputQuery> queries = readQueryFile();
+        StringBuilder union = new StringBuilder();
+        for(OutputQuery q: queries)
+        {
+            if(union.length() > 0) union.append(',');
+            union.append(q.query);
+            q.selected = features.select(q.query);
+        }
+        long count = 0;
+        int remaining = queries.size();
+        if(queries.stream().anyMatch(q -> isGzipped(q.path)))
+        {
+            gzipExecutor = ParallelGzipOutputStream.newExecutor(threads);
+        }
+        try
+        {
+            for(OutputQuery q: queries)
+            {
+                q.out = openOutput(q.path);
+                q.printer = createPrinter(q.format, q.out);
+                q.printer.printHeader();
+            }
+            for(Feature f: selectBounded(features.select(union.toString())))
+            {
+                boolean matched = false;
+                for(OutputQuery q: queries)
+                {
+                    if(q.count < limit && q.selected.contains(f))
+                    {
+                        q.printer.print(f);
+                        if(++q.count == limit) remaining--;
+                        matched = true;
+                    }
+                }
+                if(matched) count++;
+                if(remaining == 0) break;
+            }
+            for(OutputQuery q: queries)
+            {
+                q.printer.printFooter();
+                if(q.format == ResultFormat.COUNT) q.out.println(q.count);
+            }
+        }
+        finally
+        {
+            for(OutputQuery q: queries)
+            {
+                if(q.printer != null) q.printer.close();
+                if(q.out != null) closeOutput(q.path, q.out);
+            }
+            if(gzipExecutor != null)
+            {
+                gzipExecutor.shutdownNow();
+                gzipExecutor = null;
+            }
+        }
+        if(verbosity >= Verbosity.VERBOSE)
+        {
+            for(OutputQuery q: queries)
+            {
+                System.err.format("%,12d  %s\n", q.count, q.path);
+            }
+        }
+        return count;
+    }
+
+    @Override public void performWithLibrary() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        long count = 0;
+
+        if(queryFilePath != null)
+        {
+            checkMultiQueryOptions();
+            count = performMultiQuery();
+        }
+        else
+        {
+            if(query == null) throw new IllegalArgumentException("Must specify a query");
+            count = performQuery();
+        }
+
+        if(verbosity >= Verbosity.NORMAL)
+        {
+            System.err.format("\nRetrieved %,d features in %s\n", count,
+                Format.formatTimespan(System.currentTimeMillis() - start));
+        }
+    }
+
+    private long performQuery() throws Exception
+    {
+        Utf8Sink out = openOutput(outputPath);
+        try
+        {
+            // Profiling is about running the query, so it bypasses the cache
+            if(cacheDir != null && profileFormat == null) return printCached(out);
+            return printResults(out);
+        }
+        finally
+        {
+            closeOutput(outputPath, out);
+        }
+    }
+
+    /**
+     * Creates the key under which the results of this query are cached.
+     * Besides the options that affect the output (including those that
+     * affect the order of features, such as --parallel), the key includes
+     * the library's identity and the size and modification time of its
+     * file, so results are not reused once tiles have been added or updated.
+     */
+    private String cacheKey() throws IOException
+    {
+        Path golPath = golPath();
+        String state = features.store().getGuid() + "/" +
+            Files.size(golPath) + "/" + Files.getLastModifiedTime(golPath).toMillis();
+        String bounds = bbox == null ? null : String.format("%d,%d,%d,%d",
+            bbox.minX(), bbox.minY(), bbox.maxX(), bbox.maxY());
+        String areaHash = areaFilePath == null ? null :
+            QueryCache.key(Files.readString(areaFilePath));
+        return QueryCache.key(state, query.strip(), bounds, areaHash,
+            format.name(), tags == null ? null : String.join(",", tags),
+            formatOptions == null ? null : formatOptions.toString(),
+            Integer.toString(precision), Long.toString(limit),
+            Boolean.toString(parallel), Boolean.toString(unordered),
+            sortOrder == null ? null : sortOrder.name());
+    }
+
+    /**
+     * Copies the results from the cache, if an identical query has been
+     * run before; otherwise, runs the query and stores its results in
+     * the cache as they are being printed.
+     *
+     * @return the number of features printed
+     */
+    private long printCached(Utf8Sink out) throws Exception
+    {
+        QueryCache cache = new QueryCache(cacheDir, cacheSize * 1024 * 1024);
+        String key = cacheKey();
+        long count = cache.read(key, out);
+        if(count >= 0)
+        {
+            if(verbosity >= Verbosity.VERBOSE) System.err.println("Using cached results");
+            return count;
+        }
+        try(QueryCache.Entry entry = cache.write(key))
+        {
+            Utf8Sink tee = new Utf8Sink(new OutputStream()
+            {
+                @Override public void write(int b) throws IOException
+                {
+                    out.write(b);
+                    entry.write(b);
+                }
+
+                @Override public void write(byte[] b, int off, int len) throws IOException
+                {
+                    out.write(b, off, len);
+                    entry.write(b, off, len);
+                }
+            });
+            count = printResults(tee);
+            tee.close();    // flushes (leaves `out` and `entry` open)
+            entry.commit(count);
+        }
+        return count;
+    }
+
+    /**
+     * Runs the query and prints its results to the given stream (which is
+     * left open). Also used by `gol serve`, which sets `features` to its
+     * already-open library.
+     *
+     * @return the number of features printed
+     */
+    long printResults(Utf8Sink out) throws Exception
+    {
+        AbstractFeaturePrinter printer = createPrinter(out);
+        try
+        {
+            return printResults(out, printer);
+        }
+        finally
+        {
+            printer.close();
+        }
+    }
+
+    private long printResults(Utf8Sink out, AbstractFeaturePrinter printer) throws Exception
+    {
+        long count = 0;
+        QueryProfile profile = profileFormat != null ? new QueryProfile() : null;
+        Features unfiltered = features.select(query);
+        Features selected = unfiltered;
+        Bounds bounds = Box.ofWorld();
         if(area != null)
         {
-            selected = selected.select(Filters.intersects(area));
+            Filter filter = Filters.intersects(area);
+            selected = selected.select(filter);
+            bounds = filter.bounds();
         }
         else if(bbox != null)
         {
             selected = selected.in(bbox);
+            bounds = bbox;
+        }
+        if(format == ResultFormat.COUNT)
+        {
+            // Counting doesn't involve a printer, and never depends on
+            // the order of features, so it is always done per cell,
+            // in parallel
+            ParallelQuery cellQuery = new ParallelQuery(selected, bounds,
+                null, threads, false, limit);
+            cellQuery.profile(profile);
+            if(area != null) cellQuery.area(area, unfiltered);
+            if(profile != null) profile.setupDone();
+            count = cellQuery.count(getTileIndexWalker());
+            out.println(count);
+            reportProfile(profile, out, threads);
+            return count;
+        }
+        if(sortOrder != null)
+        {
+            if(parallel || unordered)
+            {
+                throw new IllegalArgumentException(
+                    "Cannot specify --sort along with --parallel or --unordered");
+            }
+            if(!printer.isMergeable())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "--sort is not supported for format \"%s\"",
+                    format.toString().toLowerCase()));
+            }
+            if(profile != null) startSequentialProfile(profile);
+            printer.printHeader();
+            count = printSorted(selected, printer, out, profile);
+            printer.printFooter();
+            reportProfile(profile, out, 1);
+            return count;
+        }
+        printer.printHeader();
+        // Formats that collect features (e.g. xml) are
+        // always printed sequentially
+        boolean concurrent = (parallel || unordered) &&
+            (printer.isMergeable() || printer instanceof AggregatingPrinter);
+        if(concurrent)
+        {
+            ParallelQuery cellQuery = new ParallelQuery(selected, bounds,
+                this::createPrinter, threads, !unordered, limit);
+            cellQuery.profile(profile);
+            if(area != null) cellQuery.area(area, unfiltered);
+            if(profile != null) profile.setupDone();
+            count = cellQuery.run(getTileIndexWalker(), printer, out);
+        }
+        else if(area != null)
+        {
+            // Area queries benefit from the rasterized area even if they
+            // run on a single thread: the cells are visited one by one,
+            // in tile order
+            ParallelQuery cellQuery = new ParallelQuery(selected, bounds,
+                null, 1, true, limit);
+            cellQuery.profile(profile);
+            cellQuery.area(area, unfiltered);
+            if(profile != null) profile.setupDone();
+            count = cellQuery.runSequential(getTileIndexWalker(), printer);
+        }
+        else if(profile != null)
+        {
+            count = printProfiled(selected, printer, profile);
+        }
+        else
+        {
+            for(Feature f: selected)
+            {
+                printer.print(f);
+                // out.flush();
+                count++;
+                if(count == limit) break;
+            }
+        }
+        printer.printFooter();
+        reportProfile(profile, out, concurrent ? threads : 1);
+        return count;
+    }
+
+    /**
+     * Prints the features in the order requested via `--sort`. All
+     * features are retrieved and sorted before any of them are printed;
+     * the limit is applied afterwards, so it selects the first features
+     * in sort order (rather than the first features found). If profiled,
+     * printing the features into the sort counts as printing time.
+     */
+    private long printSorted(Features selected, AbstractFeaturePrinter printer,
+        Utf8Sink out, QueryProfile profile) throws IOException
+    {
+        try(FeatureSorter sorter = new FeatureSorter(sortOrder, this::createPrinter))
+        {
+            if(profile == null)
+            {
+                for(Feature f: selected) sorter.add(f);
+                return sorter.print(printer, out, limit);
+            }
+            long printNanos = 0;
+            long start = System.nanoTime();
+            for(Feature f: selected)
+            {
+                long printStart = System.nanoTime();
+                sorter.add(f);
+                printNanos += System.nanoTime() - printStart;
+            }
+            profile.printNanos.add(printNanos);
+            profile.scanNanos.add(System.nanoTime() - start - printNanos);
+            long count = sorter.print(printer, out, limit);
+            profile.featuresPrinted.add(count);
+            return count;
         }
+    }
+
+    /**
+     * Sets up the profile of a query whose features are retrieved
+     * sequentially, without cells, and counts the tiles it visits.
+     */
+    private void startSequentialProfile(QueryProfile profile)
+    {
+        profile.sequential();
+        TileIndexWalker walker = getTileIndexWalker();
+        while(walker.next()) profile.tilesVisited.increment();
+        profile.setupDone();
+    }
+
+    /**
+     * Prints the features sequentially (like the loop in
+     * {@link #printResults(Utf8Sink)}), timing the printer. The library
+     * only returns the features that match, so we can count the tiles it
+     * visits (those that intersect the query's bounds), but not how many
+     * features it has looked at.
+     */
+    private long printProfiled(Features selected, AbstractFeaturePrinter printer,
+        QueryProfile profile)
+    {
+        startSequentialProfile(profile);
+        long count = 0;
+        long printNanos = 0;
+        long start = System.nanoTime();
         for(Feature f: selected)
         {
+            long printStart = System.nanoTime();
             printer.print(f);
-            // out.flush();
+            printNanos += System.nanoTime() - printStart;
             count++;
             if(count == limit) break;
         }
-        printer.printFooter();
-        out.flush();
+        profile.featuresPrinted.add(count);
+        profile.printNanos.add(printNanos);
+        profile.scanNanos.add(System.nanoTime() - start - printNanos);
+        return count;
+    }
 
-        if(format == ResultFormat.COUNT)
+    private void reportProfile(QueryProfile profile, Utf8Sink out, int threadCount)
+    {
+        if(profile == null) return;
+        profile.done(out.bytesWritten(), threadCount);
+        if(profileFormat.equals("json"))
         {
-            System.out.println(count);
+            profile.printJson(System.err);
         }
-        if(verbosity >= Verbosity.NORMAL)
+        else
         {
-            System.err.format("\nRetrieved %,d features in %s\n", count,
-                Format.formatTimespan(System.currentTimeMillis() - start));
+            profile.print(System.err);
         }
     }
 }
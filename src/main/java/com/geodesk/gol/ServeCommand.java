@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.clarisma.common.cli.Converter;
+import com.clarisma.common.cli.Option;
+import com.clarisma.common.cli.Verbosity;
+import com.clarisma.common.io.Utf8Sink;
+import com.geodesk.feature.match.QueryException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a library open and answers queries over HTTP, so clients that
+ * issue many small queries don't pay for JVM startup and opening the
+ * library each time.
+ *
+ * `GET /query?q=<goql>` returns the results of a query, encoded by the
+ * same printers as `gol query`. Parameters `f` (format), `t` (tags),
+ * `bbox`, `limit` and `precision` work like the options of `gol query`;
+ * formatting options are passed as `f:<option>=<value>`. `GET /metrics`
+ * returns request counts and timings.
+ *
+ * On shutdown (Ctrl-C or SIGTERM), the server stops accepting requests,
+ * waits for the requests that are being processed, and closes the library.
+ */
+public class ServeCommand extends GolCommand
+{
+    @Option("port=number: port on which to listen (default: 8000)")
+    protected int port = 8000;
+
+    @Option("bind=address: address on which to listen (default: localhost)")
+    protected String bindAddress = "localhost";
+
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option("threads=number: number of worker threads")
+    public void threads(int v)
+    {
+        if(v < 1) throw new IllegalArgumentException("Must be at least 1");
+        threads = v;
+    }
+
+    /**
+     * The number of seconds to wait for pending requests on shutdown
+     */
+    private static final int SHUTDOWN_GRACE_PERIOD = 10;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder featureCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * An output stream that sends the response headers when the first
+     * bytes of the body are written, so errors that occur before any
+     * output has been produced (e.g. a malformed query) can still be
+     * reported with a proper status code.
+     */
+    private static class ResponseStream extends OutputStream
+    {
+        private final HttpExchange exchange;
+        private OutputStream body;
+
+        ResponseStream(HttpExchange exchange)
+        {
+            this.exchange = exchange;
+        }
+
+        boolean isCommitted()
+        {
+            return body != null;
+        }
+
+        private OutputStream body() throws IOException
+        {
+            if(body == null)
+            {
+                exchange.sendResponseHeaders(200, 0);   // chunked
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            body().write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            body().write(b, off, len);
+        }
+
+        @Override public void close() throws IOException
+        {
+            body().close();
+        }
+    }
+
+    private static String contentType(QueryCommand.ResultFormat format)
+    {
+        return switch(format)
+        {
+            case CSV -> "text/csv; charset=utf-8";
+            case GEOJSON -> "application/geo+json";
+            case GEOJSONL -> "application/geo+json-seq";
+            case MAP -> "text/html; charset=utf-8";
+            case XML -> "application/xml";
+            case FGB, PBF -> "application/octet-stream";
+            default -> "text/plain; charset=utf-8";
+        };
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream body = exchange.getResponseBody())
+        {
+            body.write(bytes);
+        }
+    }
+
+    /**
+     * Creates a query command from the parameters of a request. The
+     * command shares this command's library.
+     */
+    private QueryCommand createQuery(String params)
+    {
+        QueryCommand cmd = new QueryCommand();
+        cmd.features = features;
+        cmd.threads = 1;
+            // Requests are already processed in parallel by the server's
+            // worker threads; a request must not start a pool of its own
+        if(params == null) throw new IllegalArgumentException("Must specify a query (q)");
+        boolean hasQuery = false;
+        for(String param: params.split("&"))
+        {
+            if(param.isEmpty()) continue;
+            int n = param.indexOf('=');
+            String name = URLDecoder.decode(n < 0 ? param : param.substring(0, n),
+                StandardCharsets.UTF_8);
+            String value = n < 0 ? null : URLDecoder.decode(param.substring(n+1),
+                StandardCharsets.UTF_8);
+            if(name.startsWith("f:"))
+            {
+                cmd.setOption(name, value);
+                continue;
+            }
+            if(value == null)
+            {
+                throw new IllegalArgumentException(name + ": Must provide a value");
+            }
+            switch(name)
+            {
+            case "q":
+                cmd.query(value);
+                hasQuery = true;
+                break;
+            case "f":
+                cmd.format = (QueryCommand.ResultFormat)Converter.convert(
+                    value, QueryCommand.ResultFormat.class);
+                break;
+            case "t":
+                cmd.tags(value);
+                break;
+            case "bbox":
+                cmd.bounds(value);
+                break;
+            case "limit":
+                cmd.limit = Long.parseLong(value);
+                break;
+            case "precision":
+                cmd.precision(Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException(name + ": Unknown parameter");
+            }
+        }
+        if(!hasQuery) throw new IllegalArgumentException("Must specify a query (q)");
+        return cmd;
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+        long count = 0;
+        String error = null;
+        try
+        {
+            if(!exchange.getRequestMethod().equals("GET"))
+            {
+                sendText(exchange, 405, "Method not allowed\n");
+                return;
+            }
+            QueryCommand cmd;
+            try
+            {
+                cmd = createQuery(exchange.getRequestURI().getRawQuery());
+            }
+            catch(IllegalArgumentException ex)
+            {
+                error = ex.getMessage();
+                sendText(exchange, 400, error + "\n");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType(cmd.format));
+            ResponseStream response = new ResponseStream(exchange);
+            Utf8Sink out = new Utf8Sink(response);
+            try
+            {
+                count = cmd.printResults(out);
+                out.close();
+            }
+            catch(IllegalArgumentException | QueryException ex)
+            {
+                error = ex.getMessage();
+                if(!response.isCommitted()) sendText(exchange, 400, error + "\n");
+            }
+            catch(UncheckedIOException ex)
+            {
+                // Client went away; nothing else we can do
+                error = ex.getMessage();
+            }
+            catch(Exception ex)
+            {
+                // If part of the response has already been sent, closing
+                // the exchange aborts it, so the client can tell that the
+                // response is incomplete
+                error = ex.toString();
+                if(!response.isCommitted())
+                {
+                    sendText(exchange, 500, "Internal error: " + error + "\n");
+                }
+            }
+            finally
+            {
+                // If the response wasn't completed, return the sink's
+                // buffer to the pool without sending what's left in it
+                out.discard();
+            }
+        }
+        finally
+        {
+            exchange.close();
+            long elapsed = System.nanoTime() - start;
+            requestCount.increment();
+            if(error != null) errorCount.increment();
+            featureCount.add(count);
+            totalNanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            if(verbosity >= Verbosity.VERBOSE)
+            {
+                System.err.format("%s: %,d features in %.1f ms%s\n",
+                    exchange.getRequestURI(), count, elapsed / 1e6,
+                    error != null ? " (" + error + ")" : "");
+            }
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException
+    {
+        long requests = requestCount.sum();
+        double total = totalNanos.sum() / 1e6;
+        sendText(exchange, 200, String.format(
+            "requests: %d\nerrors: %d\nfeatures: %d\n" +
+            "total_ms: %.1f\nmean_ms: %.3f\nmax_ms: %.3f\n",
+            requests, errorCount.sum(), featureCount.sum(), total,
+            requests == 0 ? 0 : total / requests, maxNanos.get() / 1e6));
+    }
+
+    @Override public int perform() throws Exception
+    {
+        try
+        {
+            return super.perform();
+        }
+        finally
+        {
+            closed.countDown();
+        }
+    }
+
+    @Override protected void performWithLibrary() throws Exception
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/query", this::handleQuery);
+        server.createContext("/metrics", this::handleMetrics);
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            server.stop(SHUTDOWN_GRACE_PERIOD);
+            executor.shutdown();
+            try
+            {
+                executor.awaitTermination(SHUTDOWN_GRACE_PERIOD, TimeUnit.SECONDS);
+                stopped.countDown();
+                // Don't let the JVM exit before the library has been closed
+                closed.await(SHUTDOWN_GRACE_PERIOD, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException ex)
+            {
+                // exit anyway
+            }
+        }));
+
+        if(verbosity >= Verbosity.NORMAL)
+        {
+            System.err.format("Listening on http://%s:%d/ (%d threads)\n",
+                bindAddress, server.getAddress().getPort(), threads);
+        }
+        stopped.await();
+        if(verbosity >= Verbosity.NORMAL)
+        {
+            System.err.format("Stopped after %,d requests\n", requestCount.sum());
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.clarisma.common.cli.Option;
+import com.clarisma.common.cli.Parameter;
+import com.clarisma.common.cli.Verbosity;
+import com.clarisma.common.text.Format;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.Filters;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Box;
+import com.geodesk.gol.mvt.MvtTileEncoder;
+import com.geodesk.gol.mvt.PmTilesWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+/**
+ * Generates vector tiles (Mapbox Vector Tiles, in a PMTiles archive)
+ * directly from a GOL.
+ *
+ * The tiles are defined by a layer file: each line consists of the name
+ * of a layer, its zoom range (e.g. `8-14`, `12` or `10-`), and a GOQL
+ * query that selects its features. Layer names must be unique. Blank
+ * lines and lines starting with `#` are ignored.
+ *
+ * Tiles are generated by descending the tile pyramid, starting at zoom 0.
+ * A tile's children are only visited if at least one of the layers that
+ * appear at higher zoom levels has features within the tile's bounds, so
+ * empty regions are skipped early. Tiles are encoded in parallel.
+ *
+ * Below the highest zoom level, geometries are snapped to the grid of the
+ * tile before they are clipped, and simplified to its resolution. Even so,
+ * each tile has to read every feature that its layers select within its
+ * bounds, so layers that start at a low zoom level should use restrictive
+ * queries (e.g. only major roads, or only large areas).
+ */
+public class TilesCommand extends GolCommand
+{
+    private Path outputPath;
+    private Path layerFilePath;
+    private Set<String> keys;
+    private List<Layer> layers;
+    private Bounds bounds;
+    private PmTilesWriter writer;
+
+    private static final int MAX_ZOOM = 16;
+    private static final Pattern LAYER_NAME = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+    @Parameter("1=output")
+    public void output(String file)
+    {
+        outputPath = Paths.get(file);
+    }
+
+    @Option("layers,l=file: layer definitions (name, zoom range and query per line)")
+    public void layers(String file)
+    {
+        layerFilePath = Paths.get(file);
+    }
+
+    protected int minZoom = 0;
+
+    @Option("min-zoom=0-16: lowest zoom level (default: 0)")
+    public void minZoom(int v)
+    {
+        minZoom = checkZoom(v);
+    }
+
+    protected int maxZoom = 14;
+
+    @Option("max-zoom=0-16: highest zoom level (default: 14)")
+    public void maxZoom(int v)
+    {
+        maxZoom = checkZoom(v);
+    }
+
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option("threads=number: number of worker threads")
+    public void threads(int v)
+    {
+        if(v < 1) throw new IllegalArgumentException("Must be at least 1");
+        threads = v;
+    }
+
+    @Option("tags,t=keys: keys of tags to include (default: all)")
+    public void tags(String s)
+    {
+        keys = new HashSet<>(Arrays.asList(s.split(",")));
+    }
+
+    private static int checkZoom(int v)
+    {
+        if(v < 0 || v > MAX_ZOOM)
+        {
+            throw new IllegalArgumentException("Must be between 0 and " + MAX_ZOOM);
+        }
+        return v;
+    }
+
+    private static class Layer
+    {
+        final String name;
+        final String query;
+        final int minZoom;
+        final int maxZoom;
+        Features selected;
+
+        Layer(String name, String query, int minZoom, int maxZoom)
+        {
+            this.name = name;
+            this.query = query;
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+        }
+    }
+
+    private List<Layer> readLayerFile() throws IOException
+    {
+        List<Layer> layers = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        List<String> lines = Files.readAllLines(layerFilePath);
+        for(int i=0; i<lines.size(); i++)
+        {
+            String line = lines.get(i).trim();
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+", 3);
+            if(parts.length < 3 || !LAYER_NAME.matcher(parts[0]).matches())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "%s, line %d: Expected <layer> <zoom range> <query>",
+                    layerFilePath, i+1));
+            }
+            if(!names.add(parts[0]))
+            {
+                // A vector tile must not contain two layers of the same name
+                throw new IllegalArgumentException(String.format(
+                    "%s, line %d: Duplicate layer \"%s\"",
+                    layerFilePath, i+1, parts[0]));
+            }
+            int from;
+            int to;
+            try
+            {
+                String zooms = parts[1];
+                int dash = zooms.indexOf('-');
+                if(dash < 0)
+                {
+                    from = to = Integer.parseInt(zooms);
+                }
+                else
+                {
+                    from = Integer.parseInt(zooms.substring(0, dash));
+                    to = dash == zooms.length() - 1 ? maxZoom :
+                        Integer.parseInt(zooms.substring(dash + 1));
+                }
+            }
+            catch(NumberFormatException ex)
+            {
+                throw new IllegalArgumentException(String.format(
+                    "%s, line %d: Invalid zoom range \"%s\"",
+                    layerFilePath, i+1, parts[1]));
+            }
+            from = Math.max(from, minZoom);
+            to = Math.min(to, maxZoom);
+            if(from > to) continue;     // layer lies outside the zoom range
+            layers.add(new Layer(parts[0], parts[2], from, to));
+        }
+        if(layers.isEmpty())
+        {
+            throw new IllegalArgumentException(layerFilePath + ": No layers");
+        }
+        return layers;
+    }
+
+    private static boolean intersects(Bounds a, Bounds b)
+    {
+        return a.minX() <= b.maxX() && a.maxX() >= b.minX() &&
+            a.minY() <= b.maxY() && a.maxY() >= b.minY();
+    }
+
+    private static int clamp(long v)
+    {
+        return (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v));
+    }
+
+    /**
+     * Returns the bounds of a tile (in Mercator projection), expanded by
+     * the buffer of the vector tiles.
+     */
+    private static Bounds tileBounds(int zoom, int col, int row)
+    {
+        long size = 1L << (32 - zoom);
+        long buffer = size * MvtTileEncoder.BUFFER / MvtTileEncoder.EXTENT;
+        long minX = Integer.MIN_VALUE + col * size;
+        long maxY = (1L << 31) - row * size - 1;
+        return new Box(clamp(minX - buffer), clamp(maxY - size + 1 - buffer),
+            clamp(minX + size - 1 + buffer), clamp(maxY + buffer));
+    }
+
+    private class TileTask extends RecursiveAction
+    {
+        private final int zoom;
+        private final int col;
+        private final int row;
+
+        TileTask(int zoom, int col, int row)
+        {
+            this.zoom = zoom;
+            this.col = col;
+            this.row = row;
+        }
+
+        private void encode(Bounds tileBounds) throws IOException
+        {
+            MvtTileEncoder encoder = new MvtTileEncoder(zoom, col, row, zoom < maxZoom);
+            for(Layer layer: layers)
+            {
+                if(zoom < layer.minZoom || zoom > layer.maxZoom) continue;
+                encoder.startLayer(layer.name);
+                for(Feature f: layer.selected.in(tileBounds)) encoder.addFeature(f, keys);
+            }
+            byte[] tile = encoder.encode();
+            if(tile != null) writer.addTile(zoom, col, row, PmTilesWriter.gzip(tile));
+        }
+
+        /**
+         * Checks whether any layer that appears at a higher zoom level
+         * has features in this tile.
+         */
+        private boolean hasDescendants(Bounds tileBounds)
+        {
+            for(Layer layer: layers)
+            {
+                if(layer.maxZoom <= zoom) continue;
+                if(layer.selected.in(tileBounds).iterator().hasNext()) return true;
+            }
+            return false;
+        }
+
+        @Override protected void compute()
+        {
+            Bounds tileBounds = tileBounds(zoom, col, row);
+            if(!intersects(tileBounds, bounds)) return;
+            try
+            {
+                if(zoom >= minZoom) encode(tileBounds);
+            }
+            catch(IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            if(zoom < maxZoom && hasDescendants(tileBounds))
+            {
+                int childZoom = zoom + 1;
+                int childCol = col * 2;
+                int childRow = row * 2;
+                invokeAll(
+                    new TileTask(childZoom, childCol, childRow),
+                    new TileTask(childZoom, childCol + 1, childRow),
+                    new TileTask(childZoom, childCol, childRow + 1),
+                    new TileTask(childZoom, childCol + 1, childRow + 1));
+            }
+        }
+    }
+
+    private String metadata()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"name\":\"").append(outputPath.getFileName().toString()
+            .replace("\\", "\\\\").replace("\"", "\\\""));
+        buf.append("\",\"format\":\"pbf\",\"generator\":\"gol ").append(GolTool.VERSION);
+        buf.append("\",\"vector_layers\":[");
+        for(int i=0; i<layers.size(); i++)
+        {
+            Layer layer = layers.get(i);
+            if(i > 0) buf.append(',');
+            buf.append(String.format("{\"id\":\"%s\",\"fields\":{},\"minzoom\":%d,\"maxzoom\":%d}",
+                layer.name, layer.minZoom, layer.maxZoom));
+        }
+        buf.append("]}");
+        return buf.toString();
+    }
+
+    @Override protected void performWithLibrary() throws Exception
+    {
+        if(layerFilePath == null)
+        {
+            throw new IllegalArgumentException("Must specify a layer file (--layers)");
+        }
+        if(minZoom > maxZoom)
+        {
+            throw new IllegalArgumentException("--min-zoom must not exceed --max-zoom");
+        }
+        long start = System.currentTimeMillis();
+        layers = readLayerFile();
+        Filter areaFilter = area != null ? Filters.intersects(area) : null;
+        for(Layer layer: layers)
+        {
+            Features selected = features.select(layer.query);
+            if(areaFilter != null)
+            {
+                selected = selected.select(areaFilter);
+            }
+            else if(bbox != null)
+            {
+                selected = selected.in(bbox);
+            }
+            layer.selected = selected;
+        }
+        bounds = areaFilter != null ? areaFilter.bounds() :
+            (bbox != null ? bbox : Box.ofWorld());
+
+        try(PmTilesWriter w = new PmTilesWriter(outputPath))
+        {
+            writer = w;
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try
+            {
+                pool.invoke(new TileTask(0, 0, 0));
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
+            writer.finish(minZoom, maxZoom, bounds, metadata());
+            if(verbosity >= Verbosity.NORMAL)
+            {
+                System.err.format("Wrote %,d tiles in %s\n", writer.tileCount(),
+                    Format.formatTimespan(System.currentTimeMillis() - start));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The way-node index of an updatable GOL: a single file that holds the
+ * node IDs of the ways in each tile (see `FeatureTile.createWayNodeIndex()`
+ * for the format of a tile's index data). The file is memory-mapped
+ * read-only, so the updater's workers can read each tile's data as a
+ * zero-copy slice.
+ *
+ * File layout (little-endian):
+ *
+ * - Header (16 bytes): magic, version, number of TIP slots, reserved
+ * - Offset table: one 16-byte entry per TIP (long offset, int length,
+ *   int reserved); offset 0 means the tile has no index data
+ * - Tile data, appended in the order in which tiles were compiled.
+ *   A tile's data never straddles a segment boundary (1 GB), so it can
+ *   always be read from a single mapping.
+ */
+public class WayNodeIndex
+{
+    public static final String FILE_NAME = "waynodes.idx";
+    public static final int MAGIC = 0x584E5747;    // "GWNX"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 16;
+    public static final int SEGMENT_SIZE = 1 << 30;
+
+    private final Path path;
+    private final MappedByteBuffer[] segments;
+    private final int tipCount;
+
+    public WayNodeIndex(Path path) throws IOException
+    {
+        this.path = path;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            int segmentCount = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new MappedByteBuffer[segmentCount];
+            for(int i=0; i<segmentCount; i++)
+            {
+                long start = (long)i * SEGMENT_SIZE;
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start, Math.min(SEGMENT_SIZE, size - start));
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                segments[i] = buf;
+            }
+            // (The mappings remain valid after the channel is closed)
+        }
+        if(segments.length == 0 || segments[0].getInt(0) != MAGIC)
+        {
+            throw new IOException(path + ": Not a way-node index");
+        }
+        if(segments[0].getInt(4) != VERSION)
+        {
+            throw new IOException(String.format(
+                "%s: Unsupported version %d (GOL must be rebuilt)",
+                path, segments[0].getInt(4)));
+        }
+        tipCount = segments[0].getInt(8);
+    }
+
+    public static Path path(Path indexPath)
+    {
+        return indexPath.resolve(FILE_NAME);
+    }
+
+    /**
+     * Returns the index data of the given tile, as a read-only little-endian
+     * buffer that starts at position 0, or `null` if the index has no data
+     * for this tile. The returned buffer is a view of the mapped file (no
+     * data is copied), and may be used by a single thread.
+     */
+    public ByteBuffer tile(int tip)
+    {
+        if(tip < 0 || tip >= tipCount) return null;
+        ByteBuffer header = segments[0];
+        int pEntry = HEADER_SIZE + tip * ENTRY_SIZE;
+        long ofs = header.getLong(pEntry);
+        if(ofs == 0) return null;
+        int len = header.getInt(pEntry + 8);
+        MappedByteBuffer segment = segments[(int)(ofs / SEGMENT_SIZE)];
+        return segment.slice((int)(ofs % SEGMENT_SIZE), len)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public Path path()
+    {
+        return path;
+    }
+}
@@ -46,7 +46,7 @@ public class Compiler extends Processor<Compiler.Task>
     private final PbfOutputStream linkerExportHeader = new PbfOutputStream();
     private final RandomAccessFile linkerImportFile;
     private Path debugPath;
-    private final Path wayNodeIndexPath;
+    private final WayNodeIndexWriter wayNodeIndex;
     private final boolean debug = false; // true;
 
     private static final int DEFAULT_LINK_DB_PAGE_SIZE = 1 << 13; // TODO: configurable
@@ -72,8 +72,9 @@ public class Compiler extends Processor<Compiler.Task>
         // TODO: check if we need to have "" in the table
         //  (currently not included)
         globalStrings = featureStore.stringsToCodes();
-        wayNodeIndexPath = ctx.project().isUpdatable() ?
-            ctx.indexPath().resolve("waynodes") : null;
+        wayNodeIndex = ctx.project().isUpdatable() ?
+            new WayNodeIndexWriter(WayNodeIndex.path(ctx.indexPath()),
+                tileCatalog.topTip()) : null;
     }
 
     protected class Task implements Runnable
@@ -437,11 +438,7 @@ public class Compiler extends Processor<Compiler.Task>
 
         private void writeWayNodeIndex(PbfOutputStream out) throws IOException
         {
-            // TODO: save to temp file first, then rename
-            Path path = Tip.path(wayNodeIndexPath, tip, ".wnx");
-            // TODO: make more efficient, avoid buffer copy
-            //  (can use PbfOutputStream qwith ofs/len)
-            Files.write(path, out.toByteArray());
+            wayNodeIndex.write(tip, out.buffer(), out.size());
         }
 
         private void dump(FeatureTile ft) throws IOException
@@ -465,7 +462,7 @@ public class Compiler extends Processor<Compiler.Task>
                 PbfOutputStream imports = writeTile();
                 writeImports(imports);
                 writeExports(archive.getExports());
-                if (wayNodeIndexPath != null && sourceTile != TileCatalog.PURGATORY_TILE)
+                if (wayNodeIndex != null && sourceTile != TileCatalog.PURGATORY_TILE)
                 {
                     writeWayNodeIndex(archive.createWayNodeIndex());
                 }
@@ -524,6 +521,7 @@ public class Compiler extends Processor<Compiler.Task>
 
         // TODO: verbosity
         pileFile.close();
+        if(wayNodeIndex != null) wayNodeIndex.close();
         System.err.format("Compiled %d tiles in %s\n",
             tileCatalog.tileCount(), Format.formatTimespan(timeElapsed()));
     }
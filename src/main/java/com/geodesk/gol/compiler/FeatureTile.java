@@ -436,6 +436,18 @@ public class FeatureTile
         });
     }
 
+    /**
+     * Creates the way-node index for this tile, which the updater uses to
+     * look up the node IDs of ways. For each local way (in ID order):
+     *
+     * - signed varint: delta of the way ID
+     * - varint: lowest node ID
+     * - varint: highest node ID (as delta from the lowest)
+     * - varint: length of the node list (in bytes), followed by the node
+     *   list (varint count, signed-varint deltas of node IDs)
+     *
+     * @return a buffer containing the index
+     */
     public PbfOutputStream createWayNodeIndex()
     {
         List<SWay> wayList = new ArrayList<>(ways.size());
@@ -446,6 +458,7 @@ public class FeatureTile
         Collections.sort(wayList);
 
         PbfOutputStream out = new PbfOutputStream();
+        PbfOutputStream nodesOut = new PbfOutputStream();
         long prevId = 0;
         for(SWay way: wayList)
         {
@@ -454,9 +467,31 @@ public class FeatureTile
                 // we could use unsigned delta, but this would require that
                 // we always sort the IDs to get efficient compression
 
-            assert way.nodeIds() != null:
+            long[] nodeIds = way.nodeIds();
+            assert nodeIds != null:
                 "way/%d in %s has no nodeIds".formatted(id, Tile.toString(tile));
-            way.writeNodes(out);
+
+            // Store the range of node IDs, so readers can skip ways
+            // that cannot contain any nodes of interest without having
+            // to decode them; the node list is length-prefixed for the
+            // same reason
+
+            long minNodeId = 0;
+            long maxNodeId = 0;
+            if(nodeIds.length > 0)
+            {
+                minNodeId = Long.MAX_VALUE;
+                for (long nodeId : nodeIds)
+                {
+                    minNodeId = Math.min(minNodeId, nodeId);
+                    maxNodeId = Math.max(maxNodeId, nodeId);
+                }
+            }
+            out.writeVarint(minNodeId);
+            out.writeVarint(maxNodeId - minNodeId);
+            way.writeNodes(nodesOut);
+            out.writeString(nodesOut);
+            nodesOut.reset();
             prevId = id;
         }
         return out;
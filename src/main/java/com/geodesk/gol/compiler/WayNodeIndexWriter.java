@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.compiler;
+
+import com.clarisma.common.io.FileUtils;
+import com.geodesk.gol.build.WayNodeIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static com.geodesk.gol.build.WayNodeIndex.*;
+
+/**
+ * Writes the way-node index (see {@link WayNodeIndex}). Tiles can be written
+ * concurrently and in any order: each call reserves a range of the file and
+ * then writes into it without holding a lock. The index is written to a
+ * temporary file, which replaces the actual index once it is closed.
+ */
+public class WayNodeIndexWriter
+{
+    private final Path path;
+    private final Path tempPath;
+    private final FileChannel channel;
+    private final int tipCount;
+    private long nextOffset;
+
+    public WayNodeIndexWriter(Path path, int topTip) throws IOException
+    {
+        this.path = path;
+        tempPath = Path.of(FileUtils.replaceExtension(path.toString(), ".tmp"));
+        tipCount = topTip + 1;
+        channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(tipCount);
+        header.putInt(0);
+        header.flip();
+        writeFully(header, 0);
+        nextOffset = HEADER_SIZE + (long)tipCount * ENTRY_SIZE;
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException
+    {
+        while(buf.hasRemaining()) pos += channel.write(buf, pos);
+    }
+
+    private synchronized long reserve(int len)
+    {
+        long ofs = nextOffset;
+        long segmentEnd = (ofs / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        if(ofs + len > segmentEnd) ofs = segmentEnd;
+            // don't straddle segments
+        nextOffset = ofs + len;
+        return ofs;
+    }
+
+    /**
+     * Writes the index data of a tile.
+     *
+     * @param tip   the tile's TIP
+     * @param data  an array containing the index data
+     * @param len   the length of the data
+     */
+    public void write(int tip, byte[] data, int len) throws IOException
+    {
+        assert tip > 0 && tip < tipCount;
+        if(len > SEGMENT_SIZE)
+        {
+            throw new IOException("Way-node index of tile %06X exceeds 1 GB"
+                .formatted(tip));
+        }
+        long ofs = reserve(len);
+        writeFully(ByteBuffer.wrap(data, 0, len), ofs);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putLong(ofs);
+        entry.putInt(len);
+        entry.putInt(0);
+        entry.flip();
+        writeFully(entry, HEADER_SIZE + (long)tip * ENTRY_SIZE);
+    }
+
+    public void close() throws IOException
+    {
+        channel.force(false);
+        channel.close();
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
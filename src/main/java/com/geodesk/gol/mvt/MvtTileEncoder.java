@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.mvt;
+
+import com.clarisma.common.pbf.PbfOutputStream;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.FeatureType;
+import com.geodesk.feature.Tags;
+import com.geodesk.gol.query.Simplifier;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes the features of a single tile as a Mapbox Vector Tile (version
+ * 2.1 of the specification). Geometries are snapped to the tile's grid
+ * (so large features in low-zoom tiles shed most of their vertices before
+ * they are clipped), clipped to the tile (plus a small buffer), simplified
+ * to the tile's resolution, and quantized to tile coordinates (with the
+ * y-axis pointing down). All tag values are encoded as strings. The ID of
+ * a feature is its OSM ID, shifted left by two bits, with the lower bits
+ * indicating its type (1 = node, 2 = way, 3 = relation).
+ *
+ * Not threadsafe; each tile needs its own encoder.
+ */
+public class MvtTileEncoder
+{
+    /**
+     * The number of units per tile side
+     */
+    public static final int EXTENT = 4096;
+
+    /**
+     * The width of the buffer around the tile (in tile units); geometries
+     * are clipped to the buffered tile, so lines and polygons that cross
+     * the tile edge can be rendered without seams
+     */
+    public static final int BUFFER = 64;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_BYTES = 2;
+
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+    private static final int CLOSE_PATH = 7;
+
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+
+    private final double minX;
+    private final double topY;
+    private final double scale;
+    private final double tolerance;
+    private final Envelope clipEnvelope;
+    private final Geometry clipBox;
+    private final Simplifier snapper;
+    private final List<LayerBuilder> layers = new ArrayList<>();
+    private LayerBuilder layer;
+
+    private final PbfOutputStream geometry = new PbfOutputStream();
+    private final PbfOutputStream tags = new PbfOutputStream();
+    private final PbfOutputStream feature = new PbfOutputStream();
+    private int cursorX;
+    private int cursorY;
+    private int[] xs = new int[256];
+    private int[] ys = new int[256];
+
+    /**
+     * The features of a layer, along with the keys and values
+     * they reference.
+     */
+    private static class LayerBuilder
+    {
+        final PbfOutputStream message = new PbfOutputStream();
+        final Map<String,Integer> keys = new HashMap<>();
+        final Map<String,Integer> values = new HashMap<>();
+        int featureCount;
+
+        LayerBuilder(String name)
+        {
+            writeKey(message, 15, WIRE_VARINT);
+            message.writeVarint(2);                 // version
+            writeString(message, 1, name);
+        }
+
+        int key(String k)
+        {
+            Integer n = keys.get(k);
+            if(n == null)
+            {
+                n = keys.size();
+                keys.put(k, n);
+                writeString(message, 3, k);
+            }
+            return n;
+        }
+
+        int value(String v)
+        {
+            Integer n = values.get(v);
+            if(n == null)
+            {
+                n = values.size();
+                values.put(v, n);
+                PbfOutputStream value = new PbfOutputStream();
+                writeString(value, 1, v);           // string_value
+                writeMessage(message, 4, value);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * @param zoom      the zoom level of the tile
+     * @param col       the column of the tile
+     * @param row       the row of the tile (0 is the northernmost row)
+     * @param simplify  whether to snap and simplify geometries to the
+     *                  tile's resolution (usually not done at the highest
+     *                  zoom level, so clients can overzoom)
+     */
+    public MvtTileEncoder(int zoom, int col, int row, boolean simplify)
+    {
+        double size = (double)(1L << (32 - zoom));
+        minX = Integer.MIN_VALUE + col * size;
+        topY = (double)(1L << 31) - row * size;
+        scale = EXTENT / size;
+        tolerance = simplify ? size / EXTENT : 0;
+        double buffer = size * BUFFER / EXTENT;
+        clipEnvelope = new Envelope(minX - buffer, minX + size + buffer,
+            topY - size - buffer, topY + buffer);
+        clipBox = new GeometryFactory().toGeometry(clipEnvelope);
+        if(simplify)
+        {
+            // The grid lines up with the tile units, so snapping doesn't
+            // change the quantized coordinates
+            snapper = new Simplifier();
+            snapper.grid(Simplifier.EARTH_CIRCUMFERENCE / (1L << zoom) / EXTENT);
+        }
+        else
+        {
+            snapper = null;
+        }
+    }
+
+    private static void writeKey(PbfOutputStream out, int field, int wireType)
+    {
+        out.writeVarint((field << 3) | wireType);
+    }
+
+    private static void writeMessage(PbfOutputStream out, int field, PbfOutputStream msg)
+    {
+        writeKey(out, field, WIRE_BYTES);
+        out.writeString(msg.buffer(), 0, msg.size());
+    }
+
+    private static void writeString(PbfOutputStream out, int field, String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeKey(out, field, WIRE_BYTES);
+        out.writeString(bytes, 0, bytes.length);
+    }
+
+    static int zigzag(int n)
+    {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * Starts a new layer; subsequent features are added to this layer.
+     */
+    public void startLayer(String name)
+    {
+        layer = new LayerBuilder(name);
+        layers.add(layer);
+    }
+
+    private void writeCommand(int command, int count)
+    {
+        geometry.writeVarint((command & 7) | (count << 3));
+    }
+
+    private void writePoint(int x, int y)
+    {
+        geometry.writeVarint(zigzag(x - cursorX));
+        geometry.writeVarint(zigzag(y - cursorY));
+        cursorX = x;
+        cursorY = y;
+    }
+
+    /**
+     * Converts coordinates to tile units, dropping consecutive duplicates.
+     * The result is placed in `xs` and `ys`.
+     *
+     * @return the number of points
+     */
+    private int quantize(Coordinate[] coords)
+    {
+        if(xs.length < coords.length)
+        {
+            xs = new int[coords.length];
+            ys = new int[coords.length];
+        }
+        int n = 0;
+        for(Coordinate c: coords)
+        {
+            int x = (int)Math.round((c.x - minX) * scale);
+            int y = (int)Math.round((topY - c.y) * scale);
+            if(n > 0 && x == xs[n-1] && y == ys[n-1]) continue;
+            xs[n] = x;
+            ys[n] = y;
+            n++;
+        }
+        return n;
+    }
+
+    private boolean encodeLine(LineString line)
+    {
+        int n = quantize(line.getCoordinates());
+        if(n < 2) return false;
+        writeCommand(MOVE_TO, 1);
+        writePoint(xs[0], ys[0]);
+        writeCommand(LINE_TO, n-1);
+        for(int i=1; i<n; i++) writePoint(xs[i], ys[i]);
+        return true;
+    }
+
+    /**
+     * Encodes a ring of a polygon. The ring is reversed if necessary, so
+     * exterior rings have a positive area and interior rings a negative
+     * area (in tile coordinates).
+     *
+     * @return false if the ring has collapsed (fewer than 3 distinct points)
+     */
+    private boolean encodeRing(LinearRing ring, boolean exterior)
+    {
+        int n = quantize(ring.getCoordinates());
+        if(n > 1 && xs[0] == xs[n-1] && ys[0] == ys[n-1]) n--;  // closed by ClosePath
+        if(n < 3) return false;
+        long area = 0;
+        for(int i=0; i<n; i++)
+        {
+            int j = (i + 1) % n;
+            area += (long)xs[i] * ys[j] - (long)xs[j] * ys[i];
+        }
+        if(area == 0) return false;
+        boolean reverse = (area > 0) != exterior;
+        writeCommand(MOVE_TO, 1);
+        writePoint(xs[reverse ? n-1 : 0], ys[reverse ? n-1 : 0]);
+        writeCommand(LINE_TO, n-1);
+        for(int i=1; i<n; i++)
+        {
+            int p = reverse ? n-1-i : i;
+            writePoint(xs[p], ys[p]);
+        }
+        writeCommand(CLOSE_PATH, 1);
+        return true;
+    }
+
+    private boolean encodePolygon(Polygon polygon)
+    {
+        if(!encodeRing(polygon.getExteriorRing(), true)) return false;
+        for(int i=0; i<polygon.getNumInteriorRing(); i++)
+        {
+            encodeRing(polygon.getInteriorRingN(i), false);
+        }
+        return true;
+    }
+
+    /**
+     * Collects the points, lines or polygons of a geometry (which may be a
+     * collection) that have the given dimension.
+     */
+    private static void collect(Geometry g, int dimension, List<Geometry> parts)
+    {
+        if(g instanceof GeometryCollection)
+        {
+            for(int i=0; i<g.getNumGeometries(); i++)
+            {
+                collect(g.getGeometryN(i), dimension, parts);
+            }
+            return;
+        }
+        if(g.getDimension() == dimension && !g.isEmpty()) parts.add(g);
+    }
+
+    /**
+     * Encodes the geometry into `geometry`. Collections are reduced to the
+     * parts with the highest dimension (e.g. the polygons of a collection
+     * that contains polygons and lines).
+     *
+     * @return the MVT geometry type, or 0 if nothing is left of the geometry
+     *         at the resolution of the tile
+     */
+    int encodeGeometry(Geometry g)
+    {
+        int dimension = g.getDimension();
+        List<Geometry> parts = new ArrayList<>();
+        collect(g, dimension, parts);
+        geometry.reset();
+        cursorX = 0;
+        cursorY = 0;
+        boolean encoded = false;
+        switch(dimension)
+        {
+        case 0:
+            Coordinate[] coords = new Coordinate[parts.size()];
+            for(int i=0; i<coords.length; i++) coords[i] = parts.get(i).getCoordinate();
+            int n = quantize(coords);
+            if(n == 0) return 0;
+            writeCommand(MOVE_TO, n);
+            for(int i=0; i<n; i++) writePoint(xs[i], ys[i]);
+            return POINT;
+        case 1:
+            for(Geometry p: parts) encoded |= encodeLine((LineString)p);
+            return encoded ? LINESTRING : 0;
+        case 2:
+            for(Geometry p: parts) encoded |= encodePolygon((Polygon)p);
+            return encoded ? POLYGON : 0;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the commands and parameters written by the last call
+     * to {@link #encodeGeometry}.
+     */
+    byte[] encodedGeometry()
+    {
+        return geometry.toByteArray();
+    }
+
+    private static int typeCode(FeatureType type)
+    {
+        return switch(type)
+        {
+            case NODE -> 1;
+            case WAY -> 2;
+            default -> 3;
+        };
+    }
+
+    /**
+     * Clips a geometry to the buffered tile.
+     *
+     * @param g         the geometry (possibly snapped)
+     * @param original  the geometry before snapping
+     * @return the clipped geometry, or null if it cannot be clipped
+     */
+    private Geometry clip(Geometry g, Geometry original)
+    {
+        try
+        {
+            return clipBox.intersection(g);
+        }
+        catch(TopologyException ex)
+        {
+            // Snapping can make a polygon invalid, in which case we clip
+            // the original instead. An invalid geometry can't be clipped
+            // at all; leave it out, rather than failing the entire tile
+            return g == original ? null : clip(original, original);
+        }
+    }
+
+    /**
+     * Adds a feature to the current layer. The feature is skipped if its
+     * geometry lies outside the (buffered) tile, or vanishes when
+     * quantized to tile units.
+     *
+     * @param f     the feature
+     * @param keys  the keys of the tags to include (null for all)
+     */
+    public void addFeature(Feature f, Set<String> keys)
+    {
+        Geometry original = f.toGeometry();
+        if(original == null || original.isEmpty()) return;
+        Envelope env = original.getEnvelopeInternal();
+        if(!clipEnvelope.intersects(env)) return;
+        Geometry g = snapper != null ? snapper.simplify(original) : original;
+        if(!clipEnvelope.contains(env))
+        {
+            g = clip(g, original);
+            if(g == null || g.isEmpty()) return;
+        }
+        if(tolerance > 0 && g.getDimension() > 0)
+        {
+            g = DouglasPeuckerSimplifier.simplify(g, tolerance);
+        }
+        int type = encodeGeometry(g);
+        if(type == 0) return;
+
+        tags.reset();
+        Tags t = f.tags();
+        while(t.next())
+        {
+            String k = t.key();
+            if(keys != null && !keys.contains(k)) continue;
+            tags.writeVarint(layer.key(k));
+            tags.writeVarint(layer.value(t.stringValue()));
+        }
+
+        feature.reset();
+        writeKey(feature, 1, WIRE_VARINT);
+        feature.writeVarint((f.id() << 2) | typeCode(f.type()));
+        if(tags.size() > 0) writeMessage(feature, 2, tags);     // packed
+        writeKey(feature, 3, WIRE_VARINT);
+        feature.writeVarint(type);
+        writeMessage(feature, 4, geometry);                       // packed
+        writeMessage(layer.message, 2, feature);
+        layer.featureCount++;
+    }
+
+    /**
+     * Returns the encoded tile, or null if none of its layers has any
+     * features.
+     */
+    public byte[] encode()
+    {
+        PbfOutputStream tile = new PbfOutputStream();
+        for(LayerBuilder lb: layers)
+        {
+            if(lb.featureCount == 0) continue;
+            writeKey(lb.message, 5, WIRE_VARINT);
+            lb.message.writeVarint(EXTENT);
+            writeMessage(tile, 3, lb.message);
+        }
+        return tile.size() == 0 ? null : tile.toByteArray();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.mvt;
+
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Mercator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes tiles into a single-file archive in the PMTiles format
+ * (version 3), which can be served directly from a file or via HTTP
+ * range requests.
+ *
+ * Tiles can be added in any order, by multiple threads; they are
+ * appended to a temporary file as they arrive. {@link #finish} sorts
+ * the tiles by tile ID, writes the header, directories and metadata,
+ * and copies the tiles into place (so the archive is clustered).
+ * Directories and metadata are gzip-compressed; tiles must already be
+ * compressed by the caller (the header declares them as gzipped MVT).
+ * Identical tiles are not deduplicated.
+ */
+public class PmTilesWriter implements Closeable
+{
+    private final Path path;
+    private final Path tempPath;
+    private final FileChannel tempChannel;
+    private long tempSize;
+    private final List<long[]> entries = new ArrayList<>();
+        // tile ID, offset, length, run length
+
+    static final int HEADER_SIZE = 127;
+
+    /**
+     * The maximum combined size of the header and root directory (clients
+     * fetch this many bytes in their first request)
+     */
+    static final int MAX_ROOT_SIZE = 16384;
+
+    private static final int COMPRESSION_GZIP = 2;
+    private static final int TILE_TYPE_MVT = 1;
+
+    /**
+     * The highest latitude that can be displayed in Web Mercator
+     */
+    private static final double MAX_LAT = 85.0511287798;
+
+    public PmTilesWriter(Path path) throws IOException
+    {
+        this.path = path;
+        Path dir = path.toAbsolutePath().getParent();
+        tempPath = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        tempChannel = FileChannel.open(tempPath, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Returns the PMTiles ID of a tile: the number of tiles at all lower
+     * zoom levels, plus the position of the tile along a Hilbert curve
+     * through the tiles of its zoom level.
+     */
+    public static long tileId(int zoom, int col, int row)
+    {
+        long id = ((1L << (2 * zoom)) - 1) / 3;
+        long n = 1L << zoom;
+        long x = col;
+        long y = row;
+        for(long s = n / 2; s > 0; s /= 2)
+        {
+            long rx = (x & s) != 0 ? 1 : 0;
+            long ry = (y & s) != 0 ? 1 : 0;
+            id += s * s * ((3 * rx) ^ ry);
+            if(ry == 0)
+            {
+                if(rx == 1)
+                {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Adds a tile (threadsafe).
+     *
+     * @param data  the tile's (compressed) contents
+     */
+    public synchronized void addTile(int zoom, int col, int row, byte[] data) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while(buf.hasRemaining()) tempChannel.write(buf);
+        entries.add(new long[] { tileId(zoom, col, row), tempSize, data.length, 1 });
+        tempSize += data.length;
+    }
+
+    public synchronized int tileCount()
+    {
+        return entries.size();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v)
+    {
+        while((v & ~0x7fL) != 0)
+        {
+            out.write((int)((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int)v);
+    }
+
+    /**
+     * Compresses a tile (or a directory) in the format declared in the
+     * header.
+     */
+    public static byte[] gzip(byte[] data)
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 2 + 64);
+        try(GZIPOutputStream out = new GZIPOutputStream(buf))
+        {
+            out.write(data);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);     // can't happen in memory
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Encodes a range of directory entries (compressed): the number of
+     * entries, followed by the delta-encoded tile IDs, the run lengths,
+     * the lengths and the offsets (0 if an entry immediately follows
+     * the previous entry, otherwise offset + 1).
+     */
+    static byte[] encodeDirectory(List<long[]> entries, int start, int end)
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeVarint(buf, end - start);
+        long lastId = 0;
+        for(int i=start; i<end; i++)
+        {
+            long id = entries.get(i)[0];
+            writeVarint(buf, id - lastId);
+            lastId = id;
+        }
+        for(int i=start; i<end; i++) writeVarint(buf, entries.get(i)[3]);
+        for(int i=start; i<end; i++) writeVarint(buf, entries.get(i)[2]);
+        for(int i=start; i<end; i++)
+        {
+            long[] e = entries.get(i);
+            if(i > start)
+            {
+                long[] prev = entries.get(i-1);
+                if(e[1] == prev[1] + prev[2])
+                {
+                    writeVarint(buf, 0);
+                    continue;
+                }
+            }
+            writeVarint(buf, e[1] + 1);
+        }
+        return gzip(buf.toByteArray());
+    }
+
+    /**
+     * Encodes the directories for the given entries (sorted by tile ID).
+     * If the root directory is too large, the entries are split into leaf
+     * directories (doubling their size until the root fits); each entry
+     * of the root then points to a leaf directory (run length 0, offset
+     * relative to the start of the leaf directories).
+     *
+     * @return the root directory and the leaf directories (empty if
+     *   the root directory holds all entries)
+     */
+    static byte[][] encodeDirectories(List<long[]> entries)
+    {
+        byte[] root = encodeDirectory(entries, 0, entries.size());
+        byte[] leaves = new byte[0];
+        for(int leafSize = 4096; HEADER_SIZE + root.length > MAX_ROOT_SIZE; leafSize *= 2)
+        {
+            ByteArrayOutputStream leafBuf = new ByteArrayOutputStream();
+            List<long[]> rootEntries = new ArrayList<>();
+            for(int i=0; i<entries.size(); i+=leafSize)
+            {
+                byte[] leaf = encodeDirectory(entries, i, Math.min(i + leafSize, entries.size()));
+                rootEntries.add(new long[] { entries.get(i)[0], leafBuf.size(), leaf.length, 0 });
+                leafBuf.write(leaf, 0, leaf.length);
+            }
+            root = encodeDirectory(rootEntries, 0, rootEntries.size());
+            leaves = leafBuf.toByteArray();
+        }
+        return new byte[][] { root, leaves };
+    }
+
+    private static int e7(double degrees)
+    {
+        return (int)Math.round(degrees * 1e7);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException
+    {
+        while(buf.hasRemaining()) channel.write(buf);
+    }
+
+    /**
+     * Writes the archive.
+     *
+     * @param minZoom   the lowest zoom level of the tiles
+     * @param maxZoom   the highest zoom level of the tiles
+     * @param bounds    the area covered by the tiles (in Mercator projection)
+     * @param metadata  the metadata (a JSON object; for vector tiles, this
+     *                  should include the `vector_layers` key)
+     */
+    public synchronized void finish(int minZoom, int maxZoom, Bounds bounds,
+        String metadata) throws IOException
+    {
+        entries.sort(Comparator.comparingLong(e -> e[0]));
+
+        // Assign the offsets the tiles will have in the archive, keeping
+        // their original offsets (in the temporary file) for copying
+        long[] tempOffsets = new long[entries.size()];
+        long dataSize = 0;
+        for(int i=0; i<entries.size(); i++)
+        {
+            long[] e = entries.get(i);
+            tempOffsets[i] = e[1];
+            e[1] = dataSize;
+            dataSize += e[2];
+        }
+
+        byte[][] directories = encodeDirectories(entries);
+        byte[] root = directories[0];
+        byte[] leaves = directories[1];
+        byte[] meta = gzip(metadata.getBytes(StandardCharsets.UTF_8));
+
+        long rootOffset = HEADER_SIZE;
+        long metaOffset = rootOffset + root.length;
+        long leafOffset = metaOffset + meta.length;
+        long dataOffset = leafOffset + leaves.length;
+
+        double west = Mercator.lonFromX(bounds.minX());
+        double east = Mercator.lonFromX(bounds.maxX());
+        double south = Math.max(Mercator.latFromY(bounds.minY()), -MAX_LAT);
+        double north = Math.min(Mercator.latFromY(bounds.maxY()), MAX_LAT);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("PMTiles".getBytes(StandardCharsets.US_ASCII));
+        header.put((byte)3);                            // version
+        header.putLong(rootOffset);
+        header.putLong(root.length);
+        header.putLong(metaOffset);
+        header.putLong(meta.length);
+        header.putLong(leafOffset);
+        header.putLong(leaves.length);
+        header.putLong(dataOffset);
+        header.putLong(dataSize);
+        header.putLong(entries.size());                 // addressed tiles
+        header.putLong(entries.size());                 // tile entries
+        header.putLong(entries.size());                 // tile contents
+        header.put((byte)1);                            // clustered
+        header.put((byte)COMPRESSION_GZIP);             // internal compression
+        header.put((byte)COMPRESSION_GZIP);             // tile compression
+        header.put((byte)TILE_TYPE_MVT);
+        header.put((byte)minZoom);
+        header.put((byte)maxZoom);
+        header.putInt(e7(west));
+        header.putInt(e7(south));
+        header.putInt(e7(east));
+        header.putInt(e7(north));
+        header.put((byte)minZoom);                      // center zoom
+        header.putInt(e7((west + east) / 2));
+        header.putInt(e7((south + north) / 2));
+        header.flip();
+
+        try(FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            write(out, header);
+            write(out, ByteBuffer.wrap(root));
+            write(out, ByteBuffer.wrap(meta));
+            write(out, ByteBuffer.wrap(leaves));
+            for(int i=0; i<entries.size(); i++)
+            {
+                long pos = tempOffsets[i];
+                long remaining = entries.get(i)[2];
+                while(remaining > 0)
+                {
+                    long n = tempChannel.transferTo(pos, remaining, out);
+                    pos += n;
+                    remaining -= n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary file (the archive itself is only written
+     * by {@link #finish}).
+     */
+    @Override public void close() throws IOException
+    {
+        tempChannel.close();
+        Files.deleteIfExists(tempPath);
+    }
+}
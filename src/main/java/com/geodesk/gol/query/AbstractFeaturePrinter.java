@@ -8,20 +8,20 @@
 package com.geodesk.gol.query;
 
 import com.clarisma.common.cli.Converter;
+import com.clarisma.common.io.Utf8Sink;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Tags;
 import com.geodesk.util.CoordinateTransformer;
 
-import java.io.IOException;
-import java.io.PrintStream;
 import java.util.*;
 
 // TODO: rename to AbstractFormatter
 public abstract class AbstractFeaturePrinter implements FeaturePrinter
 {
-    protected final PrintStream out;
+    protected final Utf8Sink out;
     protected List<Column> columns;
     private Map<String,Column> keyToColumn;
+    private List<Column> keyColumns;
     private List<Column> wildcardColumns;
     protected Column anyColumn;
     protected Column bboxColumn;
@@ -34,12 +34,13 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
     protected int columnNumber;
     protected int propertyNumber;
     protected CoordinateTransformer transformer;
+    protected int precision = 7;
     protected boolean fillEmptyColumns;
         // If true, printProperty() will be called even if the feature does
         // not have this tag; required to maintain column structure for CSV
         // output (#108)
 
-    protected AbstractFeaturePrinter(PrintStream out)
+    protected AbstractFeaturePrinter(Utf8Sink out)
     {
         this.out = out;
     }
@@ -49,9 +50,17 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
         this.transformer = transformer;
     }
 
+    /**
+     * Sets the maximum number of decimal places of transformed coordinates.
+     */
+    public void precision(int precision)
+    {
+        this.precision = precision;
+    }
+
     static class Property implements Comparable<Property>
     {
-        final String key;
+        String key;
         String value;
 
         Property(String k)
@@ -71,25 +80,48 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
         final String startsWith;
         final String endsWith;
 
+        /**
+         * Properties that have been cleared, and can be reused (so we don't
+         * allocate a Property for every tag of every feature)
+         */
+        private final List<Property> spareProperties;
+
         Column(String key, String startsWith, String endsWith)
         {
             super(key);
-            properties = (startsWith != null || endsWith != null) ? new ArrayList<>() : null;
+            boolean wildcard = startsWith != null || endsWith != null;
+            properties = wildcard ? new ArrayList<>() : null;
+            spareProperties = wildcard ? new ArrayList<>() : null;
             this.startsWith = startsWith;
             this.endsWith = endsWith;
         }
 
         void addProperty(String k, String v)
         {
-            Property p = new Property(k);
+            int spareCount = spareProperties.size();
+            Property p = spareCount > 0 ?
+                spareProperties.remove(spareCount-1) : new Property(null);
+            p.key = k;
             p.value = v;
             properties.add(p);
         }
+
+        void clearProperties()
+        {
+            spareProperties.addAll(properties);
+            properties.clear();
+        }
     }
 
+    /**
+     * Marks keys that don't belong to any column (in `keyToColumn`)
+     */
+    private static final Column NO_COLUMN = new Column("", null, null);
+
     public void columns(String[] colSpecs)
     {
         columns = new ArrayList<>();
+        keyColumns = new ArrayList<>();
         wildcardColumns = new ArrayList<>();
         keyToColumn = new HashMap<>();
 
@@ -142,6 +174,7 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
                     break;
                 default:
                     keyToColumn.put(colSpec, col);
+                    keyColumns.add(col);
                     break;
                 }
             }
@@ -152,36 +185,69 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
     // Should this method take care of string escaping?
     //  But different formats may use different escape approaches
 
+    /**
+     * Assigns the tags of a feature to the columns. If all columns are
+     * for specific keys, their values are looked up directly, rather than
+     * iterating all of the feature's tags.
+     */
+    protected void extractProperties(Feature f)
+    {
+        if(anyColumn == null && wildcardColumns.isEmpty())
+        {
+            for(Column col: keyColumns)
+            {
+                String v = f.stringValue(col.key);
+                if(!v.isEmpty()) col.value = v;
+            }
+            return;
+        }
+        extractProperties(f.tags());
+    }
+
+    /**
+     * Returns the column to which tags with the given key belong. Keys
+     * are matched against the wildcard columns only the first time they
+     * are encountered; the result is stored in `keyToColumn`.
+     */
+    private Column columnOfKey(String k)
+    {
+        Column col = keyToColumn.get(k);
+        if(col != null) return col;
+        col = anyColumn != null ? anyColumn : NO_COLUMN;
+        for(Column c: wildcardColumns)
+        {
+            if(k.startsWith(c.startsWith) && k.endsWith(c.endsWith))
+            {
+                col = c;
+                break;
+            }
+        }
+        keyToColumn.put(k, col);
+        return col;
+    }
+
     protected void extractProperties(Tags tags)
     {
-    loop:
         while(tags.next())
         {
-
-            String k = tags.key();
-            Column keyCol = keyToColumn.get(k);
-            if(keyCol != null)
+            Column col = columnOfKey(tags.key());
+            if(col == NO_COLUMN) continue;
+            if(col.properties != null)
             {
-                keyCol.value = tags.stringValue();
-                continue;
+                col.addProperty(tags.key(), tags.stringValue());
             }
-            for(Column c: wildcardColumns)
+            else
             {
-                if(k.startsWith(c.startsWith) && k.endsWith(c.endsWith))
-                {
-                    c.addProperty(k, tags.stringValue());
-                    continue loop;
-                }
+                col.value = tags.stringValue();
             }
-            if(anyColumn != null) anyColumn.addProperty(k, tags.stringValue());
         }
     }
 
     protected void setCoordinateProperties(Feature f)
     {
         // TODO: respect `--center` option
-        if(lonColumn != null) lonColumn.value = transformer.toString(f.lon());
-        if(latColumn != null) latColumn.value = transformer.toString(f.lat());
+        if(lonColumn != null) lonColumn.value = Utf8Sink.formatFixed(f.lon(), precision);
+        if(latColumn != null) latColumn.value = Utf8Sink.formatFixed(f.lat(), precision);
         if(xColumn != null) xColumn.value = transformer.toString(f.x());
         if(yColumn != null) yColumn.value = transformer.toString(f.y());
     }
@@ -210,13 +276,13 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
             beginColumn(col);
             if(col.properties != null)
             {
-                Collections.sort(col.properties);
+                if(col.properties.size() > 1) Collections.sort(col.properties);
                 for (Property p : col.properties)
                 {
                     printProperty(p.key, p.value);
                     propertyNumber++;
                 }
-                col.properties.clear();
+                col.clearProperties();
             }
             else
             {
@@ -243,7 +309,7 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
         {
             if(col.properties != null)
             {
-                col.properties.clear();
+                col.clearProperties();
             }
             else
             {
@@ -255,19 +321,22 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
     protected void printNumber(double value)
     {
         long longValue = (long)value;
-        out.print((value == longValue) ? Long.toString(longValue) : Double.toString(value));
-    }
-
-    protected void printX(double x)
-    {
-        try
+        if(value == longValue)
         {
-            transformer.writeX(out, x);
+            out.print(longValue);
         }
-        catch(IOException ex)
+        else
         {
-            throw new RuntimeException(ex);
+            out.print(value);
         }
+    }
+
+    // Formatting the transformed value ourselves is much faster than
+    // transformer.writeX/writeY (which go through Double.toString)
+
+    protected void printX(double x)
+    {
+        out.printFixed(transformer.transformX(x), precision);
         /*
         // TODO: projection
         x = Mercator.lonFromX(x);
@@ -277,14 +346,7 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
 
     protected void printY(double y)
     {
-        try
-        {
-            transformer.writeY(out, y);
-        }
-        catch(IOException ex)
-        {
-            throw new RuntimeException(ex);
-        }
+        out.printFixed(transformer.transformY(y), precision);
         /*
         // TODO: projection
         y = Mercator.latFromY(y);
@@ -297,6 +359,57 @@ public abstract class AbstractFeaturePrinter implements FeaturePrinter
         return false;
     }
 
+    /**
+     * Checks whether the output of several printers of this kind (each of
+     * which has printed a subset of features, without header and footer)
+     * can be concatenated. If so, features can be printed in parallel.
+     */
+    public boolean isMergeable()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the text that must be placed between the output of two
+     * printers whose output is being concatenated.
+     */
+    public String featureSeparator()
+    {
+        return "";
+    }
+
+    /**
+     * Informs this printer that features have been printed to its stream
+     * by other printers (so its footer can be printed accordingly).
+     */
+    public void featuresPrinted()
+    {
+        // do nothing
+    }
+
+    /**
+     * Prepares this printer to print the next feature as a standalone
+     * record, the same way it would print the first feature after its
+     * header (the records of a mergeable printer are later joined using
+     * {@link #featureSeparator()}). Printers that keep state between
+     * features must reset it here.
+     */
+    public void startRecord()
+    {
+        // do nothing
+    }
+
+    /**
+     * Releases the resources held by this printer (such as threads or
+     * temporary files). Called once the query is done, whether it has
+     * succeeded or not, so it must also work if the footer has already
+     * been printed, or the header has never been printed.
+     */
+    public void close()
+    {
+        // do nothing
+    }
+
     public static void checkValue(String value)
     {
         if(value == null || value.isEmpty())
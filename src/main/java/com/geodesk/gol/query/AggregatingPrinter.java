@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+/**
+ * A printer that aggregates features into a report (rather than printing
+ * them one by one), and whose state can be combined with the state of
+ * other printers of its kind, each of which has processed a subset of
+ * features. This allows features to be processed in parallel. The header
+ * of an aggregating printer must not produce any output, since it is also
+ * called for each of the printers that are merged.
+ */
+public interface AggregatingPrinter
+{
+    /**
+     * Adds the state of another printer of the same kind (configured the
+     * same way) to this printer.
+     */
+    void merge(AggregatingPrinter other);
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.Filters;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Tile;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * An area (e.g. a country polygon read from a .poly file), rasterized into
+ * a grid of cells (tiles of a single zoom level). Each cell is classified
+ * as lying entirely inside the area, entirely outside, or on its boundary.
+ *
+ * For a large, irregular area, most cells are either inside or outside:
+ * cells that are outside can be skipped, and features that lie within
+ * cells that are inside are known to intersect the area without having
+ * to test their geometry. Only features that touch the boundary cells
+ * need an exact intersection test.
+ *
+ * Classification is done once, up front; afterwards, an instance can be
+ * used by multiple threads.
+ */
+public class AreaCoverage
+{
+    public static final int OUTSIDE = 0;
+    public static final int BOUNDARY = 1;
+    public static final int INSIDE = 2;
+
+    private final int zoom;
+    private final int startCol;
+    private final int startRow;
+    private final int colCount;
+    private final int rowCount;
+    private final byte[] cells;
+
+    /**
+     * A filter for exact intersection tests (one per thread, since the
+     * prepared geometry used by the filter is not threadsafe)
+     */
+    private final ThreadLocal<Filter> filter;
+
+    public AreaCoverage(Geometry area, int zoom)
+    {
+        this.zoom = zoom;
+        filter = ThreadLocal.withInitial(() -> Filters.intersects(area));
+        Envelope env = area.getEnvelopeInternal();
+        startCol = Tile.columnFromXZ((int)Math.floor(env.getMinX()), zoom);
+        int endCol = Tile.columnFromXZ((int)Math.ceil(env.getMaxX()), zoom);
+        int row1 = Tile.rowFromYZ((int)Math.floor(env.getMinY()), zoom);
+        int row2 = Tile.rowFromYZ((int)Math.ceil(env.getMaxY()), zoom);
+        startRow = Math.min(row1, row2);
+        colCount = endCol - startCol + 1;
+        rowCount = Math.max(row1, row2) - startRow + 1;
+        cells = new byte[colCount * rowCount];
+
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(area);
+        GeometryFactory factory = area.getFactory();
+        for(int row=0; row<rowCount; row++)
+        {
+            for(int col=0; col<colCount; col++)
+            {
+                Bounds b = Tile.bounds(Tile.fromColumnRowZoom(
+                    startCol + col, startRow + row, zoom));
+                Geometry cell = factory.toGeometry(new Envelope(
+                    b.minX(), b.maxX(), b.minY(), b.maxY()));
+                int type;
+                if(prepared.contains(cell))
+                {
+                    type = INSIDE;
+                }
+                else if(prepared.intersects(cell))
+                {
+                    type = BOUNDARY;
+                }
+                else
+                {
+                    type = OUTSIDE;
+                }
+                cells[row * colCount + col] = (byte)type;
+            }
+        }
+    }
+
+    public int zoom()
+    {
+        return zoom;
+    }
+
+    /**
+     * Returns a filter that tests whether a feature intersects the area.
+     * The filter must only be used by the calling thread.
+     */
+    public Filter filter()
+    {
+        return filter.get();
+    }
+
+    private int classify(int col, int row)
+    {
+        col -= startCol;
+        row -= startRow;
+        if(col < 0 || col >= colCount || row < 0 || row >= rowCount) return OUTSIDE;
+        return cells[row * colCount + col];
+    }
+
+    /**
+     * Classifies a cell (a tile at this coverage's zoom level).
+     *
+     * @return OUTSIDE, BOUNDARY or INSIDE
+     */
+    public int classifyCell(int cell)
+    {
+        return classify(Tile.column(cell), Tile.row(cell));
+    }
+
+    /**
+     * Returns the first cell (in row order) that is touched by the
+     * given bounding box and is not outside the area, or -1 if all the
+     * cells it touches lie outside. This is used to assign each feature
+     * to exactly one cell.
+     */
+    public int firstCell(Bounds b)
+    {
+        int col1 = Tile.columnFromXZ(b.minX(), zoom);
+        int col2 = Tile.columnFromXZ(b.maxX(), zoom);
+        int row1 = Tile.rowFromYZ(b.minY(), zoom);
+        int row2 = Tile.rowFromYZ(b.maxY(), zoom);
+        int startRow = Math.max(Math.min(row1, row2), this.startRow);
+        int endRow = Math.min(Math.max(row1, row2), this.startRow + rowCount - 1);
+        int startCol = Math.max(col1, this.startCol);
+        int endCol = Math.min(col2, this.startCol + colCount - 1);
+        for(int row=startRow; row<=endRow; row++)
+        {
+            for(int col=startCol; col<=endCol; col++)
+            {
+                if(classify(col, row) != OUTSIDE) return Tile.fromColumnRowZoom(col, row, zoom);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the given bounding box lies entirely within cells
+     * that are inside the area (and hence within the area itself).
+     */
+    public boolean isInside(Bounds b)
+    {
+        int col1 = Tile.columnFromXZ(b.minX(), zoom);
+        int col2 = Tile.columnFromXZ(b.maxX(), zoom);
+        int row1 = Tile.rowFromYZ(b.minY(), zoom);
+        int row2 = Tile.rowFromYZ(b.maxY(), zoom);
+        int endRow = Math.max(row1, row2);
+        for(int row=Math.min(row1, row2); row<=endRow; row++)
+        {
+            for(int col=col1; col<=col2; col++)
+            {
+                if(classify(col, row) != INSIDE) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -7,18 +7,17 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Strings;
 import com.geodesk.feature.Feature;
 
-import java.io.PrintStream;
-
 public class CsvFeaturePrinter extends AbstractFeaturePrinter
 {
     private char colSeparator = ','; // '\t';
     private final StringBuilder buf = new StringBuilder();
     private Column currentColumn;
 
-    public CsvFeaturePrinter(PrintStream out)
+    public CsvFeaturePrinter(Utf8Sink out)
     {
         super(out);
         fillEmptyColumns = true;
@@ -50,7 +49,7 @@ public class CsvFeaturePrinter extends AbstractFeaturePrinter
         out.print(colSeparator);
         out.print(feature.id());
         setCoordinateProperties(feature);
-        extractProperties(feature.tags());
+        extractProperties(feature);
         printProperties();
         out.println();
     }
@@ -157,4 +156,9 @@ public class CsvFeaturePrinter extends AbstractFeaturePrinter
         resetColumns();
     }
      */
+
+    @Override public boolean isMergeable()
+    {
+        return true;
+    }
 }
@@ -7,14 +7,13 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Strings;
 import com.geodesk.feature.Feature;
 
-import java.io.PrintStream;
-
 public class FabFeaturePrinter extends AbstractFeaturePrinter
 {
-    public FabFeaturePrinter(PrintStream out)
+    public FabFeaturePrinter(Utf8Sink out)
     {
         super(out);
     }
@@ -44,9 +43,13 @@ public class FabFeaturePrinter extends AbstractFeaturePrinter
         }
         out.print(feature.id());
         out.println(':');
-        extractProperties(feature.tags());
+        extractProperties(feature);
         printProperties();
         out.println();
     }
 
+    @Override public boolean isMergeable()
+    {
+        return true;
+    }
 }
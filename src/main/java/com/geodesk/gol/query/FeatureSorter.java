@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.clarisma.common.io.ExternalRecordSorter;
+import com.clarisma.common.io.Utf8Sink;
+import com.geodesk.feature.Feature;
+import com.geodesk.geom.Bounds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Prints features in a deterministic order (rather than the order in which
+ * they are found in the tiles), so exports of the same query can be
+ * compared or merged line by line.
+ *
+ * Each feature is printed to its own record (by a single printer, which is
+ * reset via {@link AbstractFeaturePrinter#startRecord()} before each
+ * feature), and the records are sorted externally, using a bounded amount
+ * of memory. Since the sort key always includes the feature's type and ID,
+ * a feature is printed only once.
+ *
+ * Only works for printers whose output can be concatenated (see
+ * {@link AbstractFeaturePrinter#isMergeable()}). Not threadsafe.
+ */
+public class FeatureSorter implements Closeable
+{
+    public enum Order
+    {
+        /**
+         * By ID; features with the same ID are ordered node, way, relation
+         */
+        ID,
+
+        /**
+         * All nodes, then all ways, then all relations, each by ID
+         */
+        TYPE_ID,
+
+        /**
+         * By the position of the center of the feature's bounding box
+         * along a Hilbert curve (which keeps features that are close
+         * to each other together), then by type and ID
+         */
+        HILBERT
+    }
+
+    private final Order order;
+    private final AbstractFeaturePrinter recordPrinter;
+    private final ExternalRecordSorter sorter;
+    private final ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(4096);
+    private final Utf8Sink recordSink = new Utf8Sink(recordBuf);
+
+    private static final long MAX_SORT_MEMORY = 256L * 1024 * 1024;
+    private static final double WORLD_SIZE = 4294967295.0;
+
+    /**
+     * @param order             the sort order
+     * @param printerFactory    creates a printer (configured the same way as
+     *                          the printer that will print the header and
+     *                          footer) that prints to the given sink
+     */
+    public FeatureSorter(Order order, Function<Utf8Sink, AbstractFeaturePrinter> printerFactory)
+    {
+        this.order = order;
+        recordPrinter = printerFactory.apply(recordSink);
+        sorter = new ExternalRecordSorter(null, MAX_SORT_MEMORY);
+    }
+
+    private static int typeCode(Feature f)
+    {
+        return f.isNode() ? 0 : (f.isWay() ? 1 : 2);
+    }
+
+    /**
+     * Prints a feature to a record and adds it to the sort.
+     */
+    public void add(Feature f) throws IOException
+    {
+        recordPrinter.startRecord();
+        recordPrinter.print(f);
+        recordSink.flush();
+
+        int type = typeCode(f);
+        int group;
+        long id;
+        switch(order)
+        {
+        case TYPE_ID:
+            group = type;
+            id = f.id();
+            break;
+        case HILBERT:
+            Bounds b = f.bounds();
+            double centerX = ((double)b.minX() + b.maxX()) / 2;
+            double centerY = ((double)b.minY() + b.maxY()) / 2;
+            // The Hilbert distance is unsigned; flip its sign bit so the
+            // (signed) group compares in the same order
+            group = Hilbert.index(centerX, centerY, Integer.MIN_VALUE,
+                Integer.MIN_VALUE, WORLD_SIZE, WORLD_SIZE) ^ Integer.MIN_VALUE;
+            id = (f.id() << 2) | type;
+            break;
+        default:
+            group = 0;
+            id = (f.id() << 2) | type;
+            break;
+        }
+        sorter.add(group, id, recordBuf.toByteArray());
+        recordBuf.reset();
+    }
+
+    /**
+     * Writes the sorted records to the output of the given printer (whose
+     * header has already been printed), and informs the printer that
+     * features have been printed.
+     *
+     * @param printer   the printer that prints the header and footer
+     * @param out       the printer's output stream
+     * @param limit     the maximum number of features to print
+     * @return the number of features printed
+     */
+    public long print(AbstractFeaturePrinter printer, Utf8Sink out, long limit) throws IOException
+    {
+        String separator = printer.featureSeparator();
+        long[] count = new long[1];
+        sorter.merge((group, id, data, len) ->
+        {
+            if(count[0] > 0) out.print(separator);
+            out.write(data, 0, len);
+            count[0]++;
+        }, limit);
+        if(count[0] > 0) printer.featuresPrinted();
+        return count[0];
+    }
+
+    /**
+     * Deletes the temporary files used by the sort.
+     */
+    @Override public void close() throws IOException
+    {
+        sorter.close();
+    }
+}
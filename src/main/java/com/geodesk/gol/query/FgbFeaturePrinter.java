@@ -0,0 +1,656 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.clarisma.common.io.FlatBufferBuilder;
+import com.clarisma.common.io.Utf8Sink;
+import com.clarisma.common.text.Strings;
+import com.geodesk.feature.Feature;
+import com.geodesk.geom.Bounds;
+import com.geodesk.gol.GolTool;
+import org.eclipse.collections.impl.list.mutable.primitive.DoubleArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.locationtech.jts.geom.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes features as a FlatGeobuf file (https://flatgeobuf.org), including
+ * a packed Hilbert R-tree, so clients can fetch the features within a
+ * bounding box using HTTP range requests.
+ *
+ * The index can only be built once all features are known, and it must
+ * precede the features in the file. Each feature is therefore encoded
+ * as soon as it is printed and written to a temporary file; only its
+ * position and bounding box are kept in memory. The footer sorts the
+ * features along a Hilbert curve, writes the header and the index, and
+ * then copies the features from the temporary file in index order.
+ *
+ * The first column is the feature's ID (e.g. `W123`). Each column given
+ * via `-t` becomes a typed column: `lon`, `lat`, `x` and `y` are doubles,
+ * wildcard columns (and `*`, which is named `tags`) are JSON objects,
+ * and all other keys are strings. `bbox` and `geom` are omitted, as
+ * they are already part of each feature.
+ */
+public class FgbFeaturePrinter extends AbstractFeaturePrinter
+{
+    private static final byte[] MAGIC = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+
+    private static final int NODE_SIZE = 16;
+    private static final int NODE_ITEM_SIZE = 40;
+
+    // ColumnType
+    private static final int TYPE_DOUBLE = 10;
+    private static final int TYPE_STRING = 11;
+    private static final int TYPE_JSON = 12;
+
+    // GeometryType
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MULTIPOINT = 4;
+    private static final int MULTILINESTRING = 5;
+    private static final int MULTIPOLYGON = 6;
+    private static final int GEOMETRYCOLLECTION = 7;
+
+    private final FlatBufferBuilder fb = new FlatBufferBuilder(4096);
+    private final ByteArrayOutputStream props = new ByteArrayOutputStream();
+    private final StringBuilder json = new StringBuilder();
+
+    /**
+     * The FlatGeobuf column index of each of our columns (-1 if the
+     * column is not written as a property)
+     */
+    private int[] columnIndexes;
+    private String[] columnNames;
+    private int[] columnTypes;
+
+    private Path tempPath;
+    private OutputStream temp;
+    private long tempSize;
+    private final LongArrayList featureOffsets = new LongArrayList();
+    private final IntArrayList featureSizes = new IntArrayList();
+    private final DoubleArrayList featureBounds = new DoubleArrayList();
+
+    private double[] coords = new double[256];
+    private int coordCount;
+    private final IntArrayList ends = new IntArrayList();
+    private double minX, minY, maxX, maxY;
+
+    public FgbFeaturePrinter(Utf8Sink out)
+    {
+        super(out);
+    }
+
+    private void defineColumns()
+    {
+        int count = columns.size();
+        columnIndexes = new int[count];
+        columnNames = new String[count + 1];
+        columnTypes = new int[count + 1];
+        columnNames[0] = "id";
+        columnTypes[0] = TYPE_STRING;
+        int n = 1;
+        for(int i=0; i<count; i++)
+        {
+            Column col = columns.get(i);
+            int type;
+            if(col == bboxColumn || col == geomColumn)
+            {
+                columnIndexes[i] = -1;
+                continue;
+            }
+            if(col == lonColumn || col == latColumn || col == xColumn || col == yColumn)
+            {
+                type = TYPE_DOUBLE;
+            }
+            else if(col.properties != null)
+            {
+                type = TYPE_JSON;
+            }
+            else
+            {
+                type = TYPE_STRING;
+            }
+            columnIndexes[i] = n;
+            columnNames[n] = col == anyColumn ? "tags" : col.key;
+            columnTypes[n] = type;
+            n++;
+        }
+        columnNames = Arrays.copyOf(columnNames, n);
+        columnTypes = Arrays.copyOf(columnTypes, n);
+    }
+
+    @Override public void printHeader()
+    {
+        defineColumns();
+        try
+        {
+            tempPath = Files.createTempFile("gol-", ".fgb.tmp");
+            tempPath.toFile().deleteOnExit();
+            temp = new BufferedOutputStream(Files.newOutputStream(tempPath), 64 * 1024);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // Properties are little-endian
+
+    private void writeShort(int v)
+    {
+        props.write(v);
+        props.write(v >>> 8);
+    }
+
+    private void writeInt(int v)
+    {
+        writeShort(v);
+        writeShort(v >>> 16);
+    }
+
+    private void writeDouble(double v)
+    {
+        long bits = Double.doubleToRawLongBits(v);
+        writeInt((int)bits);
+        writeInt((int)(bits >>> 32));
+    }
+
+    private void writeString(int col, String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeShort(col);
+        writeInt(bytes.length);
+        props.write(bytes, 0, bytes.length);
+    }
+
+    private void writeDouble(int col, double v)
+    {
+        writeShort(col);
+        writeDouble(v);
+    }
+
+    @Override protected void beginColumn(Column column)
+    {
+        json.setLength(0);
+    }
+
+    @Override protected void endColumn(Column column)
+    {
+        if(json.length() == 0) return;
+        json.append('}');
+        writeString(columnIndexes[columnNumber], json.toString());
+    }
+
+    @Override protected void printProperty(String key, String value)
+    {
+        int col = columnIndexes[columnNumber];
+        if(col < 0) return;
+        if(columnTypes[col] == TYPE_JSON)
+        {
+            json.append(json.length() == 0 ? "{\"" : ",\"");
+            json.append(Strings.escapeForJson(key));
+            json.append("\":\"");
+            json.append(Strings.escapeForJson(value));
+            json.append('\"');
+            return;
+        }
+        writeString(col, value);
+    }
+
+    private void setCoordinateProperty(Column col, double value)
+    {
+        writeDouble(columnIndexes[columns.indexOf(col)], value);
+    }
+
+    private void printId(Feature feature)
+    {
+        char letter = switch(feature.type())
+        {
+            case NODE -> 'N';
+            case WAY -> 'W';
+            case RELATION -> 'R';
+        };
+        writeString(0, letter + Long.toString(feature.id()));
+    }
+
+    private void addCoordinate(double mercatorX, double mercatorY)
+    {
+        double x = transformer.transformX(mercatorX);
+        double y = transformer.transformY(mercatorY);
+        if(coordCount + 2 > coords.length) coords = Arrays.copyOf(coords, coords.length * 2);
+        coords[coordCount++] = x;
+        coords[coordCount++] = y;
+        if(x < minX) minX = x;
+        if(y < minY) minY = y;
+        if(x > maxX) maxX = x;
+        if(y > maxY) maxY = y;
+    }
+
+    private void addCoordinates(CoordinateSequence seq)
+    {
+        for(int i=0; i<seq.size(); i++)
+        {
+            addCoordinate(seq.getOrdinate(i, 0), seq.getOrdinate(i, 1));
+        }
+    }
+
+    /**
+     * Creates a Geometry table from the collected coordinates (and ring
+     * ends, if there is more than one ring), and clears them.
+     */
+    private int createGeometry(int type)
+    {
+        int endsVector = 0;
+        if(ends.size() > 1)
+        {
+            fb.startVector(4, ends.size(), 4);
+            for(int i=ends.size()-1; i>=0; i--) fb.addInt(ends.get(i));
+            endsVector = fb.endVector();
+        }
+        fb.startVector(8, coordCount, 8);
+        for(int i=coordCount-1; i>=0; i--) fb.addDouble(coords[i]);
+        int xyVector = fb.endVector();
+        fb.startTable(8);
+        fb.addOffsetField(0, endsVector);
+        fb.addOffsetField(1, xyVector);
+        fb.addByteField(6, type, 0);
+        coordCount = 0;
+        ends.clear();
+        return fb.endTable();
+    }
+
+    private int createParts(int type, int[] parts)
+    {
+        int partsVector = fb.createOffsetVector(parts, parts.length);
+        fb.startTable(8);
+        fb.addOffsetField(7, partsVector);
+        fb.addByteField(6, type, 0);
+        return fb.endTable();
+    }
+
+    private void addPolygon(Polygon g)
+    {
+        addCoordinates(g.getExteriorRing().getCoordinateSequence());
+        ends.add(coordCount / 2);
+        for(int i=0; i<g.getNumInteriorRing(); i++)
+        {
+            addCoordinates(g.getInteriorRingN(i).getCoordinateSequence());
+            ends.add(coordCount / 2);
+        }
+    }
+
+    private int createGeometry(Geometry g)
+    {
+        if(g instanceof Point)
+        {
+            Point pt = (Point)g;
+            addCoordinate(pt.getX(), pt.getY());
+            return createGeometry(POINT);
+        }
+        if(g instanceof LineString)
+        {
+            addCoordinates(((LineString)g).getCoordinateSequence());
+            return createGeometry(LINESTRING);
+        }
+        if(g instanceof Polygon)
+        {
+            addPolygon((Polygon)g);
+            return createGeometry(POLYGON);
+        }
+        if(g instanceof MultiPoint)
+        {
+            for(int i=0; i<g.getNumGeometries(); i++)
+            {
+                Point pt = (Point)g.getGeometryN(i);
+                addCoordinate(pt.getX(), pt.getY());
+            }
+            return createGeometry(MULTIPOINT);
+        }
+        if(g instanceof MultiLineString)
+        {
+            for(int i=0; i<g.getNumGeometries(); i++)
+            {
+                addCoordinates(((LineString)g.getGeometryN(i)).getCoordinateSequence());
+                ends.add(coordCount / 2);
+            }
+            return createGeometry(MULTILINESTRING);
+        }
+        if(g.getNumGeometries() == 1)
+        {
+            // unwrap single-member collections
+            return createGeometry(g.getGeometryN(0));
+        }
+        // Parts must be created before the table that references them
+        int[] parts = new int[g.getNumGeometries()];
+        for(int i=0; i<parts.length; i++) parts[i] = createGeometry(g.getGeometryN(i));
+        return createParts(g instanceof MultiPolygon ? MULTIPOLYGON : GEOMETRYCOLLECTION, parts);
+    }
+
+    /**
+     * Creates the geometry of a feature. Nodes and ways are written straight
+     * from their coordinates; only relations are assembled into JTS
+     * geometries.
+     */
+    private int createGeometry(Feature feature)
+    {
+        if(feature.isNode())
+        {
+            addCoordinate(feature.x(), feature.y());
+            return createGeometry(POINT);
+        }
+        if(feature.isWay())
+        {
+            int[] xy = feature.toXY();
+            for(int i=0; i<xy.length; i += 2) addCoordinate(xy[i], xy[i+1]);
+            return createGeometry(feature.isArea() ? POLYGON : LINESTRING);
+        }
+        return createGeometry(feature.toGeometry());
+    }
+
+    @Override public void print(Feature feature)
+    {
+        printId(feature);
+        if(lonColumn != null) setCoordinateProperty(lonColumn, feature.lon());
+        if(latColumn != null) setCoordinateProperty(latColumn, feature.lat());
+        // As in the other formats (see setCoordinateProperties()), x and y
+        // are the Mercator coordinates, not the transformed ones
+        if(xColumn != null) setCoordinateProperty(xColumn, feature.x());
+        if(yColumn != null) setCoordinateProperty(yColumn, feature.y());
+        extractProperties(feature);
+        printProperties();
+
+        minX = minY = Double.POSITIVE_INFINITY;
+        maxX = maxY = Double.NEGATIVE_INFINITY;
+        fb.clear();
+        int geometry = createGeometry(feature);
+        if(minX > maxX)
+        {
+            // Empty geometry: index the feature by its bounding box
+            Bounds b = feature.bounds();
+            minX = transformer.transformX(b.minX());
+            minY = transformer.transformY(b.minY());
+            maxX = transformer.transformX(b.maxX());
+            maxY = transformer.transformY(b.maxY());
+        }
+        byte[] propBytes = props.toByteArray();
+        props.reset();
+        int properties = fb.createByteVector(propBytes, 0, propBytes.length);
+        fb.startTable(3);
+        fb.addOffsetField(0, geometry);
+        fb.addOffsetField(1, properties);
+        fb.finishSizePrefixed(fb.endTable());
+
+        featureOffsets.add(tempSize);
+        featureSizes.add(fb.size());
+        featureBounds.add(minX);
+        featureBounds.add(minY);
+        featureBounds.add(maxX);
+        featureBounds.add(maxY);
+        try
+        {
+            fb.writeTo(temp);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        tempSize += fb.size();
+    }
+
+    private void createHeader(int featureCount, double[] extent)
+    {
+        fb.clear();
+        int[] columnTables = new int[columnNames.length];
+        for(int i=0; i<columnNames.length; i++)
+        {
+            int name = fb.createString(columnNames[i]);
+            fb.startTable(11);
+            fb.addOffsetField(0, name);
+            fb.addByteField(1, columnTypes[i], 0);
+            if(i == 0) fb.addByteField(7, 0, 1);     // id is not nullable
+            columnTables[i] = fb.endTable();
+        }
+        int columnsVector = fb.createOffsetVector(columnTables, columnTables.length);
+        int envelope = 0;
+        if(featureCount > 0)
+        {
+            fb.startVector(8, 4, 8);
+            for(int i=3; i>=0; i--) fb.addDouble(extent[i]);
+            envelope = fb.endVector();
+        }
+        int org = fb.createString("EPSG");
+        fb.startTable(6);
+        fb.addOffsetField(0, org);
+        fb.addIntField(1, 4326, 0);
+        int crs = fb.endTable();
+        int description = fb.createString("Generated by geodesk gol/" + GolTool.VERSION);
+
+        fb.startTable(14);
+        fb.addOffsetField(1, envelope);
+        // geometry_type is left as Unknown, since the types are mixed
+        fb.addOffsetField(7, columnsVector);
+        fb.addLongField(8, featureCount, 0);
+        fb.addShortField(9, featureCount > 0 ? NODE_SIZE : 0, -1);
+        fb.addOffsetField(10, crs);
+        fb.addOffsetField(12, description);
+        fb.finishSizePrefixed(fb.endTable());
+    }
+
+    /**
+     * Writes the packed R-tree, with the leaves in the given order (using
+     * the same layout as the reference implementation: the root comes
+     * first, and each node's offset is the index of its first child;
+     * the offset of a leaf is the position of its feature in the
+     * feature section).
+     *
+     * @param out               the output
+     * @param featureBounds     the bounding box of each feature
+     *                          (minX, minY, maxX, maxY)
+     * @param order             the index of each feature, in Hilbert order
+     * @param featurePositions  the position of each feature (in Hilbert
+     *                          order) within the feature section
+     */
+    static void writeIndex(Utf8Sink out, DoubleArrayList featureBounds,
+        int[] order, long[] featurePositions)
+    {
+        int count = order.length;
+        IntArrayList levelCounts = new IntArrayList();
+        int n = count;
+        int nodeCount = n;
+        levelCounts.add(n);
+        do
+        {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            nodeCount += n;
+            levelCounts.add(n);
+        }
+        while(n != 1);
+
+        // Levels are numbered bottom-up, but stored top-down
+        int[] levelStarts = new int[levelCounts.size()];
+        n = nodeCount;
+        for(int i=0; i<levelStarts.length; i++)
+        {
+            n -= levelCounts.get(i);
+            levelStarts[i] = n;
+        }
+
+        double[] bounds = new double[nodeCount * 4];
+        long[] offsets = new long[nodeCount];
+        int leafStart = levelStarts[0];
+        for(int i=0; i<count; i++)
+        {
+            int f = order[i];
+            for(int j=0; j<4; j++) bounds[(leafStart + i) * 4 + j] = featureBounds.get(f * 4 + j);
+            offsets[leafStart + i] = featurePositions[i];
+        }
+        for(int level=0; level<levelStarts.length-1; level++)
+        {
+            int pos = levelStarts[level];
+            int end = pos + levelCounts.get(level);
+            int parent = levelStarts[level+1];
+            while(pos < end)
+            {
+                offsets[parent] = pos;
+                double nodeMinX = Double.POSITIVE_INFINITY;
+                double nodeMinY = Double.POSITIVE_INFINITY;
+                double nodeMaxX = Double.NEGATIVE_INFINITY;
+                double nodeMaxY = Double.NEGATIVE_INFINITY;
+                for(int j=0; j<NODE_SIZE && pos < end; j++, pos++)
+                {
+                    nodeMinX = Math.min(nodeMinX, bounds[pos * 4]);
+                    nodeMinY = Math.min(nodeMinY, bounds[pos * 4 + 1]);
+                    nodeMaxX = Math.max(nodeMaxX, bounds[pos * 4 + 2]);
+                    nodeMaxY = Math.max(nodeMaxY, bounds[pos * 4 + 3]);
+                }
+                bounds[parent * 4] = nodeMinX;
+                bounds[parent * 4 + 1] = nodeMinY;
+                bounds[parent * 4 + 2] = nodeMaxX;
+                bounds[parent * 4 + 3] = nodeMaxY;
+                parent++;
+            }
+        }
+
+        ByteBuffer node = ByteBuffer.allocate(NODE_ITEM_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i=0; i<nodeCount; i++)
+        {
+            node.clear();
+            for(int j=0; j<4; j++) node.putDouble(bounds[i * 4 + j]);
+            node.putLong(offsets[i]);
+            out.write(node.array(), 0, NODE_ITEM_SIZE);
+        }
+    }
+
+    /**
+     * Returns the indexes of the features, sorted by the Hilbert value
+     * of the centers of their bounding boxes.
+     *
+     * @param featureBounds the bounding box of each feature
+     *                      (minX, minY, maxX, maxY)
+     * @param extent        the bounding box of all features
+     */
+    static int[] sortFeatures(DoubleArrayList featureBounds, double[] extent)
+    {
+        int count = featureBounds.size() / 4;
+        double width = extent[2] - extent[0];
+        double height = extent[3] - extent[1];
+        long[] keys = new long[count];
+        for(int i=0; i<count; i++)
+        {
+            double centerX = (featureBounds.get(i * 4) + featureBounds.get(i * 4 + 2)) / 2;
+            double centerY = (featureBounds.get(i * 4 + 1) + featureBounds.get(i * 4 + 3)) / 2;
+            long h = Hilbert.index(centerX, centerY, extent[0], extent[1], width, height)
+                & 0xffff_ffffL;
+            keys[i] = (h << 31) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[count];
+        for(int i=0; i<count; i++) order[i] = (int)(keys[i] & Integer.MAX_VALUE);
+        return order;
+    }
+
+    @Override public void printFooter()
+    {
+        try
+        {
+            temp.close();
+            int count = featureSizes.size();
+            double[] extent = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+            for(int i=0; i<count; i++)
+            {
+                extent[0] = Math.min(extent[0], featureBounds.get(i * 4));
+                extent[1] = Math.min(extent[1], featureBounds.get(i * 4 + 1));
+                extent[2] = Math.max(extent[2], featureBounds.get(i * 4 + 2));
+                extent[3] = Math.max(extent[3], featureBounds.get(i * 4 + 3));
+            }
+            int[] order = sortFeatures(featureBounds, extent);
+            long[] positions = new long[count];
+            long pos = 0;
+            for(int i=0; i<count; i++)
+            {
+                positions[i] = pos;
+                pos += featureSizes.get(order[i]);
+            }
+
+            out.write(MAGIC, 0, MAGIC.length);
+            createHeader(count, extent);
+            fb.writeTo(out);
+            if(count > 0) writeIndex(out, featureBounds, order, positions);
+            copyFeatures(order);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        finally
+        {
+            close();
+        }
+        out.flush();
+    }
+
+    /**
+     * Closes and deletes the temporary file (if the query has failed,
+     * the footer is never printed).
+     */
+    @Override public void close()
+    {
+        try
+        {
+            if(temp != null) temp.close();
+        }
+        catch(IOException ex)
+        {
+            // ignore
+        }
+        temp = null;
+        try
+        {
+            if(tempPath != null) Files.deleteIfExists(tempPath);
+        }
+        catch(IOException ex)
+        {
+            // ignore
+        }
+        tempPath = null;
+    }
+
+    private void copyFeatures(int[] order) throws IOException
+    {
+        byte[] buf = new byte[4096];
+        try(FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.READ))
+        {
+            for(int f: order)
+            {
+                int size = featureSizes.get(f);
+                if(size > buf.length) buf = new byte[Math.max(size, buf.length * 2)];
+                ByteBuffer b = ByteBuffer.wrap(buf, 0, size);
+                long p = featureOffsets.get(f);
+                while(b.hasRemaining())
+                {
+                    int n = channel.read(b, p);
+                    if(n < 0) throw new EOFException("Truncated feature file");
+                    p += n;
+                }
+                out.write(buf, 0, size);
+            }
+        }
+    }
+}
@@ -16,7 +16,8 @@ public class Formatting
     public static final String[] OPTIONS =
     {
         "attribution", "basemap", "color", "id", "link", "max-width",
-        "min-tally", "osm", "sort", "split-values", "tally", "unit"
+        "min-tally", "osm", "quantize", "simplify", "sort", "split-values", "stream",
+        "tally", "top", "unit"
     };
 
     public static boolean containsOption(String opt)
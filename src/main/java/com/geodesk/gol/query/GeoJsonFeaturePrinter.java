@@ -7,27 +7,43 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Strings;
 import com.geodesk.feature.Feature;
 import com.geodesk.geom.Bounds;
 import com.geodesk.gol.GolTool;
 import org.locationtech.jts.geom.*;
 
-import java.io.PrintStream;
-
 // TODO: remember, polygons must have proper winding order!
 
 public class GeoJsonFeaturePrinter extends AbstractFeaturePrinter
 {
     private boolean perLine = false;
     private boolean firstFeature = true;
+    private final Simplifier simplifier = new Simplifier();
 
-    public GeoJsonFeaturePrinter(PrintStream out, boolean perLine)
+    public GeoJsonFeaturePrinter(Utf8Sink out, boolean perLine)
     {
         super(out);
         this.perLine = perLine;
     }
 
+    @Override public boolean setOption(String name, String value)
+    {
+        switch(name)
+        {
+        case "simplify":
+            checkValue(value);
+            simplifier.tolerance(Options.parseDouble(value));
+            return true;
+        case "quantize":
+            checkValue(value);
+            simplifier.grid(Options.parseDouble(value));
+            return true;
+        }
+        return super.setOption(name, value);
+    }
+
     /*
     public void perLine(boolean enabled)
     {
@@ -48,6 +64,11 @@ public class GeoJsonFeaturePrinter extends AbstractFeaturePrinter
     protected void printLineString(LineString g)
     {
         CoordinateSequence seq = g.getCoordinateSequence();
+        if(simplifier.isEnabled())
+        {
+            printSimplified(simplifier.simplify(seq, g instanceof LinearRing));
+            return;
+        }
         out.print('[');
         for(int i=0; i<seq.size(); i++)
         {
@@ -77,11 +98,84 @@ public class GeoJsonFeaturePrinter extends AbstractFeaturePrinter
     }
 
 
-    protected void printGeometry(Geometry g)
+    /**
+     * Prints the vertices that remain after simplification.
+     */
+    private void printSimplified(int count)
+    {
+        out.print('[');
+        for(int i=0; i<count; i++)
+        {
+            if(i>0) out.print(',');
+            out.print('[');
+            printX(simplifier.x(i));
+            out.print(',');
+            printY(simplifier.y(i));
+            out.print(']');
+        }
+        out.print(']');
+    }
+
+    /**
+     * Prints the coordinates of a way, which are stored as x/y pairs.
+     */
+    protected void printCoordinates(int[] coords, boolean ring)
+    {
+        if(simplifier.isEnabled())
+        {
+            printSimplified(simplifier.simplify(coords, ring));
+            return;
+        }
+        out.print('[');
+        for(int i=0; i<coords.length; i += 2)
+        {
+            if(i>0) out.print(',');
+            out.print('[');
+            printX(coords[i]);
+            out.print(',');
+            printY(coords[i+1]);
+            out.print(']');
+        }
+        out.print(']');
+    }
+
+    /**
+     * Prints the geometry of a feature. Nodes and ways are written straight
+     * from their coordinates; only relations are assembled into JTS
+     * geometries (which is expensive, and needed to build multipolygons).
+     */
+    protected void printGeometry(Feature feature)
     {
         out.print("\"geometry\":");
         if (!perLine) out.print(" ");
-        printGeometryValue(g);
+        if(feature.isNode())
+        {
+            out.print("{\"type\":\"Point\",\"coordinates\":[");
+            printX(feature.x());
+            out.print(',');
+            printY(feature.y());
+            out.print("]}");
+        }
+        else if(feature.isWay())
+        {
+            int[] coords = feature.toXY();
+            if(feature.isArea())
+            {
+                out.print("{\"type\":\"Polygon\",\"coordinates\":[");
+                printCoordinates(coords, true);
+                out.print("]}");
+            }
+            else
+            {
+                out.print("{\"type\":\"LineString\",\"coordinates\":");
+                printCoordinates(coords, false);
+                out.print('}');
+            }
+        }
+        else
+        {
+            printGeometryValue(feature.toGeometry());
+        }
     }
 
     protected void printGeometryValue(Geometry g)
@@ -229,15 +323,15 @@ public class GeoJsonFeaturePrinter extends AbstractFeaturePrinter
             out.print("{\"type\":\"Feature\",");
             printId(feature);
             if(bboxColumn != null) printBBox(feature.bounds());
-            printGeometry(feature.toGeometry());
+            printGeometry(feature);
             out.print(",");
-            extractProperties(feature.tags());
+            extractProperties(feature);
             out.print("\"properties\":{");
             printProperties();
             out.println("}}");
             return;
         }
-        if(!firstFeature) out.println("\t\t},");
+        if(!firstFeature) out.println(",");
         out.println("\t\t{");
         out.print("\t\t\t\"type\": \"Feature\",\n\t\t\t");
         printId(feature);
@@ -249,21 +343,44 @@ public class GeoJsonFeaturePrinter extends AbstractFeaturePrinter
             out.println();
         }
         out.print("\t\t\t");
-        printGeometry(feature.toGeometry());
+        printGeometry(feature);
         out.println(",");
-        extractProperties(feature.tags());
+        extractProperties(feature);
 
         out.println("\t\t\t\"properties\": {");
         printProperties();
         out.println();
         out.println("\t\t\t}");
+        out.print("\t\t}");
+            // newline (or separator) is written by the next feature,
+            // or by the footer
+        firstFeature = false;
+    }
+
+    @Override public boolean isMergeable()
+    {
+        return true;
+    }
+
+    @Override public String featureSeparator()
+    {
+        return perLine ? "" : ",\n";
+    }
+
+    @Override public void startRecord()
+    {
+        firstFeature = true;
+    }
+
+    @Override public void featuresPrinted()
+    {
         firstFeature = false;
     }
 
     @Override public void printFooter()
     {
         if(perLine) return;
-        if(!firstFeature) out.println("\t\t}");
+        if(!firstFeature) out.println();
         out.println("\t]");
         out.println("}");
     }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+/**
+ * Methods for ordering items along a Hilbert curve.
+ */
+public class Hilbert
+{
+    public static final int MAX = (1 << 16) - 1;
+
+    /**
+     * Returns the distance along a Hilbert curve of the given cell of a
+     * 65536 x 65536 grid (the same algorithm used by flatbush and the
+     * FlatGeobuf packed R-tree, based on "Fast Hilbert curve generation,
+     * sorting, and range queries" by rawrunprotected).
+     *
+     * @param x     the column (0 to 65535)
+     * @param y     the row (0 to 65535)
+     * @return      the distance (an unsigned 32-bit value)
+     */
+    public static int index(int x, int y)
+    {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A; b = B; c = C; d = D;
+        A = (a & (a >>> 2)) ^ (b & (b >>> 2));
+        B = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+        C ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+        D ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+        a = A; b = B; c = C; d = D;
+        A = (a & (a >>> 4)) ^ (b & (b >>> 4));
+        B = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+        C ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+        D ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+        a = A; b = B; c = C; d = D;
+        C ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+        D ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+        return (interleave(i1) << 1) | interleave(i0);
+    }
+
+    private static int interleave(int v)
+    {
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * Returns the Hilbert distance of a point within the given extent.
+     */
+    public static int index(double x, double y, double minX, double minY,
+        double width, double height)
+    {
+        int hx = width == 0 ? 0 : (int)Math.floor(MAX * (x - minX) / width);
+        int hy = height == 0 ? 0 : (int)Math.floor(MAX * (y - minY) / height);
+        return index(hx, hy);
+    }
+}
@@ -7,13 +7,12 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.geodesk.feature.Feature;
 
-import java.io.PrintStream;
-
 public class ListFeaturePrinter extends AbstractFeaturePrinter
 {
-    public ListFeaturePrinter(PrintStream out)
+    public ListFeaturePrinter(Utf8Sink out)
     {
         super(out);
     }
@@ -25,6 +24,13 @@ public class ListFeaturePrinter extends AbstractFeaturePrinter
         case WAY -> 'W';
         case RELATION -> 'R';
         };
-        out.format("%c%d\n", letter, feature.id());
+        out.print(letter);
+        out.print(feature.id());
+        out.print('\n');
+    }
+
+    @Override public boolean isMergeable()
+    {
+        return true;
     }
 }
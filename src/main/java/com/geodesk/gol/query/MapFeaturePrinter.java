@@ -7,12 +7,12 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.geodesk.feature.Feature;
 import com.geodesk.util.MapMaker;
 import com.geodesk.util.Marker;
 
 import java.io.IOException;
-import java.io.PrintStream;
 
 public class MapFeaturePrinter extends AbstractFeaturePrinter
 {
@@ -22,6 +22,7 @@ public class MapFeaturePrinter extends AbstractFeaturePrinter
     private String basemap;
     private LinkSchema linkSchema = new OsmLinkSchema();
     private String color;
+    private final Simplifier simplifier = new Simplifier();
 
     private static class LinkSchema
     {
@@ -40,7 +41,7 @@ public class MapFeaturePrinter extends AbstractFeaturePrinter
     }
 
 
-    public MapFeaturePrinter(PrintStream out)
+    public MapFeaturePrinter(Utf8Sink out)
     {
         super(out);
         map = new MapMaker();
@@ -62,6 +63,14 @@ public class MapFeaturePrinter extends AbstractFeaturePrinter
             checkValue(value);
             color = value;
             return true;
+        case "simplify":
+            checkValue(value);
+            simplifier.tolerance(Options.parseDouble(value));
+            return true;
+        case "quantize":
+            checkValue(value);
+            simplifier.grid(Options.parseDouble(value));
+            return true;
         case "link":
             checkValue(value);
             switch(value)
@@ -98,14 +107,16 @@ public class MapFeaturePrinter extends AbstractFeaturePrinter
 
     @Override public void print(Feature feature)
     {
-        extractProperties(feature.tags());
+        extractProperties(feature);
         tagsBuf.append("<h3>");
         tagsBuf.append(feature);
         tagsBuf.append("</h3>");
         tagsBuf.append("<pre>\n");
         printProperties();
         tagsBuf.append("</pre>");
-        Marker marker = map.add(feature).tooltip(tagsBuf.toString());
+        Marker marker = (simplifier.isEnabled() && !feature.isNode() ?
+            map.add(simplifier.simplify(feature.toGeometry())) : map.add(feature))
+            .tooltip(tagsBuf.toString());
         if(color != null) marker.color(color);
         if(linkSchema != null) marker.url(linkSchema.format(feature));
         tagsBuf.setLength(0);
@@ -16,4 +16,9 @@ public class NullFeaturePrinter extends AbstractFeaturePrinter
         super(null);
     }
     @Override public void print(Feature feature) {};
+
+    @Override public boolean isMergeable()
+    {
+        return true;
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.clarisma.common.io.Utf8Sink;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.store.AnonymousWayNode;
+import com.geodesk.geom.XY;
+import org.eclipse.collections.api.map.primitive.MutableLongObjectMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+
+import java.util.*;
+
+/**
+ * Base class for printers that write OSM data files. Collects the printed
+ * features, along with everything they reference (relation members and
+ * way nodes), so that subclasses can write a complete file once all
+ * features have been printed.
+ */
+public abstract class OsmFeaturePrinter extends AbstractFeaturePrinter
+{
+    final MutableLongObjectMap<Feature> syntheticNodes = new LongObjectHashMap();
+    final MutableLongObjectMap<Feature> nodes = new LongObjectHashMap<>();
+    final Set<Feature> ways = new HashSet<>();
+    final Set<Feature> relations = new HashSet<>();
+
+    protected class SyntheticWayNode extends AnonymousWayNode
+    {
+        final long id;
+
+        SyntheticWayNode(long id, int x, int y)
+        {
+            super(null, x, y);
+            this.id = id;
+        }
+
+        @Override public long id()
+        {
+            return id;
+        }
+    }
+
+    protected OsmFeaturePrinter(Utf8Sink out)
+    {
+        super(out);
+    }
+
+    private Feature addNode(Feature node)
+    {
+        long id = node.id();
+        return nodes.getIfAbsentPut(id, node);
+    }
+
+    @Override public void print(Feature feature)
+    {
+        if(feature.isNode())
+        {
+            addNode(feature);
+        }
+        else if(feature.isWay())
+        {
+            ways.add(feature);
+        }
+        else
+        {
+            relations.add(feature);
+        }
+    }
+
+    private void loadMembers(Feature rel)
+    {
+        for (Feature member : rel.members())
+        {
+            if (member.isWay())
+            {
+                ways.add(member);
+            }
+            else if(member.isNode())
+            {
+                addNode(member);
+            }
+            else
+            {
+                if(!relations.contains(member))
+                {
+                    relations.add(member);
+                    loadMembers(member);
+                }
+            }
+        }
+    }
+
+    protected void loadAll()
+    {
+        // Recursively retrieve all relation members
+        // (We make a copy of relation set, because loadMembers will modify
+        // the underlying set)
+        for(Feature rel: new ArrayList<>(relations)) loadMembers(rel);
+
+        // Retrieve all feature nodes referenced by the ways
+
+        for(Feature way: ways)
+        {
+            for(Feature node: way) addNode(node);
+        }
+
+        // Now, get all way nodes; create IDs for anonymous nodes
+
+        long nextNodeId = 0;
+        for(Feature way: ways)
+        {
+            for(Feature node: way.nodes())
+            {
+                long nodeId = node.id();
+                if(nodeId == 0)
+                {
+                    int x = node.x();
+                    int y = node.y();
+                    long xy = XY.of(x,y);
+                    if(!syntheticNodes.containsKey(xy))
+                    {
+                        for (;;)
+                        {
+                            nextNodeId++;
+                            if (!nodes.containsKey(nextNodeId)) break;
+                        }
+                        nodeId = nextNodeId;
+                        syntheticNodes.put(xy, new SyntheticWayNode(nodeId, x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ID under which a way node is written (for anonymous
+     * nodes, this is the ID assigned by `loadAll()`).
+     */
+    protected long wayNodeId(Feature node)
+    {
+        long id = node.id();
+        if(id != 0) return id;
+        Feature synthetic = syntheticNodes.get(XY.of(node.x(), node.y()));
+        assert synthetic != null;
+        return synthetic.id();
+    }
+
+    /**
+     * Returns all nodes to be written (including synthetic nodes).
+     */
+    protected List<Feature> allNodes()
+    {
+        List<Feature> nodeList = new ArrayList<>(nodes.size() + syntheticNodes.size());
+        nodeList.addAll(nodes.values());
+        nodeList.addAll(syntheticNodes.values());
+        return nodeList;
+    }
+}
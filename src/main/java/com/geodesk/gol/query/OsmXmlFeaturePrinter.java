@@ -7,136 +7,143 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.ExternalRecordSorter;
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Strings;
-import com.geodesk.geom.XY;
 import com.geodesk.feature.*;
-import com.geodesk.feature.store.AnonymousWayNode;
 import com.geodesk.gol.GolTool;
-import org.eclipse.collections.api.map.primitive.MutableLongObjectMap;
-import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
 
-import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 // TODO: Add comment about file not suitable for editing
 // TODO: add query string to comments
 
-public class OsmXmlFeaturePrinter extends AbstractFeaturePrinter
+public class OsmXmlFeaturePrinter extends OsmFeaturePrinter
 {
-    final MutableLongObjectMap<Feature> syntheticNodes = new LongObjectHashMap();
-    final MutableLongObjectMap<Feature> nodes = new LongObjectHashMap<>();
-    final Set<Feature> ways = new HashSet<>();
-    final Set<Feature> relations = new HashSet<>();
-    final XmlWriter xml;
+    XmlWriter xml;
+        // In streaming mode, this is switched to a writer for the
+        // current record once the header has been printed
 
-    private class SyntheticWayNode extends AnonymousWayNode
-    {
-        final long id;
-
-        SyntheticWayNode(long id, int x, int y)
-        {
-            super(null, x, y);
-            this.id = id;
-        }
+    /**
+     * In streaming mode, each feature is written to its own record
+     * (an XML element), and the records are sorted externally
+     * (by type and ID, dropping duplicates) before being copied to
+     * the output. This way, the export needs only a bounded amount of
+     * memory, regardless of the size of the result set.
+     */
+    private boolean streaming;
+    private ExternalRecordSorter sorter;
+    private XmlWriter documentXml;
+    private ByteArrayOutputStream recordBuf;
+    private Utf8Sink recordSink;
+    private final List<Feature> parentRelations = new ArrayList<>();
 
-        @Override public long id()
-        {
-            return id;
-        }
-    }
+    private static final int NODE_RECORD = 0;
+    private static final int WAY_RECORD = 1;
+    private static final int RELATION_RECORD = 2;
+    private static final long MAX_SORT_MEMORY = 256L * 1024 * 1024;
 
-    public OsmXmlFeaturePrinter(PrintStream out)
+    public OsmXmlFeaturePrinter(Utf8Sink out)
     {
         super(out);
         xml = new XmlWriter(out);
     }
 
-    private Feature addNode(Feature node)
+    @Override public boolean setOption(String name, String value)
     {
-        long id = node.id();
-        return nodes.getIfAbsentPut(id, node);
-    }
-
-    @Override public void print(Feature feature)
-    {
-        if(feature.isNode())
+        if(name.equals("stream"))
         {
-            addNode(feature);
-        }
-        else if(feature.isWay())
-        {
-            ways.add(feature);
-        }
-        else
-        {
-            relations.add(feature);
+            streaming = true;
+            return true;
         }
+        return super.setOption(name, value);
     }
 
-    private void loadMembers(Feature rel)
+    @Override public void print(Feature feature)
     {
-        for (Feature member : rel.members())
+        if(streaming)
         {
-            if (member.isWay())
-            {
-                ways.add(member);
-            }
-            else if(member.isNode())
+            try
             {
-                addNode(member);
+                spill(feature);
             }
-            else
+            catch(IOException ex)
             {
-                if(!relations.contains(member))
-                {
-                    relations.add(member);
-                    loadMembers(member);
-                }
+                throw new UncheckedIOException(ex);
             }
+            return;
         }
+        super.print(feature);
     }
 
-    private void loadAll()
+    /**
+     * Returns the ID of an anonymous node in streaming mode. The ID is
+     * derived from the node's coordinates, so every way that references
+     * the node uses the same ID, without having to track the nodes that
+     * have already been assigned an ID. IDs are negative, so they never
+     * clash with the IDs of real nodes. (The lowest bit of the x-coordinate
+     * is dropped to make the ID fit, so nodes that are less than 1 cm
+     * apart may share an ID.)
+     */
+    private static long syntheticNodeId(int x, int y)
     {
-        // Recursively retrieve all relation members
-        // (We make a copy of relation set, because loadMembers will modify
-        // the underlying set)
-        for(Feature rel: new ArrayList<>(relations)) loadMembers(rel);
+        long v = ((long)(x >> 1) << 32) | (y & 0xffff_ffffL);
+        return -1 - (v + (1L << 62));
+    }
 
-        // Retrieve all feature nodes referenced by the ways
+    @Override protected long wayNodeId(Feature node)
+    {
+        if(streaming && node.id() == 0) return syntheticNodeId(node.x(), node.y());
+        return super.wayNodeId(node);
+    }
 
-        for(Feature way: ways)
+    private void addRecord(int type, long id) throws IOException
+    {
+        recordSink.flush();
+        sorter.add(type, id, recordBuf.toByteArray());
+        recordBuf.reset();
+    }
+
+    private void spillNode(Feature node) throws IOException
+    {
+        long id = node.id();
+        if(id == 0)
         {
-            for(Feature node: way) addNode(node);
+            int x = node.x();
+            int y = node.y();
+            node = new SyntheticWayNode(syntheticNodeId(x, y), x, y);
         }
+        printNode(node);
+        addRecord(NODE_RECORD, node.id());
+    }
 
-        // Now, get all way nodes; create IDs for anonymous nodes
-
-        long nextNodeId = 0;
-        for(Feature way: ways)
+    private void spill(Feature feature) throws IOException
+    {
+        if(feature.isNode())
         {
-            Features wayNodes = way.nodes();
-            int i=0;
-            for(Feature node: way.nodes())
-            {
-                long nodeId = node.id();
-                if(nodeId == 0)
-                {
-                    int x = node.x();
-                    int y = node.y();
-                    long xy = XY.of(x,y);
-                    if(!syntheticNodes.containsKey(xy))
-                    {
-                        for (;;)
-                        {
-                            nextNodeId++;
-                            if (!nodes.containsKey(nextNodeId)) break;
-                        }
-                        nodeId = nextNodeId;
-                        syntheticNodes.put(xy, new SyntheticWayNode(nodeId, x, y));
-                    }
-                }
-            }
+            spillNode(feature);
+        }
+        else if(feature.isWay())
+        {
+            printWay(feature);
+            addRecord(WAY_RECORD, feature.id());
+            for(Feature node: feature.nodes()) spillNode(node);
+        }
+        else
+        {
+            // Only the relations that are currently being spilled are
+            // tracked (to guard against reference cycles); members that
+            // are reached more than once are spilled again, and the
+            // duplicates are dropped when the records are merged
+            if(parentRelations.contains(feature)) return;
+            printRelation(feature);
+            addRecord(RELATION_RECORD, feature.id());
+            parentRelations.add(feature);
+            for(Feature member: feature.members()) spill(member);
+            parentRelations.remove(parentRelations.size()-1);
         }
     }
 
@@ -144,8 +151,8 @@ public class OsmXmlFeaturePrinter extends AbstractFeaturePrinter
     {
         xml.begin("node");
         xml.attr("id", node.id());
-        xml.attr("lat", transformer.toString(transformer.transformY(node.y())));
-        xml.attr("lon", transformer.toString(transformer.transformX(node.x())));
+        xml.attr("lat", transformer.transformY(node.y()), precision);
+        xml.attr("lon", transformer.transformX(node.x()), precision);
         xml.attr("version", "1");
         xml.attr("visible", "true");
         printTags(node);
@@ -176,7 +183,7 @@ public class OsmXmlFeaturePrinter extends AbstractFeaturePrinter
 
     private void printTags(Feature f)
     {
-        extractProperties(f.tags());
+        extractProperties(f);
         printProperties();
     }
 
@@ -184,16 +191,8 @@ public class OsmXmlFeaturePrinter extends AbstractFeaturePrinter
     {
         for(Feature node: way.nodes())
         {
-            long nodeId = node.id();
-            if(nodeId == 0)
-            {
-                long xy = XY.of(node.x(), node.y());
-                node = syntheticNodes.get(xy);
-                assert node != null;
-                nodeId = node.id();
-            }
             xml.begin("nd");
-            xml.attr("ref", nodeId);
+            xml.attr("ref", wayNodeId(node));
             xml.end();
         }
     }
@@ -227,15 +226,44 @@ public class OsmXmlFeaturePrinter extends AbstractFeaturePrinter
         xml.attr("version", "0.6");
         xml.attr("generator", "geodesk gol/" + GolTool.VERSION);
         xml.attr("upload", "never");
+        if(streaming)
+        {
+            sorter = new ExternalRecordSorter(null, MAX_SORT_MEMORY);
+            recordBuf = new ByteArrayOutputStream(4096);
+            recordSink = new Utf8Sink(recordBuf);
+            documentXml = xml;
+            xml = new XmlWriter(recordSink, 1);
+        }
+    }
+
+    private void printStreamingFooter()
+    {
+        recordSink.close();
+        xml = documentXml;
+        xml.closeStartTag();
+        try
+        {
+            sorter.merge((type, id, data, len) -> out.write(data, 0, len));
+            sorter.close();
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        xml.end();
+        xml.flush();
     }
 
     @Override public void printFooter()
     {
+        if(streaming)
+        {
+            printStreamingFooter();
+            return;
+        }
         loadAll();
 
-        List<Feature> nodeList = new ArrayList<>(nodes.size() + syntheticNodes.size());
-        nodeList.addAll(nodes.values());
-        nodeList.addAll(syntheticNodes.values());
+        List<Feature> nodeList = allNodes();
         // Collections.sort(nodeList);  // wait for geodesk#45 to allow sorting
 
         for(Feature node: nodeList) printNode(node);
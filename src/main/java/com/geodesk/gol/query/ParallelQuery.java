@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.clarisma.common.io.Utf8Sink;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Tile;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Executes a query on multiple threads. The query's bounding box is divided
+ * into cells (tiles of a single zoom level), which are queried independently.
+ * For each cell, a worker prints the features into a private buffer, using
+ * its own printer. The buffers are then written to the output in the order
+ * in which the cells were submitted (or as soon as they are ready, if the
+ * order of features does not matter).
+ *
+ * A feature that spans multiple cells is only printed for the cell that
+ * contains the lower-left corner of the intersection between the feature's
+ * bounding box and the query's bounding box, so each feature is printed
+ * exactly once.
+ *
+ * If the query is restricted to an area, the cells are classified against
+ * the area (see {@link AreaCoverage}): cells outside the area are skipped,
+ * and the features of cells inside the area are retrieved without the
+ * area filter, so only features that extend beyond these cells need an
+ * exact intersection test. In this case, a feature is printed for the
+ * first cell it touches that is not outside the area. Area queries whose
+ * printer cannot run in parallel (or which are not meant to) use the same
+ * cells, visited one after the other on the calling thread (see
+ * {@link #runSequential(TileIndexWalker, AbstractFeaturePrinter)}).
+ *
+ * Parallel execution only works for printers whose output can be concatenated
+ * (see {@link AbstractFeaturePrinter#isMergeable()}), or whose state
+ * can be merged (see {@link AggregatingPrinter}).
+ * Aggregating printers don't print per cell; instead, each worker thread
+ * feeds all its cells into a single printer, and these printers are
+ * merged into the main printer once all cells have been processed.
+ */
+public class ParallelQuery
+{
+    private final Features selected;
+    private Features unfiltered;
+    private AreaCoverage coverage;
+    private QueryProfile profile;
+    private final Bounds bounds;
+    private final Function<Utf8Sink, AbstractFeaturePrinter> printerFactory;
+    private final int threadCount;
+    private final boolean ordered;
+    private final long limit;
+    private final AtomicLong count = new AtomicLong();
+    private int zoom;
+    private boolean aggregating;
+    private final Queue<AbstractFeaturePrinter> workerPrinters = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<AbstractFeaturePrinter> workerPrinter =
+        ThreadLocal.withInitial(this::createWorkerPrinter);
+
+    /**
+     * The number of cells per thread we aim for (more cells balance the
+     * load better, but add per-query overhead)
+     */
+    private static final int CELLS_PER_THREAD = 16;
+    private static final int MAX_ZOOM = 12;
+
+    /**
+     * The minimum number of cells used to rasterize an area (a finer grid
+     * means fewer features need to be tested exactly, but it takes longer
+     * to classify the cells, and each cell adds per-query overhead)
+     */
+    private static final int MIN_AREA_CELLS = 1024;
+
+    /**
+     * @param selected          the features to print
+     * @param bounds            the bounding box of the query (must enclose
+     *                          all features in `selected`)
+     * @param printerFactory    creates a printer that writes to the given
+     *                          stream (configured the same way as the
+     *                          printer that prints header and footer)
+     * @param threadCount       the number of worker threads
+     * @param ordered           whether cells must be printed in order
+     * @param limit             the maximum number of features to print
+     */
+    public ParallelQuery(Features selected, Bounds bounds,
+        Function<Utf8Sink, AbstractFeaturePrinter> printerFactory,
+        int threadCount, boolean ordered, long limit)
+    {
+        this.selected = selected;
+        this.bounds = bounds;
+        this.printerFactory = printerFactory;
+        this.threadCount = threadCount;
+        this.ordered = ordered;
+        this.limit = limit;
+        zoom = partitionZoom(threadCount * CELLS_PER_THREAD);
+    }
+
+    /**
+     * Restricts the query to an area.
+     *
+     * @param area          the area (in Mercator projection)
+     * @param unfiltered    the features to print, without the area filter
+     *                      (`selected` must be filtered by the area)
+     */
+    public void area(Geometry area, Features unfiltered)
+    {
+        this.unfiltered = unfiltered;
+        zoom = partitionZoom(Math.max(threadCount * CELLS_PER_THREAD, MIN_AREA_CELLS));
+        coverage = new AreaCoverage(area, zoom);
+    }
+
+    /**
+     * Collects execution statistics into the given profile.
+     */
+    public void profile(QueryProfile profile)
+    {
+        this.profile = profile;
+    }
+
+    private long cellCount(int zoom)
+    {
+        long cols = Tile.columnFromXZ(bounds.maxX(), zoom) -
+            Tile.columnFromXZ(bounds.minX(), zoom) + 1;
+        long rows = Math.abs(Tile.rowFromYZ(bounds.maxY(), zoom) -
+            Tile.rowFromYZ(bounds.minY(), zoom)) + 1;
+        return cols * rows;
+    }
+
+    private int partitionZoom(long target)
+    {
+        for(int z=0; z<MAX_ZOOM; z++)
+        {
+            if(cellCount(z) >= target) return z;
+        }
+        return MAX_ZOOM;
+    }
+
+    /**
+     * Returns the cell for which a feature with the given bounding box
+     * is printed (-1 if none).
+     */
+    int homeCell(Bounds b)
+    {
+        if(coverage != null) return coverage.firstCell(b);
+        int x = Math.max(b.minX(), bounds.minX());
+        int y = Math.max(b.minY(), bounds.minY());
+        return Tile.fromColumnRowZoom(
+            Tile.columnFromXZ(x, zoom), Tile.rowFromYZ(y, zoom), zoom);
+    }
+
+    private void addCell(MutableIntList cells, MutableIntSet added, int cell)
+    {
+        if(coverage != null && coverage.classifyCell(cell) == AreaCoverage.OUTSIDE)
+        {
+            if(profile != null && added.add(cell)) profile.cellsSkipped.increment();
+            return;
+        }
+        if(added.add(cell)) cells.add(cell);
+    }
+
+    /**
+     * Adds the cells that intersect both `b` and the query's bounds
+     * (skipping cells outside the area, and cells already in `added`).
+     */
+    void addCells(MutableIntList cells, MutableIntSet added, Bounds b)
+    {
+        int minX = Math.max(b.minX(), bounds.minX());
+        int minY = Math.max(b.minY(), bounds.minY());
+        int maxX = Math.min(b.maxX(), bounds.maxX());
+        int maxY = Math.min(b.maxY(), bounds.maxY());
+        if(minX > maxX || minY > maxY) return;
+        int startCol = Tile.columnFromXZ(minX, zoom);
+        int endCol = Tile.columnFromXZ(maxX, zoom);
+        int row1 = Tile.rowFromYZ(minY, zoom);
+        int row2 = Tile.rowFromYZ(maxY, zoom);
+        int startRow = Math.min(row1, row2);
+        int endRow = Math.max(row1, row2);
+        for(int row=startRow; row<=endRow; row++)
+        {
+            for(int col=startCol; col<=endCol; col++)
+            {
+                addCell(cells, added, Tile.fromColumnRowZoom(col, row, zoom));
+            }
+        }
+    }
+
+    /**
+     * Creates the list of cells, in tile order: first the cells that hold
+     * the tiles visited by the walker (at the partition zoom level or
+     * higher), then all other cells that lie within the query's bounds
+     * (these only contain features of lower-zoom tiles).
+     */
+    private IntList cells(TileIndexWalker walker)
+    {
+        MutableIntList cells = new IntArrayList();
+        MutableIntSet added = new IntHashSet();
+        while(walker.next())
+        {
+            int tile = walker.tile();
+            if(profile != null) profile.tilesVisited.increment();
+            if(Tile.zoom(tile) < zoom) continue;
+            addCell(cells, added, Tile.zoomedOut(tile, zoom));
+        }
+        addCells(cells, added, bounds);
+        return cells;
+    }
+
+    private AbstractFeaturePrinter createWorkerPrinter()
+    {
+        AbstractFeaturePrinter printer = printerFactory.apply(
+            new Utf8Sink(OutputStream.nullOutputStream()));
+        printer.printHeader();
+        workerPrinters.add(printer);
+        return printer;
+    }
+
+    private class Task implements Callable<byte[]>
+    {
+        private final int cell;
+
+        Task(int cell)
+        {
+            this.cell = cell;
+        }
+
+        /**
+         * Prints the features of this cell (or merely counts them,
+         * if `printer` is null).
+         */
+        private void print(AbstractFeaturePrinter printer)
+        {
+            boolean inside = coverage != null &&
+                coverage.classifyCell(cell) == AreaCoverage.INSIDE;
+            Features source = inside ? unfiltered : selected;
+            // Without a limit, there is no need to update the shared
+            // count for every feature (which is contended)
+            boolean limited = limit != Long.MAX_VALUE;
+            long localCount = 0;
+            long scanned = 0;
+            long foreign = 0;
+            long tested = 0;
+            long rejected = 0;
+            long printNanos = 0;
+            long start = profile != null ? System.nanoTime() : 0;
+            for(Feature f: source.in(Tile.bounds(cell)))
+            {
+                scanned++;
+                Bounds b = f.bounds();
+                if(homeCell(b) != cell)
+                {
+                    foreign++;
+                    continue;
+                }
+                if(inside && !coverage.isInside(b))
+                {
+                    tested++;
+                    if(!coverage.filter().accept(f))
+                    {
+                        rejected++;
+                        continue;
+                    }
+                }
+                if(limited && count.incrementAndGet() > limit) break;
+                if(printer != null)
+                {
+                    if(profile != null)
+                    {
+                        long printStart = System.nanoTime();
+                        printer.print(f);
+                        printNanos += System.nanoTime() - printStart;
+                    }
+                    else
+                    {
+                        printer.print(f);
+                    }
+                }
+                localCount++;
+            }
+            if(!limited) count.addAndGet(localCount);
+            if(profile != null)
+            {
+                profile.cellsQueried.increment();
+                if(inside) profile.cellsInside.increment();
+                profile.featuresScanned.add(scanned);
+                profile.featuresForeign.add(foreign);
+                profile.featuresTested.add(tested);
+                profile.featuresRejected.add(rejected);
+                profile.featuresPrinted.add(localCount);
+                profile.printNanos.add(printNanos);
+                profile.scanNanos.add(System.nanoTime() - start - printNanos);
+            }
+        }
+
+        @Override public byte[] call()
+        {
+            if(count.get() >= limit) return null;
+            if(aggregating)
+            {
+                print(workerPrinter.get());
+                return null;
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(64 * 1024);
+            try(Utf8Sink out = new Utf8Sink(buf))
+            {
+                print(printerFactory.apply(out));
+            }
+            return buf.size() == 0 ? null : buf.toByteArray();
+        }
+    }
+
+    /**
+     * Counts the features, without printing them. Since the order of
+     * cells doesn't matter, they are always processed in parallel.
+     *
+     * @param walker    a walker that visits the tiles of the query
+     * @return the number of features (at most `limit`)
+     */
+    public long count(TileIndexWalker walker) throws InterruptedException, ExecutionException
+    {
+        IntList cells = cells(walker);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            Queue<Future<?>> pending = new ArrayDeque<>(cells.size());
+            for(int i=0; i<cells.size(); i++)
+            {
+                Task task = new Task(cells.get(i));
+                pending.add(executor.submit(() ->
+                {
+                    if(count.get() < limit) task.print(null);
+                }));
+            }
+            for(Future<?> f: pending) f.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return Math.min(count.get(), limit);
+    }
+
+    /**
+     * Runs the query on the calling thread, cell by cell (in tile order),
+     * printing all features directly to the given printer. Unlike
+     * {@link #run}, this works for any printer; for an area query, the
+     * cells outside the area are still skipped, and the features within
+     * cells inside the area still don't need to be tested exactly.
+     *
+     * @param walker    a walker that visits the tiles of the query
+     * @param printer   the printer (or null to merely count the features)
+     * @return the number of features printed
+     */
+    public long runSequential(TileIndexWalker walker, AbstractFeaturePrinter printer)
+    {
+        IntList cells = cells(walker);
+        for(int i=0; i<cells.size() && count.get() < limit; i++)
+        {
+            new Task(cells.get(i)).print(printer);
+        }
+        return Math.min(count.get(), limit);
+    }
+
+    /**
+     * Runs the query and prints its results.
+     *
+     * @param walker    a walker that visits the tiles of the query
+     * @param printer   the printer that writes the header and footer; its
+     *                  stream receives the output of all workers
+     * @param out       the output stream of `printer`
+     * @return the number of features printed
+     */
+    public long run(TileIndexWalker walker, AbstractFeaturePrinter printer,
+        Utf8Sink out) throws InterruptedException, ExecutionException
+    {
+        aggregating = printer instanceof AggregatingPrinter;
+        IntList cells = cells(walker);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threadCount, threadCount, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+        CompletionService<byte[]> completionService =
+            new ExecutorCompletionService<>(executor);
+        Queue<Future<byte[]>> pending = new ArrayDeque<>();
+        int window = threadCount * 4;
+            // maximum number of cells being processed (or waiting
+            // to be written) at any time
+        String separator = printer.featureSeparator();
+        boolean printedAny = false;
+        try
+        {
+            int next = 0;
+            while(next < cells.size() || !pending.isEmpty())
+            {
+                while(next < cells.size() && pending.size() < window
+                    && count.get() < limit)
+                {
+                    Task task = new Task(cells.get(next++));
+                    pending.add(ordered ? executor.submit(task) :
+                        completionService.submit(task));
+                }
+                if(pending.isEmpty()) break;
+                Future<byte[]> result;
+                if(ordered)
+                {
+                    result = pending.remove();
+                }
+                else
+                {
+                    result = completionService.take();
+                    pending.remove(result);
+                }
+                byte[] chunk = result.get();
+                if(chunk == null) continue;
+                if(printedAny) out.print(separator);
+                out.write(chunk, 0, chunk.length);
+                printedAny = true;
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        if(printedAny) printer.featuresPrinted();
+        if(printer instanceof AggregatingPrinter aggregate)
+        {
+            for(AbstractFeaturePrinter p: workerPrinters) aggregate.merge((AggregatingPrinter)p);
+        }
+        return Math.min(count.get(), limit);
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.clarisma.common.io.ParallelGzipOutputStream;
+import com.clarisma.common.io.Utf8Sink;
+import com.clarisma.common.pbf.PbfOutputStream;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.FeatureType;
+import com.geodesk.gol.GolTool;
+import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+
+/**
+ * Writes features (along with the relation members and way nodes they
+ * reference) as an OSM PBF file. Nodes are written as DenseNodes; each
+ * primitive block has its own string table. Blocks are encoded by the
+ * printing thread and deflated in parallel by a pool of workers.
+ *
+ * Like the other formats, only writes the tags selected via `--tags`.
+ */
+public class PbfFeaturePrinter extends OsmFeaturePrinter
+{
+    private final BlockBuilder block = new BlockBuilder();
+    private final int threads;
+    private ExecutorService executor;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private int maxPending;
+    private PbfOutputStream tagKeys;
+    private PbfOutputStream tagValues;
+
+    /**
+     * The maximum number of features per primitive block (the value used
+     * by most other PBF writers)
+     */
+    private static final int BLOCK_SIZE = 8000;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_BYTES = 2;
+
+    /**
+     * @param out       the output stream
+     * @param threads   the number of threads that deflate blocks
+     */
+    public PbfFeaturePrinter(Utf8Sink out, int threads)
+    {
+        super(out);
+        if(threads < 1) throw new IllegalArgumentException("Must use at least 1 thread");
+        this.threads = threads;
+    }
+
+    private static void writeKey(PbfOutputStream out, int field, int wireType)
+    {
+        out.writeVarint((field << 3) | wireType);
+    }
+
+    private static void writeMessage(PbfOutputStream out, int field, PbfOutputStream msg)
+    {
+        writeKey(out, field, WIRE_BYTES);
+        out.writeString(msg.buffer(), 0, msg.size());
+    }
+
+    private static void writeBytes(PbfOutputStream out, int field, byte[] bytes)
+    {
+        writeKey(out, field, WIRE_BYTES);
+        out.writeString(bytes, 0, bytes.length);
+    }
+
+    private static void writeString(PbfOutputStream out, int field, String s)
+    {
+        writeBytes(out, field, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Collects the string table and the single primitive group of a block.
+     */
+    private static class BlockBuilder
+    {
+        final MutableObjectIntMap<String> stringIndex = new ObjectIntHashMap<>();
+        final List<String> strings = new ArrayList<>();
+        final PbfOutputStream group = new PbfOutputStream();
+
+        BlockBuilder()
+        {
+            reset();
+        }
+
+        void reset()
+        {
+            stringIndex.clear();
+            strings.clear();
+            strings.add("");    // entry 0 is reserved as a delimiter
+            group.reset();
+        }
+
+        int string(String s)
+        {
+            int n = stringIndex.getIfAbsent(s, -1);
+            if(n < 0)
+            {
+                n = strings.size();
+                strings.add(s);
+                stringIndex.put(s, n);
+            }
+            return n;
+        }
+
+        byte[] encode()
+        {
+            PbfOutputStream table = new PbfOutputStream();
+            for(String s: strings) writeString(table, 1, s);
+            PbfOutputStream primitiveBlock = new PbfOutputStream();
+            writeMessage(primitiveBlock, 1, table);
+            writeMessage(primitiveBlock, 2, group);
+            // granularity, offsets and date_granularity use their defaults
+            return primitiveBlock.toByteArray();
+        }
+    }
+
+    /**
+     * Wraps a block into a Blob (deflating its contents), and prefixes it
+     * with its BlobHeader and the header's length.
+     */
+    private static byte[] frame(String type, byte[] data)
+    {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed = new byte[data.length + data.length / 100 + 64];
+        int compressedSize = 0;
+        while(!deflater.finished())
+        {
+            if(compressedSize == compressed.length)
+            {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedSize += deflater.deflate(compressed, compressedSize,
+                compressed.length - compressedSize);
+        }
+        deflater.end();
+
+        PbfOutputStream blob = new PbfOutputStream();
+        writeKey(blob, 2, WIRE_VARINT);
+        blob.writeVarint(data.length);                       // raw_size
+        writeKey(blob, 3, WIRE_BYTES);
+        blob.writeString(compressed, 0, compressedSize);     // zlib_data
+
+        PbfOutputStream header = new PbfOutputStream();
+        writeString(header, 1, type);
+        writeKey(header, 3, WIRE_VARINT);
+        header.writeVarint(blob.size());                     // datasize
+
+        int headerSize = header.size();
+        byte[] frame = new byte[4 + headerSize + blob.size()];
+        frame[0] = (byte)(headerSize >>> 24);
+        frame[1] = (byte)(headerSize >>> 16);
+        frame[2] = (byte)(headerSize >>> 8);
+        frame[3] = (byte)headerSize;
+        System.arraycopy(header.buffer(), 0, frame, 4, headerSize);
+        System.arraycopy(blob.buffer(), 0, frame, 4 + headerSize, blob.size());
+        return frame;
+    }
+
+    private void writeNext()
+    {
+        try
+        {
+            byte[] frame = pending.remove().get();
+            out.write(frame, 0, frame.length);
+        }
+        catch(InterruptedException | ExecutionException ex)
+        {
+            throw new RuntimeException("Failed to write PBF block", ex);
+        }
+    }
+
+    private void submit(String type, byte[] data)
+    {
+        pending.add(executor.submit(() -> frame(type, data)));
+        if(pending.size() > maxPending) writeNext();
+    }
+
+    private void flushBlock()
+    {
+        submit("OSMData", block.encode());
+        block.reset();
+    }
+
+    /**
+     * Writes the string indexes of the feature's tags (restricted to the
+     * selected columns) to `keys` and `values`, which may be the same
+     * stream (for DenseNodes, whose keys and values are interleaved).
+     */
+    private void encodeTags(Feature f, PbfOutputStream keys, PbfOutputStream values)
+    {
+        tagKeys = keys;
+        tagValues = values;
+        extractProperties(f);
+        printProperties();
+    }
+
+    @Override protected void printProperty(String key, String value)
+    {
+        tagKeys.writeVarint(block.string(key));
+        tagValues.writeVarint(block.string(value));
+    }
+
+    private void writeNodes(List<Feature> nodes)
+    {
+        PbfOutputStream ids = new PbfOutputStream();
+        PbfOutputStream lats = new PbfOutputStream();
+        PbfOutputStream lons = new PbfOutputStream();
+        PbfOutputStream keysVals = new PbfOutputStream();
+        PbfOutputStream dense = new PbfOutputStream();
+        for(int start=0; start<nodes.size(); start += BLOCK_SIZE)
+        {
+            int end = Math.min(start + BLOCK_SIZE, nodes.size());
+            long prevId = 0;
+            long prevLat = 0;
+            long prevLon = 0;
+            for(int i=start; i<end; i++)
+            {
+                Feature node = nodes.get(i);
+                long id = node.id();
+                long lat = Math.round(node.lat() * 1e7);
+                long lon = Math.round(node.lon() * 1e7);
+                ids.writeSignedVarint(id - prevId);
+                lats.writeSignedVarint(lat - prevLat);
+                lons.writeSignedVarint(lon - prevLon);
+                prevId = id;
+                prevLat = lat;
+                prevLon = lon;
+                encodeTags(node, keysVals, keysVals);
+                keysVals.writeVarint(0);
+            }
+            writeMessage(dense, 1, ids);
+            writeMessage(dense, 8, lats);
+            writeMessage(dense, 9, lons);
+            writeMessage(dense, 10, keysVals);
+            writeMessage(block.group, 2, dense);
+            flushBlock();
+            ids.reset();
+            lats.reset();
+            lons.reset();
+            keysVals.reset();
+            dense.reset();
+        }
+    }
+
+    private void writeWays(List<Feature> ways)
+    {
+        PbfOutputStream way = new PbfOutputStream();
+        PbfOutputStream keys = new PbfOutputStream();
+        PbfOutputStream values = new PbfOutputStream();
+        PbfOutputStream refs = new PbfOutputStream();
+        int count = 0;
+        for(Feature f: ways)
+        {
+            writeKey(way, 1, WIRE_VARINT);
+            way.writeVarint(f.id());
+            encodeTags(f, keys, values);
+            if(keys.size() > 0)
+            {
+                writeMessage(way, 2, keys);
+                writeMessage(way, 3, values);
+            }
+            long prevRef = 0;
+            for(Feature node: f.nodes())
+            {
+                long ref = wayNodeId(node);
+                refs.writeSignedVarint(ref - prevRef);
+                prevRef = ref;
+            }
+            writeMessage(way, 8, refs);
+            writeMessage(block.group, 3, way);
+            way.reset();
+            keys.reset();
+            values.reset();
+            refs.reset();
+            if(++count == BLOCK_SIZE)
+            {
+                flushBlock();
+                count = 0;
+            }
+        }
+        if(count > 0) flushBlock();
+    }
+
+    private static int memberType(FeatureType type)
+    {
+        return switch(type)
+        {
+            case NODE -> 0;
+            case WAY -> 1;
+            case RELATION -> 2;
+        };
+    }
+
+    private void writeRelations(List<Feature> relations)
+    {
+        PbfOutputStream rel = new PbfOutputStream();
+        PbfOutputStream keys = new PbfOutputStream();
+        PbfOutputStream values = new PbfOutputStream();
+        PbfOutputStream roles = new PbfOutputStream();
+        PbfOutputStream memberIds = new PbfOutputStream();
+        PbfOutputStream types = new PbfOutputStream();
+        int count = 0;
+        for(Feature f: relations)
+        {
+            writeKey(rel, 1, WIRE_VARINT);
+            rel.writeVarint(f.id());
+            encodeTags(f, keys, values);
+            if(keys.size() > 0)
+            {
+                writeMessage(rel, 2, keys);
+                writeMessage(rel, 3, values);
+            }
+            long prevMemberId = 0;
+            for(Feature member: f.members())
+            {
+                String role = member.role();
+                roles.writeVarint(block.string(role != null ? role : ""));
+                long memberId = member.id();
+                memberIds.writeSignedVarint(memberId - prevMemberId);
+                prevMemberId = memberId;
+                types.writeVarint(memberType(member.type()));
+            }
+            if(types.size() > 0)
+            {
+                writeMessage(rel, 8, roles);
+                writeMessage(rel, 9, memberIds);
+                writeMessage(rel, 10, types);
+            }
+            writeMessage(block.group, 4, rel);
+            rel.reset();
+            keys.reset();
+            values.reset();
+            roles.reset();
+            memberIds.reset();
+            types.reset();
+            if(++count == BLOCK_SIZE)
+            {
+                flushBlock();
+                count = 0;
+            }
+        }
+        if(count > 0) flushBlock();
+    }
+
+    @Override public void printHeader()
+    {
+        executor = ParallelGzipOutputStream.newExecutor(threads);
+        maxPending = threads * 2;
+
+        PbfOutputStream header = new PbfOutputStream();
+        writeString(header, 4, "OsmSchema-V0.6");       // required_features
+        writeString(header, 4, "DenseNodes");
+        writeString(header, 5, "Sort.Type_then_ID");    // optional_features
+        writeString(header, 16, "geodesk gol/" + GolTool.VERSION);  // writingprogram
+        submit("OSMHeader", header.toByteArray());
+    }
+
+    @Override public void printFooter()
+    {
+        try
+        {
+            loadAll();
+            Comparator<Feature> byId = Comparator.comparingLong(Feature::id);
+            List<Feature> list = allNodes();
+            list.sort(byId);
+            writeNodes(list);
+            list = new ArrayList<>(ways);
+            list.sort(byId);
+            writeWays(list);
+            list = new ArrayList<>(relations);
+            list.sort(byId);
+            writeRelations(list);
+            while(!pending.isEmpty()) writeNext();
+        }
+        finally
+        {
+            close();
+        }
+        out.flush();
+    }
+
+    @Override public void close()
+    {
+        if(executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
@@ -7,19 +7,19 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.geodesk.feature.Feature;
 import com.geodesk.io.PolyWriter;
 import com.geodesk.util.CoordinateTransformer;
 import org.locationtech.jts.geom.Geometry;
 
 import java.io.IOException;
-import java.io.PrintStream;
 
 public class PolyFeaturePrinter extends AbstractFeaturePrinter
 {
     private PolyWriter writer;
 
-    public PolyFeaturePrinter(PrintStream out)
+    public PolyFeaturePrinter(Utf8Sink out)
     {
         super(out);
     }
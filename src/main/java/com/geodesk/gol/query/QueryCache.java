@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A directory of query results, so a query that is repeated with the same
+ * parameters against an unchanged library can be answered by copying the
+ * earlier result, rather than running the query again.
+ *
+ * Each result is stored in a file named after its key, a hash of all
+ * parameters that affect the output (see {@link #key(String...)}); the
+ * caller is responsible for including the state of the library, so
+ * results become stale (and eventually get evicted) once it changes.
+ * A result file starts with the number of features (8 bytes), followed
+ * by the output as printed.
+ *
+ * The total size of the cache is bounded; when a new result pushes it
+ * over the limit, the least recently used results are deleted. (The time
+ * of last use is the file's modification time, which is updated whenever
+ * a result is read.)
+ *
+ * Results are written to a temporary file and moved into place once
+ * complete, so multiple processes can share a cache directory. Temporary
+ * files that haven't been written to for a while (left behind by a process
+ * that crashed or was killed) are deleted when the cache is opened.
+ */
+public class QueryCache
+{
+    private final Path dir;
+    private final long maxBytes;
+
+    private static final String SUFFIX = ".result";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The time after which a temporary file that hasn't been modified
+     * is considered abandoned
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    public QueryCache(Path dir, long maxBytes) throws IOException
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        deleteStaleTempFiles();
+    }
+
+    /**
+     * Deletes temporary files left behind by processes that didn't finish
+     * writing their results (files that are still being written by other
+     * processes are left alone).
+     */
+    private void deleteStaleTempFiles() throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try(Stream<Path> list = Files.list(dir))
+        {
+            list.filter(p -> p.getFileName().toString().endsWith(TEMP_SUFFIX)).forEach(files::add);
+        }
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        for(Path file: files)
+        {
+            try
+            {
+                if(Files.getLastModifiedTime(file).toMillis() < cutoff) Files.deleteIfExists(file);
+            }
+            catch(NoSuchFileException ex)
+            {
+                // committed or deleted by another process
+            }
+        }
+    }
+
+    /**
+     * Creates a key from the given parts (a SHA-256 hash, as a hex string).
+     * Null parts are allowed.
+     */
+    public static String key(String... parts)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException(ex);     // every JVM must support SHA-256
+        }
+        for(String part: parts)
+        {
+            if(part != null) digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+        }
+        StringBuilder buf = new StringBuilder(64);
+        for(byte b: digest.digest()) buf.append(String.format("%02x", b));
+        return buf.toString();
+    }
+
+    private Path path(String key)
+    {
+        return dir.resolve(key + SUFFIX);
+    }
+
+    /**
+     * Copies a cached result to the given stream.
+     *
+     * @return the number of features in the result, or -1 if the
+     *         cache holds no result for this key
+     */
+    public long read(String key, OutputStream out) throws IOException
+    {
+        Path path = path(key);
+        FileChannel channel;
+        try
+        {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        catch(NoSuchFileException ex)
+        {
+            return -1;
+        }
+        long count;
+        try(channel)
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(header.hasRemaining())
+            {
+                if(channel.read(header) < 0) return -1;     // truncated
+            }
+            count = header.getLong(0);
+            Channels.newInputStream(channel).transferTo(out);
+        }
+        try
+        {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch(NoSuchFileException ex)
+        {
+            // evicted by another process in the meantime
+        }
+        return count;
+    }
+
+    /**
+     * Starts writing the result for the given key. The result only
+     * becomes visible once {@link Entry#commit(long)} is called; if the
+     * entry is closed without being committed, it is discarded.
+     */
+    public Entry write(String key) throws IOException
+    {
+        return new Entry(key);
+    }
+
+    public class Entry extends OutputStream
+    {
+        private final String key;
+        private final Path tempPath;
+        private final FileChannel channel;
+        private final OutputStream out;
+        private boolean closed;
+
+        private Entry(String key) throws IOException
+        {
+            this.key = key;
+            tempPath = Files.createTempFile(dir, key, TEMP_SUFFIX);
+            channel = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+            channel.write(ByteBuffer.allocate(HEADER_SIZE));
+            out = Channels.newOutputStream(channel);
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            out.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Completes the result and moves it into the cache.
+         *
+         * @param count     the number of features in the result
+         */
+        public void commit(long count) throws IOException
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(0, count);
+            channel.write(header, 0);
+            channel.close();
+            closed = true;
+            Files.move(tempPath, path(key), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        }
+
+        @Override public void close() throws IOException
+        {
+            if(closed) return;
+            closed = true;
+            channel.close();
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Deletes the least recently used results until the total size of
+     * the cache is within its limit.
+     */
+    private void evict() throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try(Stream<Path> list = Files.list(dir))
+        {
+            list.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(files::add);
+        }
+        List<long[]> entries = new ArrayList<>(files.size());
+            // index, size, last-used time
+        long totalBytes = 0;
+        for(int i=0; i<files.size(); i++)
+        {
+            try
+            {
+                long size = Files.size(files.get(i));
+                long time = Files.getLastModifiedTime(files.get(i)).toMillis();
+                entries.add(new long[] { i, size, time });
+                totalBytes += size;
+            }
+            catch(NoSuchFileException ex)
+            {
+                // deleted by another process
+            }
+        }
+        if(totalBytes <= maxBytes) return;
+        entries.sort((a, b) -> Long.compare(a[2], b[2]));
+        for(long[] e: entries)
+        {
+            if(totalBytes <= maxBytes) break;
+            Files.deleteIfExists(files.get((int)e[0]));
+            totalBytes -= e[1];
+        }
+    }
+}
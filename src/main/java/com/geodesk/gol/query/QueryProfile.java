@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics about the execution of a query (for `gol query --profile`):
+ * how many tiles and cells were visited, how many features the library
+ * returned, how many were discarded (because they belong to a different
+ * cell, or fail the exact test against an area) and how many were
+ * printed, the number of bytes written, and the time spent in each stage.
+ *
+ * Workers update the counters concurrently; they should accumulate counts
+ * locally and add them once per cell, to keep contention low.
+ *
+ * Printing time is the wall-clock time spent in the printer's `print()`
+ * method, summed across all threads; it includes decoding tags and building
+ * geometries. Scanning time is the time spent retrieving features from the
+ * library (likewise summed across all threads), which includes walking the
+ * tile index and matching tags against the query.
+ *
+ * A query that runs sequentially without an area doesn't use cells, and
+ * the library only returns the features it matches, so the counts of
+ * cells and of discarded features are unknown (see {@link #sequential()});
+ * they are reported as "n/a" (or null, in JSON).
+ */
+public class QueryProfile
+{
+    public final LongAdder tilesVisited = new LongAdder();
+    public final LongAdder cellsQueried = new LongAdder();
+    public final LongAdder cellsSkipped = new LongAdder();
+    public final LongAdder cellsInside = new LongAdder();
+    public final LongAdder featuresScanned = new LongAdder();
+    public final LongAdder featuresForeign = new LongAdder();
+    public final LongAdder featuresTested = new LongAdder();
+    public final LongAdder featuresRejected = new LongAdder();
+    public final LongAdder featuresPrinted = new LongAdder();
+    public final LongAdder scanNanos = new LongAdder();
+    public final LongAdder printNanos = new LongAdder();
+    private long setupNanos;
+    private long totalNanos;
+    private long bytesWritten;
+    private int threads = 1;
+    private boolean sequential;
+    private final long start = System.nanoTime();
+
+    /**
+     * Marks the profile as that of a query that retrieves its features
+     * sequentially, without cells.
+     */
+    public void sequential()
+    {
+        sequential = true;
+    }
+
+    /**
+     * Marks the end of the setup stage (selecting the features and
+     * classifying the cells of an area).
+     */
+    public void setupDone()
+    {
+        setupNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Marks the end of the query.
+     *
+     * @param bytesWritten  the number of bytes of output
+     * @param threads       the number of threads used
+     */
+    public void done(long bytesWritten, int threads)
+    {
+        totalNanos = System.nanoTime() - start;
+        this.bytesWritten = bytesWritten;
+        this.threads = threads;
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / 1e6;
+    }
+
+    private String text(LongAdder counter)
+    {
+        return sequential ? "n/a" : String.format("%,d", counter.sum());
+    }
+
+    private String json(LongAdder counter)
+    {
+        return sequential ? "null" : Long.toString(counter.sum());
+    }
+
+    public void print(PrintStream out)
+    {
+        out.format("\nQuery profile (%d thread%s):\n", threads, threads == 1 ? "" : "s");
+        out.format("  Tiles visited:      %,15d\n", tilesVisited.sum());
+        out.format("  Cells queried:      %15s\n", text(cellsQueried));
+        out.format("    inside area:      %15s\n", text(cellsInside));
+        out.format("  Cells skipped:      %15s\n", text(cellsSkipped));
+        out.format("  Features scanned:   %15s\n", text(featuresScanned));
+        out.format("    in other cells:   %15s\n", text(featuresForeign));
+        out.format("    tested exactly:   %15s\n", text(featuresTested));
+        out.format("    rejected:         %15s\n", text(featuresRejected));
+        out.format("  Features printed:   %,15d\n", featuresPrinted.sum());
+        out.format("  Bytes written:      %,15d\n", bytesWritten);
+        out.format("  Setup:              %,15.1f ms\n", millis(setupNanos));
+        out.format("  Scanning:           %,15.1f ms (all threads)\n", millis(scanNanos.sum()));
+        out.format("  Printing:           %,15.1f ms (all threads)\n", millis(printNanos.sum()));
+        out.format("  Total:              %,15.1f ms\n", millis(totalNanos));
+    }
+
+    public void printJson(PrintStream out)
+    {
+        out.format(Locale.ROOT, "{\"threads\":%d,\"tiles_visited\":%d,\"cells_queried\":%s," +
+            "\"cells_inside\":%s,\"cells_skipped\":%s,\"features_scanned\":%s," +
+            "\"features_in_other_cells\":%s,\"features_tested\":%s," +
+            "\"features_rejected\":%s,\"features_printed\":%d,\"bytes_written\":%d," +
+            "\"setup_ms\":%.3f,\"scan_ms\":%.3f,\"print_ms\":%.3f,\"total_ms\":%.3f}\n",
+            threads, tilesVisited.sum(), json(cellsQueried), json(cellsInside),
+            json(cellsSkipped), json(featuresScanned), json(featuresForeign),
+            json(featuresTested), json(featuresRejected), featuresPrinted.sum(),
+            bytesWritten, millis(setupNanos), millis(scanNanos.sum()),
+            millis(printNanos.sum()), millis(totalNanos));
+    }
+}
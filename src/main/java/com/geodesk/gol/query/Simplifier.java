@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import org.locationtech.jts.geom.*;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the vertices of lines and rings as they are printed (for the
+ * formatting options `simplify` and `quantize`):
+ *
+ * - Douglas-Peucker simplification, which drops vertices that deviate
+ *   less than a given distance (in meters, at the latitude of the line)
+ *   from the simplified line.
+ *
+ * - Snapping to a grid (cells are the given number of meters wide at the
+ *   Equator, i.e. they are uniform in Mercator projection, so vertices
+ *   shared by adjacent features snap to the same point), after which
+ *   consecutive duplicate vertices are dropped.
+ *
+ * The coordinates are read into reusable buffers, rather than creating
+ * simplified geometries; the printer then prints the remaining vertices
+ * (see {@link #x(int)} and {@link #y(int)}). A line keeps at least 2
+ * vertices, and a ring at least 4; if snapping would collapse a line or
+ * ring below that, it is printed unsnapped.
+ *
+ * Not threadsafe; each printer needs its own.
+ */
+public class Simplifier
+{
+    /**
+     * The length of the Equator (in meters), which spans 2^32 units
+     * in Mercator projection
+     */
+    public static final double EARTH_CIRCUMFERENCE = 40_075_016.68558;
+    public static final double METERS_PER_UNIT_AT_EQUATOR =
+        EARTH_CIRCUMFERENCE / 4294967296.0;
+
+    private double tolerance;
+    private double grid;
+    private double[] xs = new double[256];
+    private double[] ys = new double[256];
+    private boolean[] keep = new boolean[256];
+    private int[] stack = new int[64];
+    private double[] outX = new double[256];
+    private double[] outY = new double[256];
+
+    /**
+     * Sets the maximum distance (in meters) by which the simplified line
+     * may deviate from the original (0 to disable simplification).
+     */
+    public void tolerance(double meters)
+    {
+        if(meters < 0) throw new IllegalArgumentException("Must not be negative");
+        tolerance = meters;
+    }
+
+    /**
+     * Sets the size of grid cells (in meters at the Equator) to which
+     * vertices are snapped (0 to disable snapping).
+     */
+    public void grid(double meters)
+    {
+        if(meters < 0) throw new IllegalArgumentException("Must not be negative");
+        grid = meters / METERS_PER_UNIT_AT_EQUATOR;
+    }
+
+    public boolean isEnabled()
+    {
+        return tolerance > 0 || grid > 0;
+    }
+
+    /**
+     * Returns the number of meters per Mercator unit at the given y.
+     */
+    public static double metersPerUnit(double y)
+    {
+        return METERS_PER_UNIT_AT_EQUATOR / Math.cosh(y * Math.PI / 2147483648.0);
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if(xs.length >= n) return;
+        int size = Math.max(n, xs.length * 2);
+        xs = new double[size];
+        ys = new double[size];
+        keep = new boolean[size];
+        outX = new double[size];
+        outY = new double[size];
+    }
+
+    /**
+     * Simplifies a line (or ring) given as x/y pairs.
+     *
+     * @return the number of remaining vertices
+     */
+    public int simplify(int[] coords, boolean ring)
+    {
+        int n = coords.length / 2;
+        ensureCapacity(n);
+        for(int i=0; i<n; i++)
+        {
+            xs[i] = coords[i*2];
+            ys[i] = coords[i*2+1];
+        }
+        return simplify(n, ring);
+    }
+
+    /**
+     * Simplifies a line (or ring) given as a coordinate sequence.
+     *
+     * @return the number of remaining vertices
+     */
+    public int simplify(CoordinateSequence seq, boolean ring)
+    {
+        int n = seq.size();
+        ensureCapacity(n);
+        for(int i=0; i<n; i++)
+        {
+            xs[i] = seq.getOrdinate(i, 0);
+            ys[i] = seq.getOrdinate(i, 1);
+        }
+        return simplify(n, ring);
+    }
+
+    /**
+     * Returns the x-coordinate of a remaining vertex.
+     */
+    public double x(int i)
+    {
+        return outX[i];
+    }
+
+    /**
+     * Returns the y-coordinate of a remaining vertex.
+     */
+    public double y(int i)
+    {
+        return outY[i];
+    }
+
+    private static double distanceSquared(double x, double y,
+        double x1, double y1, double x2, double y2)
+    {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lenSquared = dx * dx + dy * dy;
+        if(lenSquared > 0)
+        {
+            double t = ((x - x1) * dx + (y - y1) * dy) / lenSquared;
+            t = Math.max(0, Math.min(1, t));
+            x1 += t * dx;
+            y1 += t * dy;
+        }
+        dx = x - x1;
+        dy = y - y1;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Marks the vertices between `start` and `end` that must be kept to
+     * stay within the tolerance (Douglas-Peucker, using a stack instead
+     * of recursion, since lines can have many thousands of vertices).
+     */
+    private void markVertices(int start, int end, double toleranceSquared)
+    {
+        int top = 0;
+        stack[top++] = start;
+        stack[top++] = end;
+        while(top > 0)
+        {
+            int b = stack[--top];
+            int a = stack[--top];
+            if(b - a < 2) continue;
+            double maxDist = -1;
+            int farthest = -1;
+            for(int i=a+1; i<b; i++)
+            {
+                double d = distanceSquared(xs[i], ys[i], xs[a], ys[a], xs[b], ys[b]);
+                if(d > maxDist)
+                {
+                    maxDist = d;
+                    farthest = i;
+                }
+            }
+            if(maxDist <= toleranceSquared) continue;
+            keep[farthest] = true;
+            if(top + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[top++] = a;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = b;
+        }
+    }
+
+    /**
+     * Copies the kept vertices to the output, optionally snapping them
+     * to the grid and dropping consecutive duplicates.
+     *
+     * @return the number of vertices
+     */
+    private int collect(int n, boolean snap)
+    {
+        int count = 0;
+        for(int i=0; i<n; i++)
+        {
+            if(!keep[i]) continue;
+            double x = xs[i];
+            double y = ys[i];
+            if(snap)
+            {
+                x = Math.round(x / grid) * grid;
+                y = Math.round(y / grid) * grid;
+                if(count > 0 && x == outX[count-1] && y == outY[count-1]) continue;
+            }
+            outX[count] = x;
+            outY[count] = y;
+            count++;
+        }
+        return count;
+    }
+
+    private int simplify(int n, boolean ring)
+    {
+        int minVertices = ring ? 4 : 2;
+        if(tolerance > 0 && n > minVertices)
+        {
+            Arrays.fill(keep, 0, n, false);
+            keep[0] = true;
+            keep[n-1] = true;
+            double t = tolerance / metersPerUnit(ys[n / 2]);
+            double toleranceSquared = t * t;
+            if(ring)
+            {
+                // The endpoints of a ring coincide, so we split it at the
+                // vertex farthest from its start, which is always kept
+                int farthest = 1;
+                double maxDist = -1;
+                for(int i=1; i<n-1; i++)
+                {
+                    double dx = xs[i] - xs[0];
+                    double dy = ys[i] - ys[0];
+                    double d = dx * dx + dy * dy;
+                    if(d > maxDist)
+                    {
+                        maxDist = d;
+                        farthest = i;
+                    }
+                }
+                keep[farthest] = true;
+                markVertices(0, farthest, toleranceSquared);
+                markVertices(farthest, n-1, toleranceSquared);
+                // A ring needs at least 3 distinct vertices
+                if(collect(n, false) < minVertices) Arrays.fill(keep, 0, n, true);
+            }
+            else
+            {
+                markVertices(0, n-1, toleranceSquared);
+            }
+        }
+        else
+        {
+            Arrays.fill(keep, 0, n, true);
+        }
+        if(grid > 0)
+        {
+            int count = collect(n, true);
+            if(count >= minVertices) return count;
+        }
+        return collect(n, false);
+    }
+
+    /**
+     * Returns a simplified copy of a geometry (for printers that need a
+     * geometry, rather than printing the coordinates themselves). Points
+     * are returned as-is.
+     */
+    public Geometry simplify(Geometry g)
+    {
+        GeometryFactory factory = g.getFactory();
+        if(g instanceof LinearRing)
+        {
+            return factory.createLinearRing(coordinates(((LinearRing)g).getCoordinateSequence(), true));
+        }
+        if(g instanceof LineString)
+        {
+            return factory.createLineString(coordinates(((LineString)g).getCoordinateSequence(), false));
+        }
+        if(g instanceof Polygon)
+        {
+            Polygon polygon = (Polygon)g;
+            LinearRing[] holes = new LinearRing[polygon.getNumInteriorRing()];
+            for(int i=0; i<holes.length; i++)
+            {
+                holes[i] = (LinearRing)simplify(polygon.getInteriorRingN(i));
+            }
+            return factory.createPolygon((LinearRing)simplify(polygon.getExteriorRing()), holes);
+        }
+        if(g instanceof GeometryCollection)
+        {
+            Geometry[] parts = new Geometry[g.getNumGeometries()];
+            for(int i=0; i<parts.length; i++) parts[i] = simplify(g.getGeometryN(i));
+            return factory.buildGeometry(Arrays.asList(parts));
+        }
+        return g;
+    }
+
+    private Coordinate[] coordinates(CoordinateSequence seq, boolean ring)
+    {
+        int n = simplify(seq, ring);
+        Coordinate[] coords = new Coordinate[n];
+        for(int i=0; i<n; i++) coords[i] = new Coordinate(outX[i], outY[i]);
+        return coords;
+    }
+}
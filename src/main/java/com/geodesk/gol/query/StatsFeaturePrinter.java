@@ -7,6 +7,9 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.collect.HyperLogLog;
+import com.clarisma.common.collect.TopK;
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Table;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Relation;
@@ -15,10 +18,9 @@ import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
 import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
-import java.io.PrintStream;
 import java.util.*;
 
-public class StatsFeaturePrinter extends AbstractFeaturePrinter
+public class StatsFeaturePrinter extends AbstractFeaturePrinter implements AggregatingPrinter
 {
     /**
      * A counter for each row in the report.
@@ -78,6 +80,20 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
      */
     private MutableObjectIntMap<String> currentRoles;
     private long currentRelationId;
+    /**
+     * If greater than zero, KEYS and TAGS reports are approximate: for each
+     * key, only the `topK` most frequent values are tracked (using a
+     * sketch of bounded size), and the number of distinct values is
+     * estimated. This keeps memory bounded for keys with very many distinct
+     * values (e.g. `name` or `addr:housenumber`).
+     */
+    private int topK;
+
+    /**
+     * The per-key sketches (approximate mode only)
+     */
+    private final Map<String, KeySketch> sketches = new HashMap<>();
+
     private TallyMode tallyMode = TallyMode.KEYS;
     private Unit unit = Unit.M;
     private int maxTableWidth = 100;
@@ -117,6 +133,11 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         case "tally":
             tallyMode = getValue(value, TallyMode.class);
             return true;
+        case "top":
+            checkValue(value);
+            topK = (int)Math.round(Options.parseDouble(value));
+            if(topK < 1) throw new IllegalArgumentException("Must be at least 1");
+            return true;
         case "unit":
             unit = getValue(value, Unit.class);
             return true;
@@ -161,6 +182,17 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
          */
         Counter parent;
 
+        /**
+         * For -f:top (key rows only): the number of distinct values of
+         * the key, or -1 if not tracked
+         */
+        long distinct = -1;
+
+        /**
+         * Whether `distinct` is an estimate
+         */
+        boolean distinctEstimated;
+
         @Override public int compareTo(Counter other)
         {
             return Double.compare(other.tally, tally);
@@ -218,6 +250,81 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         }
     }
 
+    /**
+     * Tracks the values of a key in approximate mode.
+     */
+    private static class KeySketch
+    {
+        double tally;
+        final TopK<String> values;
+
+        /**
+         * The distinct values, as long as there are few of them (so the
+         * most common case, keys with few values, is counted exactly)
+         */
+        Set<String> distinctValues = new HashSet<>();
+
+        /**
+         * Estimates the number of distinct values, once there are too
+         * many to track them individually
+         */
+        HyperLogLog distinct;
+
+        private static final int MAX_EXACT_DISTINCT = 1024;
+        private static final int DISTINCT_PRECISION = 12;
+
+        KeySketch(int topK)
+        {
+            values = new TopK<>(topK);
+        }
+
+        private void switchToEstimate()
+        {
+            distinct = new HyperLogLog(DISTINCT_PRECISION);
+            for(String v: distinctValues) distinct.add(HyperLogLog.hash(v));
+            distinctValues = null;
+        }
+
+        void add(String value)
+        {
+            tally++;
+            values.add(value, 1);
+            if(distinct != null)
+            {
+                distinct.add(HyperLogLog.hash(value));
+                return;
+            }
+            distinctValues.add(value);
+            if(distinctValues.size() > MAX_EXACT_DISTINCT) switchToEstimate();
+        }
+
+        void merge(KeySketch other)
+        {
+            tally += other.tally;
+            values.merge(other.values);
+            if(distinct == null && other.distinct == null)
+            {
+                distinctValues.addAll(other.distinctValues);
+                if(distinctValues.size() > MAX_EXACT_DISTINCT) switchToEstimate();
+                return;
+            }
+            if(distinct == null) switchToEstimate();
+            if(other.distinct != null)
+            {
+                distinct.merge(other.distinct);
+            }
+            else
+            {
+                for(String v: other.distinctValues) distinct.add(HyperLogLog.hash(v));
+            }
+        }
+
+        long distinctCount()
+        {
+            return distinct != null ? distinct.estimate() : distinctValues.size();
+        }
+    }
+
     private static class LexicalComparator implements Comparator<Counter>
     {
         @Override public int compare(Counter a, Counter b)
@@ -272,13 +379,18 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         }
     }
 
-    public StatsFeaturePrinter(PrintStream out)
+    public StatsFeaturePrinter(Utf8Sink out)
     {
         super(out);
     }
 
     @Override public void printHeader()
     {
+        if(topK > 0 && tallyMode != TallyMode.KEYS && tallyMode != TallyMode.TAGS)
+        {
+            throw new IllegalArgumentException(
+                "-f:top only applies to -f:tally=keys or -f:tally=tags");
+        }
         switch(tallyMode)
         {
         case KEYS, TAGS:
@@ -308,14 +420,20 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         key.tags = new String[columnCount];
     }
 
-    private Counter addToCounter(double tally)
+    private Counter counterFor(Counter k)
     {
-        Counter counter = counters.get(key);
+        Counter counter = counters.get(k);
         if(counter == null)
         {
-            counter = key.copy();
+            counter = k.copy();
             counters.put(counter, counter);
         }
+        return counter;
+    }
+
+    private Counter addToCounter(double tally)
+    {
+        Counter counter = counterFor(key);
         counter.tally += tally;
         return counter;
     }
@@ -387,7 +505,7 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
 
     @Override public void print(Feature feature)
     {
-        extractProperties(feature.tags());
+        extractProperties(feature);
         double tally = 0;
         switch(tallyMode)
         {
@@ -421,6 +539,17 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
 
     protected void printProperty(String k, String v)
     {
+        if(topK > 0)
+        {
+            KeySketch sketch = sketches.get(k);
+            if(sketch == null)
+            {
+                sketch = new KeySketch(topK);
+                sketches.put(k, sketch);
+            }
+            sketch.add(v);
+            return;
+        }
         key.tags[0] = k;
         key.tags[1] = "";
         Counter keyCounter = addToCounter(1);
@@ -429,8 +558,71 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         if(tallyMode == TallyMode.KEYS) valueCounter.parent = keyCounter;
     }
 
+    @Override public void merge(AggregatingPrinter printer)
+    {
+        StatsFeaturePrinter other = (StatsFeaturePrinter)printer;
+        for(Counter c: other.counters.values())
+        {
+            Counter counter = counterFor(c);
+            counter.tally += c.tally;
+            // Each relation is tallied by only one printer, so the
+            // relation counts can simply be added up
+            counter.relCount += c.relCount;
+            if(c.relations != null)
+            {
+                if(counter.relations == null) counter.relations = new LongHashSet();
+                counter.relations.addAll(c.relations);
+            }
+            if(c.parent != null) counter.parent = counterFor(c.parent);
+        }
+        other.sketches.forEach((k, sketch) ->
+        {
+            KeySketch mergedSketch = sketches.get(k);
+            if(mergedSketch == null)
+            {
+                sketches.put(k, sketch);
+            }
+            else
+            {
+                mergedSketch.merge(sketch);
+            }
+        });
+        totalTally += other.totalTally;
+        totalRelationCount += other.totalRelationCount;
+        totalFeatureCount += other.totalFeatureCount;
+    }
+
+    /**
+     * Turns the per-key sketches of approximate mode into counters.
+     */
+    private void addSketchCounters()
+    {
+        sketches.forEach((k, sketch) ->
+        {
+            key.tags[0] = k;
+            key.tags[1] = "";
+            Counter keyCounter = addToCounter(sketch.tally);
+            keyCounter.distinct = sketch.distinctCount();
+            keyCounter.distinctEstimated = sketch.distinct != null;
+            sketch.values.forEach((v, tally) ->
+            {
+                key.tags[1] = v;
+                Counter valueCounter = addToCounter(tally);
+                if(tallyMode == TallyMode.KEYS) valueCounter.parent = keyCounter;
+            });
+        });
+        sketches.clear();
+    }
+
+    private static String distinctLabel(Counter c)
+    {
+        return String.format("(%s%,d value%s)", c.distinctEstimated ? "~" : "",
+            c.distinct, c.distinct == 1 ? "" : "s");
+    }
+
     @Override public void printFooter()
     {
+        if(topK > 0) addSketchCounters();
         List<Counter> list = new ArrayList<>(counters.values());
         if(tallyMode == TallyMode.KEYS)
         {
@@ -454,11 +646,13 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
                 if(c.tags[1].isEmpty())
                 {
                     totalKeys++;
+                    // Every tag counts towards the tally of its key
+                    totalTags += c.tally;
+                    if(c.distinct >= 0) totalKeyValues += c.distinct;
                 }
-                else
+                else if(topK == 0)
                 {
                     totalKeyValues++;
-                    totalTags += c.tally;
                 }
             }
         }
@@ -570,7 +764,8 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
                 String value = c.tags[1];
                 if(value.isEmpty())
                 {
-                    table.add(c.tags[0]);   // key
+                    table.add(c.distinct >= 0 ?
+                        c.tags[0] + " " + distinctLabel(c) : c.tags[0]);   // key
                 }
                 else
                 {
@@ -581,7 +776,14 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
                 table.add(c.tags[0]);   // key
                 table.add("=");
                 value = c.tags[1];
-                table.add(value.isEmpty() ? "*" : value);
+                if(value.isEmpty())
+                {
+                    table.add(c.distinct >= 0 ? "* " + distinctLabel(c) : "*");
+                }
+                else
+                {
+                    table.add(value);
+                }
                 break;
             default:
                 for(String tag: c.tags) table.add(tag);
@@ -7,18 +7,17 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.clarisma.common.text.Table;
 import com.geodesk.feature.Feature;
 
-import java.io.PrintStream;
-
 public class TableFeaturePrinter extends AbstractFeaturePrinter
 {
     private Table table;
     private Column currentColumn;
     private final StringBuilder buf = new StringBuilder();
 
-    public TableFeaturePrinter(PrintStream out)
+    public TableFeaturePrinter(Utf8Sink out)
     {
         super(out);
         table = new Table();
@@ -49,7 +48,7 @@ public class TableFeaturePrinter extends AbstractFeaturePrinter
     @Override public void print(Feature feature)
     {
         setCoordinateProperties(feature);
-        extractProperties(feature.tags());
+        extractProperties(feature);
         int currentRow = table.newRow();
         table.add(feature.toString());
         for (int col = 0; col < columns.size(); col++)
@@ -7,15 +7,15 @@
 
 package com.geodesk.gol.query;
 
+import com.clarisma.common.io.Utf8Sink;
 import com.geodesk.feature.Feature;
-
-import java.io.PrintStream;
+import org.locationtech.jts.geom.*;
 
 public class WktFeaturePrinter extends AbstractFeaturePrinter
 {
     private boolean firstFeature = true;
 
-    public WktFeaturePrinter(PrintStream out)
+    public WktFeaturePrinter(Utf8Sink out)
     {
         super(out);
     }
@@ -29,7 +29,109 @@ public class WktFeaturePrinter extends AbstractFeaturePrinter
     {
         if(!firstFeature) out.print(",\n");
         // out.print("\t");
-        out.print(feature.toGeometry());
+        printGeometry(feature.toGeometry());
+        firstFeature = false;
+    }
+
+    private void printCoordinates(CoordinateSequence seq)
+    {
+        out.print('(');
+        for(int i=0; i<seq.size(); i++)
+        {
+            if(i > 0) out.print(", ");
+            printX(seq.getOrdinate(i, 0));
+            out.print(' ');
+            printY(seq.getOrdinate(i, 1));
+        }
+        out.print(')');
+    }
+
+    private void printPolygon(Polygon g)
+    {
+        out.print('(');
+        printCoordinates(g.getExteriorRing().getCoordinateSequence());
+        for(int i=0; i<g.getNumInteriorRing(); i++)
+        {
+            out.print(", ");
+            printCoordinates(g.getInteriorRingN(i).getCoordinateSequence());
+        }
+        out.print(')');
+    }
+
+    /**
+     * Writes a geometry in the same form as JTS' WKTWriter, but with
+     * transformed coordinates formatted at the requested precision.
+     */
+    private void printGeometry(Geometry g)
+    {
+        out.print(g.getGeometryType().toUpperCase());
+        if(g.isEmpty())
+        {
+            out.print(" EMPTY");
+            return;
+        }
+        out.print(' ');
+        if(g instanceof Point)
+        {
+            printCoordinates(((Point)g).getCoordinateSequence());
+        }
+        else if(g instanceof LineString)
+        {
+            printCoordinates(((LineString)g).getCoordinateSequence());
+        }
+        else if(g instanceof Polygon)
+        {
+            printPolygon((Polygon)g);
+        }
+        else
+        {
+            // Members of a GeometryCollection carry their own type name,
+            // members of MultiPoint/MultiLineString/MultiPolygon don't
+            boolean typedMembers = !(g instanceof MultiPoint ||
+                g instanceof MultiLineString || g instanceof MultiPolygon);
+            out.print('(');
+            for(int i=0; i<g.getNumGeometries(); i++)
+            {
+                if(i > 0) out.print(", ");
+                Geometry part = g.getGeometryN(i);
+                if(typedMembers)
+                {
+                    printGeometry(part);
+                }
+                else if(part instanceof Polygon)
+                {
+                    printPolygon((Polygon)part);
+                }
+                else if(part instanceof LineString)
+                {
+                    printCoordinates(((LineString)part).getCoordinateSequence());
+                }
+                else
+                {
+                    printCoordinates(((Point)part).getCoordinateSequence());
+                }
+            }
+            out.print(')');
+        }
+    }
+
+    @Override public boolean isMergeable()
+    {
+        return true;
+    }
+
+    @Override public String featureSeparator()
+    {
+        return ",\n";
+    }
+
+    @Override public void startRecord()
+    {
+        firstFeature = true;
+    }
+
+    @Override public void featuresPrinted()
+    {
         firstFeature = false;
     }
 
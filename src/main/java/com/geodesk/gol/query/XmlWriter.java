@@ -7,56 +7,94 @@
 
 package com.geodesk.gol.query;
 
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import com.clarisma.common.io.Utf8Sink;
+
 import java.util.Stack;
 
-public class XmlWriter extends PrintWriter
+public class XmlWriter
 {
+    private final Utf8Sink out;
     private final String indentString = "  ";
     private final Stack<String> elements = new Stack<>();
     private boolean childElements = true;
+    private final int baseDepth;
+
+    public XmlWriter(Utf8Sink out)
+    {
+        this.out = out;
+        baseDepth = 0;
+        out.println("<?xml version='1.0' encoding='UTF-8'?>");
+    }
 
-    public XmlWriter(OutputStream out)
+    /**
+     * Creates a writer for a fragment of a document (without XML
+     * declaration), whose elements are nested `depth` levels deep.
+     */
+    public XmlWriter(Utf8Sink out, int depth)
     {
-        super(out);
-        println("<?xml version='1.0' encoding='UTF-8'?>");
+        this.out = out;
+        baseDepth = depth;
     }
 
     protected void indent()
     {
-        for(int i=0; i<elements.size(); i++) print(indentString);
+        for(int i=0; i<baseDepth + elements.size(); i++) out.print(indentString);
     }
 
     public void begin(String tag)
     {
         if(!childElements)
         {
-            println(">");
+            out.println(">");
         }
         indent();
-        print("<");
-        print(tag);
+        out.print("<");
+        out.print(tag);
         elements.push(tag);
         childElements = false;
     }
 
     public void attr(String a, Object v)
     {
-        print(' ');
-        print(a);
-        print("=\"");
-        print(EscapeXml.escapeXml(v.toString()));
-        print('\"');
+        out.print(' ');
+        out.print(a);
+        out.print("=\"");
+        out.print(EscapeXml.escapeXml(v.toString()));
+        out.print('\"');
     }
 
     public void attr(String a, long v)
     {
-        print(' ');
-        print(a);
-        print("=\"");
-        print(v);
-        print('\"');
+        out.print(' ');
+        out.print(a);
+        out.print("=\"");
+        out.print(v);
+        out.print('\"');
+    }
+
+    /**
+     * Writes a numeric attribute with at most `precision` decimal places.
+     */
+    public void attr(String a, double v, int precision)
+    {
+        out.print(' ');
+        out.print(a);
+        out.print("=\"");
+        out.printFixed(v, precision);
+        out.print('\"');
+    }
+
+    /**
+     * Completes the start tag of the current element, so content can be
+     * written to the underlying sink directly.
+     */
+    public void closeStartTag()
+    {
+        if(!childElements)
+        {
+            out.println(">");
+            childElements = true;
+        }
     }
 
     public void end()
@@ -65,14 +103,19 @@ public class XmlWriter extends PrintWriter
         if(childElements)
         {
             indent();
-            print("</");
-            print(tag);
-            println(">");
+            out.print("</");
+            out.print(tag);
+            out.println(">");
         }
         else
         {
-            println("/>");
+            out.println("/>");
         }
         childElements = true;
     }
+
+    public void flush()
+    {
+        out.flush();
+    }
 }
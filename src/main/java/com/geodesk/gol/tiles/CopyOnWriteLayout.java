@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.tiles;
+
+import com.clarisma.common.soar.Struct;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Places the structs of changed features behind the original contents
+ * of a tile. A changed feature's body is always placed anew (the original
+ * body becomes dead space); its tag table, strings and relation table are
+ * only placed if they have not been read from the original tile.
+ */
+public class CopyOnWriteLayout extends StructLayout
+{
+    private final List<Struct> tempList = new ArrayList<>();
+
+    public CopyOnWriteLayout(Struct header, int originalSize)
+    {
+        super(header, originalSize);
+    }
+
+    public void placeChanged(TFeature f)
+    {
+        TTagTable tags = f.tags();
+        if(tags.location() == 0) place(tags);
+        tags.gatherStrings(tempList);
+        if(f instanceof TRelation rel) rel.gatherStrings(tempList);
+        for(Struct s: tempList) if(s.location() == 0) place(s);
+        tempList.clear();
+        Struct body = f.body();
+        if(body != null) place(body);
+        TRelationTable relTable = f.relations();
+        if(relTable != null && relTable.location() == 0)
+        {
+            place(relTable);
+        }
+    }
+}
@@ -30,4 +30,14 @@ public class IndexSettings
         maxIndexedKey = keysToCategory.keySet().max();
     }
 
+    public IndexSettings(int rtreeBucketSize, int maxKeyIndexes,
+        int keyIndexMinFeatures, IntIntMap keysToCategory)
+    {
+        this.rtreeBucketSize = rtreeBucketSize;
+        this.maxKeyIndexes = maxKeyIndexes;
+        this.keyIndexMinFeatures = keyIndexMinFeatures;
+        this.keysToCategory = keysToCategory;
+        maxIndexedKey = keysToCategory.keySet().max();
+    }
+
 }
@@ -21,11 +21,20 @@ public class StructLayout
     private Queue<Struct> deferred = new ArrayDeque<>();
 
     public StructLayout(Struct header)
+    {
+        this(header, header.size());
+    }
+
+    /**
+     * Creates a layout whose structs are placed after the given position
+     * (rather than immediately after the header).
+     */
+    public StructLayout(Struct header, int start)
     {
         this.header = header;
         last = header;
         header.setLocation(0);
-        pos = header.size();
+        pos = start;
     }
 
     public int size()
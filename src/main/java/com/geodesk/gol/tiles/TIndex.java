@@ -10,7 +10,6 @@ package com.geodesk.gol.tiles;
 import com.clarisma.common.soar.Struct;
 import com.clarisma.common.soar.StructWriter;
 import com.geodesk.geom.*;
-import org.eclipse.collections.api.map.primitive.IntIntMap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -20,8 +19,6 @@ import java.util.function.Consumer;
 public class TIndex extends Struct implements SpatialTreeFactory<TIndex.Branch>
 {
     private final IndexSettings settings;
-    private final IntIntMap keysToCategory;
-    private final int maxIndexedKey;
     private final BoxBuilder boxBuilder = new BoxBuilder();
     private final Root[] roots;
     private int rootCount;
@@ -32,22 +29,21 @@ public class TIndex extends Struct implements SpatialTreeFactory<TIndex.Branch>
     public TIndex(IndexSettings settings)
     {
         this.settings = settings;
-        this.keysToCategory = settings.keysToCategory;
-        this.maxIndexedKey = settings.maxIndexedKey;
         roots = new Root[MAX_CATEGORIES + 1];
         for(int i=0; i<roots.length; i++) roots[i] = new Root();
         mixedRoot = new Root();
         setAlignment(2);        // 4-byte aligned (1 << 2)
     }
 
-    public void add(TFeature feature)
+    /**
+     * Calculates the index bits of a feature with the given tags (one bit
+     * for each key category).
+     */
+    public static int indexBits(IndexSettings settings, TTagTable tags)
     {
         // Remember: categories start with 1
 
-        int category = 0;
         int indexBits = 0;
-        boolean multiCategory = false;
-        TTagTable tags = feature.tags;
         int tagCount = tags.tagCount();
         for(int i=0; i<tagCount; i++)
         {
@@ -60,17 +56,30 @@ public class TIndex extends Struct implements SpatialTreeFactory<TIndex.Branch>
                 // TTagTable, if we encounter a local key, we know there are
                 // no further possible indexed keys (as indexed keys always
                 // use global strings)
-            if(k > maxIndexedKey) break;
-            int keyCategory = keysToCategory.getIfAbsent(k, 0);
+            if(k > settings.maxIndexedKey) break;
+            int keyCategory = settings.keysToCategory.getIfAbsent(k, 0);
             if(keyCategory > 0)
             {
-                if(category != 0) multiCategory = true;
-                category = keyCategory;
-                assert category >= 1 && category <= MAX_CATEGORIES;
-                indexBits |= (1 << (category-1));
+                assert keyCategory <= MAX_CATEGORIES;
+                indexBits |= (1 << (keyCategory-1));
             }
         }
-        Root root = multiCategory ? mixedRoot : roots[category];
+        return indexBits;
+    }
+
+    public void add(TFeature feature)
+    {
+        int indexBits = indexBits(settings, feature.tags);
+        Root root;
+        if(Integer.bitCount(indexBits) > 1)
+        {
+            root = mixedRoot;
+        }
+        else
+        {
+            // single category (or none at all, which maps to roots[0])
+            root = roots[32 - Integer.numberOfLeadingZeros(indexBits)];
+        }
         root.add(feature, indexBits);
     }
 
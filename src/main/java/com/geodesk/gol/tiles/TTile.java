@@ -17,14 +17,24 @@ import com.geodesk.feature.FeatureType;
 import com.geodesk.geom.Bounds;
 import com.geodesk.gol.build.TileCatalog;
 import org.eclipse.collections.api.map.primitive.*;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class TTile
 {
+    /**
+     * In copy-on-write mode, the tile is rebuilt instead if the appended
+     * structs would exceed 1/n of the original tile's size. (The original
+     * bodies of changed features become dead space, and only a full rebuild
+     * reclaims it.)
+     */
+    private static final int MAX_DEAD_SPACE_RATIO = 4;
+
     private final int tile;
     private final TileCatalog tileCatalog;
     private final IndexSettings indexSettings;
@@ -38,7 +48,10 @@ public class TTile
     private final MutableLongObjectMap<TRelation> relations = new LongObjectHashMap<>();
     private final Map<TTagTable, TTagTable> tagTables = new HashMap<>();
     private final Map<TRelationTable, TRelationTable> relationTables = new HashMap<>();
+    private final List<Change> changes = new ArrayList<>();
     Header header;
+    private Struct firstStruct;
+    private int payloadSize;
 
     public class Header extends Struct
     {
@@ -86,6 +99,102 @@ public class TTile
         }
     }
 
+    /**
+     * A feature that is changed in copy-on-write mode, along with its
+     * position in the spatial index.
+     */
+    public static class Change
+    {
+        private final TFeature feature;
+        private final int rootIndexBits;
+        private final int[] branchEntries;
+
+        /**
+         * @param feature           the feature
+         * @param rootIndexBits     the index bits of the root that contains
+         *                          the feature's stub
+         * @param branchEntries     the positions of the branch entries (from
+         *                          the top down) that lead to the feature's leaf
+         */
+        Change(TFeature feature, int rootIndexBits, int[] branchEntries)
+        {
+            this.feature = feature;
+            this.rootIndexBits = rootIndexBits;
+            this.branchEntries = branchEntries;
+        }
+
+        public TFeature feature()
+        {
+            return feature;
+        }
+
+        public int rootIndexBits()
+        {
+            return rootIndexBits;
+        }
+
+        public int[] branchEntries()
+        {
+            return branchEntries;
+        }
+    }
+
+    /**
+     * Overwrites the first word of the original tile (the payload size)
+     * in copy-on-write mode.
+     */
+    private class PayloadSizePatch extends Struct
+    {
+        PayloadSizePatch()
+        {
+            setSize(4);
+        }
+
+        @Override public void write(StructWriter out)
+        {
+            out.writeInt(payloadSize);
+        }
+    }
+
+    /**
+     * Overwrites the bounding box of an entry in a branch of the original
+     * spatial index, if a changed feature no longer fits inside of it.
+     */
+    private static class BoundsPatch extends Struct
+    {
+        private int minX;
+        private int minY;
+        private int maxX;
+        private int maxY;
+        private boolean modified;
+
+        BoundsPatch(ByteBuffer buf, int pEntry)
+        {
+            setLocation(pEntry + 4);
+            setSize(16);
+            minX = buf.getInt(pEntry + 4);
+            minY = buf.getInt(pEntry + 8);
+            maxX = buf.getInt(pEntry + 12);
+            maxY = buf.getInt(pEntry + 16);
+        }
+
+        void expandToInclude(Bounds b)
+        {
+            if(b.minX() < minX) { minX = b.minX(); modified = true; }
+            if(b.minY() < minY) { minY = b.minY(); modified = true; }
+            if(b.maxX() > maxX) { maxX = b.maxX(); modified = true; }
+            if(b.maxY() > maxY) { maxY = b.maxY(); modified = true; }
+        }
+
+        @Override public void write(StructWriter out)
+        {
+            out.writeInt(minX);
+            out.writeInt(minY);
+            out.writeInt(maxX);
+            out.writeInt(maxY);
+        }
+    }
+
     public TTile(int tile, ObjectIntMap<String> globalStrings,
         TileCatalog tileCatalog, IndexSettings indexSettings)
     {
@@ -133,6 +242,39 @@ public class TTile
         return relationTables.values();
     }
 
+    public void addChange(TFeature feature, int rootIndexBits, int[] branchEntries)
+    {
+        changes.add(new Change(feature, rootIndexBits, branchEntries));
+    }
+
+    public List<Change> changes()
+    {
+        return changes;
+    }
+
+    public boolean hasChanges()
+    {
+        return !changes.isEmpty();
+    }
+
+    /**
+     * Returns the first struct of the chain that makes up this tile
+     * (once it has been built).
+     */
+    public Struct firstStruct()
+    {
+        return firstStruct;
+    }
+
+    /**
+     * Returns the size of the tile (once it has been built), excluding
+     * its 4-byte header word.
+     */
+    public int payloadSize()
+    {
+        return payloadSize;
+    }
+
     /*
     public String globalString(int code)
     {
@@ -338,5 +480,97 @@ public class TTile
         FeatureLayout layout = new FeatureLayout(this);
         layout.layout();
         header.payloadSize = layout.size() - 4;
+        payloadSize = header.payloadSize;
+        firstStruct = header;
+    }
+
+    private static boolean hasNewFeatures(LongObjectMap<? extends TFeature> features)
+    {
+        // Features read from this tile (or a foreign tile) have a location;
+        // any other feature has been created since the tile was read
+        return features.anySatisfy(f -> f.location() == 0);
+    }
+
+    /**
+     * Builds this tile in copy-on-write mode (after it has been read using
+     * {@link TileReader#readChanged}). The original contents of the tile
+     * are kept: The stubs of changed features are rewritten in place, and
+     * their bodies (as well as any new tag tables, strings and relation
+     * tables) are appended to the tile. Branches of the spatial index are
+     * widened if a changed feature's bounding box has grown. Since no feature
+     * moves, all pointers into the original tile (including references from
+     * other tiles) remain valid.
+     *
+     * Changes that would alter the structure of the tile cannot be applied
+     * in place: a feature has been added or has left the tile, a node's
+     * stub changes in size, or a feature's tags no longer fit the key
+     * categories of its index. In that case (or if too much of the tile
+     * would consist of dead space), the tile must be rebuilt.
+     *
+     * @param original      the original tile (as read by the TileReader)
+     * @param originalSize  the size of the original tile
+     * @return true if the tile has been built, or false if it must be
+     *   rebuilt from scratch
+     */
+    public boolean buildCopyOnWrite(ByteBuffer original, int originalSize)
+    {
+        if(hasNewFeatures(nodes) || hasNewFeatures(ways) ||
+            hasNewFeatures(relations))
+        {
+            return false;
+        }
+
+        MutableIntObjectMap<BoundsPatch> boundsPatches = new IntObjectHashMap<>();
+        List<Struct> patches = new ArrayList<>(changes.size());
+        for(Change change: changes)
+        {
+            TFeature f = change.feature();
+            f.build(this);
+            if(f.isForeign()) return false;
+            if(f instanceof TNode && f.size() != (f.relations() != null ? 24 : 20))
+            {
+                return false;
+            }
+            int indexBits = TIndex.indexBits(indexSettings, f.tags());
+            if((indexBits & ~change.rootIndexBits()) != 0) return false;
+            for(int pEntry: change.branchEntries())
+            {
+                BoundsPatch patch = boundsPatches.get(pEntry);
+                if(patch == null)
+                {
+                    patch = new BoundsPatch(original, pEntry);
+                    boundsPatches.put(pEntry, patch);
+                }
+                patch.expandToInclude(f);
+            }
+            patches.add(f);
+        }
+        boundsPatches.forEachValue(patch ->
+        {
+            if(patch.modified) patches.add(patch);
+        });
+        patches.sort(Comparator.comparingInt(Struct::location));
+
+        PayloadSizePatch sizePatch = new PayloadSizePatch();
+        CopyOnWriteLayout layout = new CopyOnWriteLayout(sizePatch, originalSize);
+        for(Change change: changes) layout.placeChanged(change.feature());
+        if(layout.size() - originalSize > originalSize / MAX_DEAD_SPACE_RATIO)
+        {
+            return false;
+        }
+
+        // The patches sit between the header word and the appended structs
+        Struct appended = sizePatch.next();
+        Struct prev = sizePatch;
+        for(Struct patch: patches)
+        {
+            prev.setNext(patch);
+            prev = patch;
+        }
+        prev.setNext(appended);
+
+        payloadSize = layout.size() - 4;
+        firstStruct = sizePatch;
+        return true;
     }
 }
@@ -7,6 +7,7 @@
 
 package com.geodesk.gol.tiles;
 import com.clarisma.common.pbf.PbfDecoder;
+import com.clarisma.common.pbf.PbfOutputStream;
 import com.clarisma.common.soar.Struct;
 import com.clarisma.common.soar.StructWriter;
 import com.geodesk.feature.FeatureId;
@@ -42,6 +43,57 @@ public class TWay extends TFeature2D<TWay.Body>
         body = new Body(reader, readBodyPointer(reader));
     }
 
+    /**
+     * Replaces the geometry of this way and recalculates its bounding box.
+     * The way must not have any feature nodes.
+     *
+     * @param coords    x/y pairs; for an area, the last pair must be
+     *                  the same as the first
+     */
+    public void setCoordinates(int[] coords)
+    {
+        assert featureNodes == null || featureNodes.length == 0;
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+        for(int i=0; i<coords.length; i+=2)
+        {
+            minX = Math.min(minX, coords[i]);
+            minY = Math.min(minY, coords[i+1]);
+            maxX = Math.max(maxX, coords[i]);
+            maxY = Math.max(maxY, coords[i+1]);
+        }
+        featureNodes = EMPTY_NODES;
+        body = new Body(coords);
+    }
+
+    /**
+     * Returns the x/y pairs of this way's geometry; for an area, the
+     * first pair is repeated at the end.
+     */
+    public int[] coordinates()
+    {
+        PbfDecoder decoder = new PbfDecoder(ByteBuffer.wrap(body.encodedCoords), 0);
+        int nodeCount = (int) decoder.readVarint();
+        int[] coords = new int[(nodeCount + (isArea() ? 1 : 0)) * 2];
+        int x = minX;
+        int y = minY;
+        for(int i=0; i<nodeCount*2; i+=2)
+        {
+            x += (int) decoder.readSignedVarint();
+            y += (int) decoder.readSignedVarint();
+            coords[i] = x;
+            coords[i+1] = y;
+        }
+        if(isArea())
+        {
+            coords[coords.length-2] = coords[0];
+            coords[coords.length-1] = coords[1];
+        }
+        return coords;
+    }
+
     private static final TNode[] EMPTY_NODES = new TNode[0];
 
     class Body extends Struct
@@ -92,6 +144,31 @@ public class TWay extends TFeature2D<TWay.Body>
             setLocation(pBody - anchor);
         }
 
+        Body(int[] coords)
+        {
+            // Like the Compiler, we delta-encode the coordinates starting
+            // from the lower left-hand corner of the bounding box, and
+            // omit the closing coordinate of an area
+            int prevX = minX;
+            int prevY = minY;
+            int end = coords.length - (isArea() ? 2 : 0);
+            PbfOutputStream out = new PbfOutputStream();
+            out.writeVarint(end >> 1);
+            for(int i=0; i<end; i+=2)
+            {
+                out.writeSignedVarint(coords[i] - prevX);
+                out.writeSignedVarint(coords[i+1] - prevY);
+                prevX = coords[i];
+                prevY = coords[i+1];
+            }
+            encodedCoords = out.toByteArray();
+            tips = null;
+            int anchor = isRelationMember() ? 4 : 0;
+            if(anchor > 0) setAlignment(1);   // 2-byte (1 << 1)
+            setSize(encodedCoords.length + anchor);
+            setAnchor(anchor);
+        }
+
         @Override public void write(StructWriter out)
         {
             int prevTip = Integer.MIN_VALUE;
@@ -7,6 +7,7 @@
 
 package com.geodesk.gol.tiles;
 
+import com.clarisma.common.pbf.PbfBuffer;
 import com.clarisma.common.pbf.PbfOutputStream;
 import com.clarisma.common.soar.StructWriter;
 import com.clarisma.common.store.BlobStoreConstants;
@@ -22,6 +23,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.function.LongPredicate;
 
 public class TileCompiler extends Processor<TileCompiler.Task>
 {
@@ -30,6 +32,7 @@ public class TileCompiler extends Processor<TileCompiler.Task>
     private final ObjectIntMap<String> globalStrings;
     private final IndexSettings indexSettings;
     private FeatureStore destinationStore;
+    private LongPredicate changedFeatures;
 
     private static final int DEFAULT_LINK_DB_PAGE_SIZE = 1 << 13; // TODO: configurable
 
@@ -41,6 +44,22 @@ public class TileCompiler extends Processor<TileCompiler.Task>
         indexSettings = new IndexSettings(store, ctx.project());
     }
 
+    /**
+     * Enables copy-on-write mode: Instead of decoding and re-encoding every
+     * tile, only the features accepted by `changedFeatures` are decoded and
+     * rewritten; the remainder of each tile is carried over as-is (see
+     * {@link TTile#buildCopyOnWrite}). Tiles without changes are left
+     * untouched. A tile is only rebuilt from scratch if its changes cannot
+     * be applied in place.
+     *
+     * @param changedFeatures   accepts the typed IDs of the features
+     *                          that have changed
+     */
+    public void copyOnWrite(LongPredicate changedFeatures)
+    {
+        this.changedFeatures = changedFeatures;
+    }
+
     protected class Task implements Runnable
     {
         private final int tip;
@@ -54,11 +73,14 @@ public class TileCompiler extends Processor<TileCompiler.Task>
         {
             try
             {
-                TTile tile = new TTile(tip, globalStrings, tileCatalog, indexSettings);
-                TileReader reader = new TileReader(tile, store, tip);
-                reader.read();
-                tile.build();
-                writeTile(tile);
+                if(changedFeatures == null || !compileCopyOnWrite())
+                {
+                    TTile tile = new TTile(tip, globalStrings, tileCatalog, indexSettings);
+                    TileReader reader = new TileReader(tile, store, tip);
+                    reader.read();
+                    tile.build();
+                    writeTile(tile, null, 0);
+                }
             }
             catch (Throwable ex)
             {
@@ -67,13 +89,42 @@ public class TileCompiler extends Processor<TileCompiler.Task>
             completed(1);
         }
 
-        private PbfOutputStream writeTile(TTile tile) throws IOException
+        /**
+         * Rewrites the tile in copy-on-write mode.
+         *
+         * @return false if the tile's changes cannot be applied in place
+         *   (the tile must then be rebuilt)
+         */
+        private boolean compileCopyOnWrite() throws IOException
+        {
+            TTile tile = new TTile(tip, globalStrings, tileCatalog, indexSettings);
+            TileReader reader = new TileReader(tile, store, tip);
+            reader.readChanged(changedFeatures);
+            if(!tile.hasChanges()) return true;
+                // The destination store is a copy, so it already
+                // contains the unchanged tile
+            if(!tile.buildCopyOnWrite(reader.buf(), reader.tileSize())) return false;
+            writeTile(tile, reader.buf(), reader.tileSize());
+            return true;
+        }
+
+        /**
+         * Writes a tile to the destination store.
+         *
+         * @param tile          the tile (must have been built)
+         * @param original      the contents of the original tile, to which the
+         *                      structs of a tile built in copy-on-write mode
+         *                      are applied (or `null` for a rebuilt tile)
+         * @param originalSize  the number of bytes of `original` to copy
+         * @return the links to foreign features (already resolved
+         *   for a tile built in copy-on-write mode)
+         */
+        private PbfOutputStream writeTile(TTile tile, ByteBuffer original,
+            int originalSize) throws IOException
         {
             FeatureStore store = destinationStore;
-            int payloadSize = tile.header.payloadSize;   // don't include 4-byte header
+            int payloadSize = tile.payloadSize();   // don't include 4-byte header
             int page = store.createTile(tip, payloadSize);
-            PbfOutputStream imports = new PbfOutputStream();
-
             ByteBuffer buf = store.bufferOfPage(page);
             int ofs = store.offsetOfPage(page);
 
@@ -81,9 +132,7 @@ public class TileCompiler extends Processor<TileCompiler.Task>
             // because Archive.writeToBuffer() will clobber it
             int oldHeader = buf.getInt(ofs);
             int prevBlobFreeFlag = oldHeader & BlobStoreConstants.PRECEDING_BLOB_FREE_FLAG;
-            StructWriter writer = new StructWriter(buf, ofs, payloadSize+4);
-            writer.setLinks(imports);
-            writer.writeChain(tile.header);
+            PbfOutputStream imports = writeStructs(tile, buf, ofs, original, originalSize);
             // put the flag back in
             int newHeader = buf.getInt(ofs);
             buf.putInt(ofs, newHeader | prevBlobFreeFlag);
@@ -93,6 +142,51 @@ public class TileCompiler extends Processor<TileCompiler.Task>
         }
     }
 
+    /**
+     * Writes the structs of a built tile to a buffer.
+     *
+     * @param tile          the tile (must have been built)
+     * @param buf           the buffer
+     * @param ofs           the position of the tile in the buffer
+     * @param original      the contents of the original tile, to which the
+     *                      structs of a tile built in copy-on-write mode
+     *                      are applied (or `null` for a rebuilt tile)
+     * @param originalSize  the number of bytes of `original` to copy
+     * @return the links to foreign features (already resolved
+     *   for a tile built in copy-on-write mode)
+     */
+    static PbfOutputStream writeStructs(TTile tile, ByteBuffer buf, int ofs,
+        ByteBuffer original, int originalSize)
+    {
+        PbfOutputStream links = new PbfOutputStream();
+        if(original != null) buf.put(ofs, original, 0, originalSize);
+        StructWriter writer = new StructWriter(buf, ofs, tile.payloadSize() + 4);
+        writer.setLinks(links);
+        writer.writeChain(tile.firstStruct());
+        if(original != null) resolveForeignLinks(tile, buf, links);
+        return links;
+    }
+
+    /**
+     * Resolves the references to foreign features written by a tile built
+     * in copy-on-write mode. Since copy-on-write never moves a feature stub,
+     * we can use the offsets that were read from the foreign tiles, rather
+     * than having to go through the Linker.
+     */
+    private static void resolveForeignLinks(TTile tile, ByteBuffer buf, PbfOutputStream links)
+    {
+        PbfBuffer in = new PbfBuffer(links.toByteArray());
+        while(in.hasMore())
+        {
+            int pos = in.readFixed32();     // absolute position in buffer
+            int shift = in.readFixed32() & 0xf;
+            long typedId = in.readFixed64();
+            TFeature foreign = tile.getFeature(typedId);
+            assert foreign.isForeign() && foreign.location() != 0;
+            buf.putInt(pos, buf.getInt(pos) | (foreign.anchorLocation() << shift));
+        }
+    }
+
     @Override protected void feed() throws IOException
     {
         int tileCount = tileCatalog.tileCount();
@@ -10,6 +10,7 @@ package com.geodesk.gol.tiles;
 import com.clarisma.common.soar.SString;
 import com.clarisma.common.soar.Struct;
 import com.clarisma.common.util.Log;
+import com.geodesk.feature.FeatureId;
 import com.geodesk.feature.match.TypeBits;
 import com.geodesk.feature.store.FeatureConstants;
 import com.geodesk.feature.store.FeatureStore;
@@ -25,11 +26,12 @@ import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.LongPredicate;
 
-// TODO: Pointers are relative to buffer start, NOT tile start
-//  Will need to be adjusted if we ever use a keep-in-place approach
-//  (Currently, the TileCompiler will recalculate the layout, so this
-//  is not an issue)
+// TODO: If created with the buffer-based constructor, pointers are relative
+//  to buffer start, NOT tile start. The TIP-based constructor reads from a
+//  slice of the tile blob, so positions are tile-relative, as required by
+//  the keep-in-place approach of copy-on-write mode (see readChanged())
 
 // TODO: Consider making this class more general; move the compiler-specific
 //  parts into TTile?
@@ -53,6 +55,26 @@ public class TileReader
     private final MutableIntList currentRoles = new IntArrayList();
     private int currentTip = FeatureConstants.START_TIP;
 
+    /**
+     * In copy-on-write mode, accepts the typed IDs of the features that
+     * will be changed; `null` if the entire tile is read.
+     */
+    private LongPredicate changedFeatures;
+    /**
+     * The index bits of the root that is currently being read
+     */
+    private int currentIndexBits;
+    /**
+     * The positions of the branch entries that lead to the
+     * current leaf
+     */
+    private final MutableIntList branchPath = new IntArrayList();
+
+    /**
+     * Index bits of a root that is not restricted to any key categories
+     */
+    protected static final int ALL_CATEGORIES = -1;
+
     // TODO: remove
     public TileReader(TTile tile, FeatureStore store, ByteBuffer buf, int pTile)
     {
@@ -69,10 +91,12 @@ public class TileReader
         int tilePage = store.fetchTile(tip);
         this.tile = tile;
         this.store = store;
-        this.buf = store.bufferOfPage(tilePage);
-        this.pTile = store.offsetOfPage(tilePage);
-        int tileLength = (buf.getInt(pTile) & 0x3fff_ffff) + 4;  // TODO: generalize
-        pTileEnd = pTile + tileLength;
+        ByteBuffer storeBuf = store.bufferOfPage(tilePage);
+        int ofs = store.offsetOfPage(tilePage);
+        int tileLength = (storeBuf.getInt(ofs) & 0x3fff_ffff) + 4;  // TODO: generalize
+        this.buf = storeBuf.slice(ofs, tileLength).order(storeBuf.order());
+        this.pTile = 0;
+        pTileEnd = tileLength;
     }
 
     public TTile tile()
@@ -85,6 +109,14 @@ public class TileReader
         return buf;
     }
 
+    /**
+     * Returns the size of the tile (including its 4-byte header)
+     */
+    public int tileSize()
+    {
+        return pTileEnd - pTile;
+    }
+
     public void checkPointer(int p)
     {
         if(p < pTile || p >= pTileEnd)
@@ -149,12 +181,40 @@ public class TileReader
         }
     }
 
+    /**
+     * Reads a tile in copy-on-write mode: Only the stubs and bodies of the
+     * features accepted by `changed` are decoded, as well as the stubs of
+     * any local features they reference (these are read on demand). All
+     * other features are left untouched, and the spatial indexes are merely
+     * walked. Each changed feature is registered with the tile, along with
+     * its position in the index, so {@link TTile#buildCopyOnWrite} can
+     * rewrite it in place.
+     *
+     * @param changed   accepts the typed IDs of the features that will
+     *                  be changed
+     */
+    public void readChanged(LongPredicate changed)
+    {
+        changedFeatures = changed;
+        readIndex(pTile + 8, TypeBits.NODES);
+        readIndex(pTile + 12, TypeBits.NONAREA_WAYS);
+        readIndex(pTile + 16, TypeBits.AREAS);
+        readIndex(pTile + 20, TypeBits.NONAREA_RELATIONS);
+        for(TTile.Change change: tile.changes())
+        {
+            // Reading a body may add stubs to `features`, so we
+            // iterate the tile's list of changes instead
+            change.feature().readBody(this);
+        }
+    }
+
     private void readIndex(int ppIndex, int allowedTypes)
     {
         int p = buf.getInt(ppIndex);
         if(p == 0) return;
         if((p & 1) == 0)
         {
+            currentIndexBits = ALL_CATEGORIES;
             readRoot(ppIndex, allowedTypes);
             return;
         }
@@ -162,6 +222,7 @@ public class TileReader
         for(;;)
         {
             int last = buf.getInt(p) & 1;
+            currentIndexBits = buf.getInt(p + 4);
             readRoot(p, allowedTypes);
             if(last != 0) break;
             p += 8;
@@ -190,6 +251,7 @@ public class TileReader
         {
             int ptr = buf.getInt(p);
             int last = ptr & 1;
+            branchPath.add(p);
             if ((ptr & 2) != 0)
             {
                 readLeaf(p + (ptr ^ 2 ^ last), allowedTypes);
@@ -198,6 +260,7 @@ public class TileReader
             {
                 readBranch(p + (ptr ^ last), allowedTypes);
             }
+            branchPath.removeAtIndex(branchPath.size() - 1);
             if (last != 0) break;
             p += 20;
         }
@@ -209,17 +272,27 @@ public class TileReader
         for(;;)
         {
             long headerBits = buf.getLong(p);
-            try
-            {
-                TFeature feature = readFeature(headerBits, allowedTypes);
-                feature.readStub(this, p);
-                features.put(p, feature);
-            }
-            catch(InvalidTileException ex)
+            int flags = (int)headerBits;
+            if(changedFeatures == null || changedFeatures.test(typedId(headerBits)))
             {
-                throw new InvalidTileException(p, ex.getMessage());
+                try
+                {
+                    TFeature feature = readFeature(headerBits, allowedTypes);
+                    feature.readStub(this, p);
+                    features.put(p, feature);
+                    if(changedFeatures != null)
+                    {
+                        // The stub will be rewritten in place, so it must
+                        // keep its last-item flag (readStub() drops it)
+                        if((flags & 1) != 0) feature.markAsLast();
+                        tile.addChange(feature, currentIndexBits, branchPath.toArray());
+                    }
+                }
+                catch(InvalidTileException ex)
+                {
+                    throw new InvalidTileException(p, ex.getMessage());
+                }
             }
-            int flags = (int)headerBits;
             if((flags & 1) != 0) break;
             if(allowedTypes == TypeBits.NODES)
             {
@@ -242,6 +315,12 @@ public class TileReader
         }
     }
 
+    private static long typedId(long headerBits)
+    {
+        long id = ((headerBits & 0xffff_ff00L) << 24) | (headerBits >>> 32);
+        return FeatureId.of(((int)headerBits >> 3) & 3, id);
+    }
+
     public TFeature readFeature(long headerBits, int allowedTypes)
     {
         int typeMask = TypeBits.fromFeatureFlags((int)headerBits);
@@ -288,7 +367,16 @@ public class TileReader
         TFeature feature = features.get(p);
         if(feature == null)
         {
-            throw new InvalidTileException(p, "No feature stub located here");
+            if(changedFeatures == null)
+            {
+                throw new InvalidTileException(p, "No feature stub located here");
+            }
+            // In copy-on-write mode, we only read the stubs of unchanged
+            // features once they are referenced
+            checkPointer(p);
+            feature = readFeature(buf.getLong(p), allowedTypes);
+            feature.readStub(this, p);
+            features.put(p, feature);
         }
         int typeMask = TypeBits.fromFeatureFlags(feature.flags);
         checkType(typeMask, allowedTypes);
@@ -304,6 +392,8 @@ public class TileReader
         ByteBuffer foreignBuf = store.bufferOfPage(tilePage);
         int pFeature = store.offsetOfPage(tilePage) + ofs;
         feature = readFeature(foreignBuf.getLong(pFeature), acceptedTypes);
+        if(feature.isForeign()) feature.setLocation(ofs - feature.anchor());
+            // location of a foreign feature is its location within its own tile
         // TODO: store TIP/quad in foreign feature
         foreignFeatures.put(key, feature);
         return feature;
@@ -471,6 +561,7 @@ public class TileReader
             List<TRelation> relations = new ArrayList<>(currentFeatures.size());
             for(TFeature f: currentFeatures) relations.add((TRelation)f);
             relTable = new TRelationTable(relations, getCurrentTips(), pEnd - pTable);
+            relTable.setLocation(pTable);
             resetTables();
             relTable = tile.getRelationTable(relTable);
             relTables.put(pTable, relTable);
@@ -7,48 +7,442 @@
 
 package com.geodesk.gol.update;
 
+import com.clarisma.common.collect.OffHeapArena;
+import com.clarisma.common.collect.RadixSort;
+import com.clarisma.common.pbf.PbfDecoder;
 import com.geodesk.feature.store.FeatureStore;
-import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
+import org.eclipse.collections.api.list.primitive.LongList;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+/**
+ * An off-heap, columnar representation of the changed features read from
+ * one or more change files. Instead of creating a `ChangedNode`,
+ * `ChangedWay` or `ChangedRelation` for each feature (and arrays for
+ * their tags, node IDs and members), each feature is appended as a compact
+ * record to an arena; once all changes have been read, {@link #seal()}
+ * sorts each table by ID (keeping only the most recent version of each
+ * feature), after which features are looked up via binary search.
+ * Memory use therefore scales with the number of bytes changed, rather than
+ * with the number of objects.
+ *
+ * Strings are stored as their global string code if they have one
+ * (most keys and many common values do), otherwise as UTF-8.
+ *
+ * Layout of a feature record in the data arena:
+ *
+ * - int version
+ * - byte flags (see {@link ChangedFeature#DELETE})
+ * - nodes only: int x, int y
+ * - (if not deleted) varint number of tag strings, followed by the strings
+ * - (ways, if not deleted) varint node count, followed by signed-varint
+ *   deltas of the node IDs
+ * - (relations, if not deleted) varint member count, followed by the
+ *   signed-varint delta of the typed member ID and the role string of each
+ *   member
+ *
+ * A string is a varint `(code << 1) | 1` for global strings, or
+ * `len << 1` followed by `len` bytes of UTF-8.
+ *
+ * Tables are not threadsafe while being written, but can be read
+ * concurrently once sealed.
+ */
 public class ChangeModel
 {
     private final FeatureStore store;
+    private final Table nodes = new Table(true);
+    private final Table anonymousNodes = new Table(true);
+    private final Table ways = new Table(false);
+    private final Table relations = new Table(false);
+
+    private static final int RECORD_SIZE = 16;
+
+    public ChangeModel(FeatureStore store)
+    {
+        this.store = store;
+    }
+
     /**
-     * Mapping of node IDs to an index into `changedNodes` or `nodeLocations`.
-     * To distinguish, the index into `changedNodes` is XOR'd with -1
+     * The nodes that have tags, or have been deleted.
      */
-    private MutableLongIntMap nodes;
-    private MutableLongIntMap ways;
-    private MutableLongIntMap relations;
+    public Table nodes()
+    {
+        return nodes;
+    }
 
     /**
-     * All nodes that have changed, excluding those that were anonymous
-     * in the past and will be anonymous in the future.
+     * The nodes that were created or modified, but have no tags.
      */
-    private List<ChangedNode> changedNodes;
-    private List<ChangedWay> changedWays;
-    private List<ChangedRelation> changedRelations;
+    public Table anonymousNodes()
+    {
+        return anonymousNodes;
+    }
+
+    public Table ways()
+    {
+        return ways;
+    }
+
+    public Table relations()
+    {
+        return relations;
+    }
+
+    private void addString(OffHeapArena data, String s)
+    {
+        int code = store.codeFromString(s);
+        if(code >= 0)
+        {
+            data.putVarint(((long)code << 1) | 1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.putVarint((long)bytes.length << 1);
+        data.putBytes(bytes, 0, bytes.length);
+    }
+
+    private void addTags(OffHeapArena data, List<String> tags)
+    {
+        data.putVarint(tags.size());
+        for(String s: tags) addString(data, s);
+    }
+
+    public void addNode(long id, int version, int flags, List<String> tags, int x, int y)
+    {
+        OffHeapArena data = nodes.begin(id, version, flags);
+        data.putInt(x);
+        data.putInt(y);
+        if((flags & ChangedFeature.DELETE) == 0) addTags(data, tags);
+    }
+
+    public void addAnonymousNode(long id, int version, int x, int y)
+    {
+        OffHeapArena data = anonymousNodes.begin(id, version, 0);
+        data.putInt(x);
+        data.putInt(y);
+        data.putVarint(0);      // no tags
+    }
+
+    public void addWay(long id, int version, int flags, List<String> tags, LongList nodeIds)
+    {
+        OffHeapArena data = ways.begin(id, version, flags);
+        if((flags & ChangedFeature.DELETE) != 0) return;
+        addTags(data, tags);
+        int nodeCount = nodeIds.size();
+        data.putVarint(nodeCount);
+        long prevNodeId = 0;
+        for(int i=0; i<nodeCount; i++)
+        {
+            long nodeId = nodeIds.get(i);
+            data.putSignedVarint(nodeId - prevNodeId);
+            prevNodeId = nodeId;
+        }
+    }
+
+    public void addRelation(long id, int version, int flags, List<String> tags,
+        LongList memberIds, List<String> roles)
+    {
+        OffHeapArena data = relations.begin(id, version, flags);
+        if((flags & ChangedFeature.DELETE) != 0) return;
+        addTags(data, tags);
+        int memberCount = memberIds.size();
+        data.putVarint(memberCount);
+        long prevMemberId = 0;
+        for(int i=0; i<memberCount; i++)
+        {
+            long memberId = memberIds.get(i);
+            data.putSignedVarint(memberId - prevMemberId);
+            addString(data, roles.get(i));
+            prevMemberId = memberId;
+        }
+    }
 
     /**
-     * The X/Y locations of:
-     * - changed nodes that were and will be anonymous
-     * - referenced anonymous nodes
-     * - referenced feature nodes
-     * Anonymous nodes come before feature nodes; entry 0 is unused.
+     * Sorts all tables and discards superseded versions of features.
+     * Must be called after all changes have been added, and before
+     * any features are looked up.
      */
-    private long[] nodeLocations;
-    private int[] wayRefs;
-    private int[] relationRefs;
+    public void seal()
+    {
+        nodes.seal();
+        anonymousNodes.seal();
+        ways.seal();
+        relations.seal();
+    }
 
     /**
-     * Index of the first node in `nodeLocation` that represents a feature node.
+     * Returns the number of bytes of off-heap memory used by this model.
      */
-    private int firstFeatureNode;
+    public long memoryUsed()
+    {
+        return nodes.memoryUsed() + anonymousNodes.memoryUsed() +
+            ways.memoryUsed() + relations.memoryUsed();
+    }
 
-    public ChangeModel(FeatureStore store)
+    /**
+     * A table of changed features of one type. During reading, each added
+     * feature is represented by a 16-byte record (ID, pointer to its data);
+     * after sealing, the records are sorted by ID, with only the most recent
+     * version of each feature retained.
+     */
+    public class Table
     {
-        this.store = store;
+        private final OffHeapArena records = new OffHeapArena(64 * 1024);
+        private final OffHeapArena data = new OffHeapArena(256 * 1024);
+        private final int tagsOffset;
+        private ByteBuffer index;
+        private ByteBuffer buf;
+        private int size;
+
+        private Table(boolean hasCoordinates)
+        {
+            tagsOffset = hasCoordinates ? 13 : 5;
+        }
+
+        private OffHeapArena begin(long id, int version, int flags)
+        {
+            assert index == null: "Table has already been sealed";
+            records.putLong(id);
+            records.putLong(data.size());
+            data.putInt(version);
+            data.putByte(flags);
+            return data;
+        }
+
+        private void seal()
+        {
+            int count = records.size() / RECORD_SIZE;
+            ByteBuffer recs = records.buffer();
+            if(count > 1)
+            {
+                ByteBuffer scratch = ByteBuffer.allocateDirect(
+                    count * RECORD_SIZE).order(recs.order());
+                RadixSort.sort(recs, count, RECORD_SIZE, scratch);
+            }
+            data.trim();
+            buf = data.buffer();
+
+            // The sort is stable, so multiple versions of the same feature
+            // remain in file order; we keep the one with the highest
+            // version number (or the last one, in case of a tie)
+
+            int n = 0;
+            for(int i=0; i<count; i++)
+            {
+                long id = recs.getLong(i * RECORD_SIZE);
+                long ptr = recs.getLong(i * RECORD_SIZE + 8);
+                if(n > 0 && recs.getLong((n-1) * RECORD_SIZE) == id)
+                {
+                    long prevPtr = recs.getLong((n-1) * RECORD_SIZE + 8);
+                    if(buf.getInt((int)ptr) >= buf.getInt((int)prevPtr))
+                    {
+                        recs.putLong((n-1) * RECORD_SIZE + 8, ptr);
+                    }
+                    continue;
+                }
+                recs.putLong(n * RECORD_SIZE, id);
+                recs.putLong(n * RECORD_SIZE + 8, ptr);
+                n++;
+            }
+            records.truncate(n * RECORD_SIZE);
+            records.trim();
+            index = records.buffer();
+            size = n;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public long id(int row)
+        {
+            return index.getLong(row * RECORD_SIZE);
+        }
+
+        private int pointer(int row)
+        {
+            return (int)index.getLong(row * RECORD_SIZE + 8);
+        }
+
+        /**
+         * Returns the row of the feature with the given ID, or -1 if
+         * this table does not contain it.
+         */
+        public int find(long id)
+        {
+            int lo = 0;
+            int hi = size - 1;
+            while(lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                long midId = index.getLong(mid * RECORD_SIZE);
+                if(midId < id)
+                {
+                    lo = mid + 1;
+                }
+                else if(midId > id)
+                {
+                    hi = mid - 1;
+                }
+                else
+                {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        public boolean contains(long id)
+        {
+            return find(id) >= 0;
+        }
+
+        public int version(int row)
+        {
+            return buf.getInt(pointer(row));
+        }
+
+        public int flags(int row)
+        {
+            return buf.get(pointer(row) + 4);
+        }
+
+        public boolean isDeleted(int row)
+        {
+            return (flags(row) & ChangedFeature.DELETE) != 0;
+        }
+
+        /**
+         * Returns the X-coordinate of a node.
+         */
+        public int x(int row)
+        {
+            return buf.getInt(pointer(row) + 5);
+        }
+
+        /**
+         * Returns the Y-coordinate of a node.
+         */
+        public int y(int row)
+        {
+            return buf.getInt(pointer(row) + 9);
+        }
+
+        private PbfDecoder tagDecoder(int row)
+        {
+            int p = pointer(row);
+            if((buf.get(p+4) & ChangedFeature.DELETE) != 0) return null;
+            return new PbfDecoder(buf, p + tagsOffset);
+        }
+
+        private String readString(PbfDecoder pbf)
+        {
+            long n = pbf.readVarint();
+            if((n & 1) != 0) return store.stringFromCode((int)(n >>> 1));
+            int len = (int)(n >>> 1);
+            int p = pbf.pos();
+            byte[] bytes = new byte[len];
+            buf.get(p, bytes);
+            pbf.seek(p + len);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void skipStrings(PbfDecoder pbf, int count)
+        {
+            for(int i=0; i<count; i++)
+            {
+                long n = pbf.readVarint();
+                if((n & 1) == 0) pbf.seek(pbf.pos() + (int)(n >>> 1));
+            }
+        }
+
+        /**
+         * Returns the tags of a feature as an array of alternating keys and
+         * values, or `null` if the feature has been deleted.
+         */
+        public String[] tags(int row)
+        {
+            PbfDecoder pbf = tagDecoder(row);
+            if(pbf == null) return null;
+            String[] tags = new String[(int)pbf.readVarint()];
+            for(int i=0; i<tags.length; i++) tags[i] = readString(pbf);
+            return tags;
+        }
+
+        /**
+         * Returns a decoder positioned at the start of the node or member
+         * list of a way or relation, or `null` if the feature has been
+         * deleted.
+         */
+        private PbfDecoder bodyDecoder(int row)
+        {
+            PbfDecoder pbf = tagDecoder(row);
+            if(pbf != null) skipStrings(pbf, (int)pbf.readVarint());
+            return pbf;
+        }
+
+        /**
+         * Returns the node IDs of a way, or `null` if the way has been
+         * deleted.
+         */
+        public long[] nodeIds(int row)
+        {
+            PbfDecoder pbf = bodyDecoder(row);
+            if(pbf == null) return null;
+            long[] nodeIds = new long[(int)pbf.readVarint()];
+            long prevNodeId = 0;
+            for(int i=0; i<nodeIds.length; i++)
+            {
+                long nodeId = pbf.readSignedVarint() + prevNodeId;
+                nodeIds[i] = nodeId;
+                prevNodeId = nodeId;
+            }
+            return nodeIds;
+        }
+
+        /**
+         * Returns the typed IDs (see `FeatureId`) of the members of a
+         * relation, or `null` if the relation has been deleted.
+         */
+        public long[] memberIds(int row)
+        {
+            PbfDecoder pbf = bodyDecoder(row);
+            if(pbf == null) return null;
+            long[] memberIds = new long[(int)pbf.readVarint()];
+            long prevMemberId = 0;
+            for(int i=0; i<memberIds.length; i++)
+            {
+                long memberId = pbf.readSignedVarint() + prevMemberId;
+                memberIds[i] = memberId;
+                skipStrings(pbf, 1);
+                prevMemberId = memberId;
+            }
+            return memberIds;
+        }
+
+        /**
+         * Returns the roles of the members of a relation, or `null` if the
+         * relation has been deleted.
+         */
+        public String[] roles(int row)
+        {
+            PbfDecoder pbf = bodyDecoder(row);
+            if(pbf == null) return null;
+            String[] roles = new String[(int)pbf.readVarint()];
+            for(int i=0; i<roles.length; i++)
+            {
+                pbf.readSignedVarint();
+                roles[i] = readString(pbf);
+            }
+            return roles;
+        }
+
+        public long memoryUsed()
+        {
+            return records.capacity() + data.capacity();
+        }
     }
 }
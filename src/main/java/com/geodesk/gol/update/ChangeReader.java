@@ -10,14 +10,11 @@ package com.geodesk.gol.update;
 import com.clarisma.common.cli.Verbosity;
 import com.clarisma.common.util.Log;
 import com.geodesk.geom.Mercator;
-import com.geodesk.geom.XY;
 import com.geodesk.feature.FeatureId;
 import com.geodesk.feature.FeatureType;
 import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.gol.build.BuildContext;
-import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -48,23 +45,19 @@ public class ChangeReader extends DefaultHandler
     private final List<String> tagList = new ArrayList<>();
     private final MutableLongList memberList = new LongArrayList();
     private final List<String> roleList = new ArrayList<>();
-    private final List<ChangedNode> nodes = new ArrayList<>();
-    private final MutableLongList untaggedNodes = new LongArrayList();
-    private final MutableIntList untaggedNodeVersions = new IntArrayList();
-    private final List<ChangedWay> ways = new ArrayList<>();
-    private final List<ChangedRelation> relations = new ArrayList<>();
-    private Map<String,String> strings = new HashMap<>();
+    private final ChangeModel changes;
     private long changeCount;
+    private long nodeCount;
+    private long wayCount;
+    private long relationCount;
     private long wayNodeCount;
     private long memberCount;
-    private long anonymousNodeCount;
-
-    private final static String[] EMPTY_STRING_ARRAY = new String[0];
 
     public ChangeReader(BuildContext ctx, TileFinder tileFinder) throws IOException
     {
         this.tileFinder = tileFinder;
         this.store = ctx.getFeatureStore();
+        changes = new ChangeModel(store);
     }
 
     public void read(String file, boolean zipped) throws IOException
@@ -85,43 +78,32 @@ public class ChangeReader extends DefaultHandler
         }
     }
 
-    public List<ChangedNode> nodes()
-    {
-        return nodes;
-    }
-
-    public List<ChangedWay> ways()
-    {
-        return ways;
-    }
-
-    public List<ChangedRelation> relations()
+    /**
+     * Returns the model into which changes are read. The model must be
+     * sealed once all files have been read.
+     */
+    public ChangeModel changes()
     {
-        return relations;
+        return changes;
     }
 
-    private void reportFreeMemory()
+    private void reportMemory()
     {
-        for(int i=0; i<10; i++) Runtime.getRuntime().gc();
-        Log.debug("Memory used: %d MB",
+        // We no longer force garbage collection here; the bulk of the
+        // change data lives off-heap, so we report that separately
+        Log.debug("Heap used:      %d MB",
             (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())
             / (1024 * 1024));
-        /*
-        Log.debug("%,d bytes free", Runtime.getRuntime().freeMemory());
-        Log.debug("%,d bytes total", Runtime.getRuntime().totalMemory());
-        Log.debug("%,d bytes max", Runtime.getRuntime().maxMemory());
-         */
+        Log.debug("Off-heap used:  %d MB", changes.memoryUsed() / (1024 * 1024));
     }
 
     public void dump()
     {
-        // strings = null;
-        reportFreeMemory();
-        // Log.debug("%,d of %,d nodes are untagged", anonymousNodeCount, nodes.size());
-        Log.debug("Tagged nodes:   %,d", nodes.size());
-        Log.debug("Untagged nodes: %,d", untaggedNodes.size());
-        Log.debug("Ways:           %,d", ways.size());
-        Log.debug("Relations:      %,d", relations.size());
+        reportMemory();
+        Log.debug("Tagged nodes:   %,d", changes.nodes().size());
+        Log.debug("Untagged nodes: %,d", changes.anonymousNodes().size());
+        Log.debug("Ways:           %,d", changes.ways().size());
+        Log.debug("Relations:      %,d", changes.relations().size());
     }
 
 
@@ -143,7 +125,7 @@ public class ChangeReader extends DefaultHandler
     private void reportProgress()
     {
         System.err.format("Reading... %,d nodes / %,d ways / %,d relations\r",
-            nodes.size(), ways.size(), relations.size());
+            nodeCount, wayCount, relationCount);
     }
 
 
@@ -172,11 +154,11 @@ public class ChangeReader extends DefaultHandler
             String type = attr.getValue("type");
             long id = Long.parseLong(attr.getValue("ref"));
             memberList.add(FeatureId.of(FeatureType.from(type), id));
-            roleList.add(getString(attr.getValue("role")));
+            roleList.add(attr.getValue("role"));
             break;
         case "tag":
-            tagList.add(getString(attr.getValue("k")));
-            tagList.add(getString(attr.getValue("v")));
+            tagList.add(attr.getValue("k"));
+            tagList.add(attr.getValue("v"));
             break;
         case "create":
         case "modify":
@@ -188,90 +170,39 @@ public class ChangeReader extends DefaultHandler
         }
     }
 
-    private String getString(String s)
-    {
-        int code = store.codeFromString(s);
-        if(code >= 0) return store.stringFromCode(code);
-        String unique = strings.get(s);
-        if(unique == null)
-        {
-            strings.put(s, s);
-            unique = s;
-        }
-        return unique;
-    }
-
-    private String[] getTags()
-    {
-        return tagList.toArray(EMPTY_STRING_ARRAY);
-    }
-
-    private String[] getRoles()
-    {
-        return roleList.toArray(EMPTY_STRING_ARRAY);
-    }
-
     public void endElement (String uri, String localName, String qName)
     {
-        String[] tags;
         switch(qName)
         {
         case "node":
-            if(currentChangeType == ChangedFeature.DELETE)
+            if(currentChangeType != ChangedFeature.DELETE && tagList.isEmpty())
             {
-                tags = null;
-                currentX = currentY = 0;
+                changes.addAnonymousNode(currentId, currentVersion, currentX, currentY);
             }
             else
             {
-                tags = getTags();
-                if(tags.length == 0)
-                {
-                    untaggedNodes.add(currentId);
-                    untaggedNodes.add(XY.of(currentX, currentY));
-                    // untaggedNodeVersions.add(currentVersion);
-                    break;
-                }
+                if(currentChangeType == ChangedFeature.DELETE) currentX = currentY = 0;
+                changes.addNode(currentId, currentVersion, currentChangeType,
+                    tagList, currentX, currentY);
             }
-            nodes.add(new ChangedNode(currentId, currentChangeType, currentVersion, tags, currentX, currentY));
+            nodeCount++;
             // Always clear list, since tags may be listed even for deleted nodes
             tagList.clear();
             break;
         case "way":
-            long[] nodeIds;
-            if(currentChangeType == ChangedFeature.DELETE)
-            {
-                tags = null;
-                nodeIds = null;
-            }
-            else
-            {
-                tags = getTags();
-                nodeIds = memberList.toArray();
-                wayNodeCount+=nodeIds.length;
-            }
-            ways.add(new ChangedWay(currentId, currentChangeType, currentVersion, tags, nodeIds));
+            changes.addWay(currentId, currentVersion, currentChangeType,
+                tagList, memberList);
+            if(currentChangeType != ChangedFeature.DELETE) wayNodeCount += memberList.size();
+            wayCount++;
             // Always clear lists, since tags/nodes may be listed even for deleted ways
             tagList.clear();
             memberList.clear();
             break;
         case "relation":
-            long[] memberIds;
-            String[] roles;
-            if(currentChangeType == ChangedFeature.DELETE)
-            {
-                tags = null;
-                memberIds = null;
-                roles = null;
-            }
-            else
-            {
-                tags = getTags();
-                memberIds = memberList.toArray();
-                roles = getRoles();
-                memberCount += memberIds.length;
-            }
-            relations.add(new ChangedRelation(currentId, currentChangeType, currentVersion, tags, memberIds, roles));
+            changes.addRelation(currentId, currentVersion, currentChangeType,
+                tagList, memberList, roleList);
+            if(currentChangeType != ChangedFeature.DELETE) memberCount += memberList.size();
+            relationCount++;
             // Always clear lists, since tags/members/roles may be listed even for deleted relations
             tagList.clear();
             memberList.clear();
@@ -7,6 +7,9 @@
 
 package com.geodesk.gol.update;
 
+import com.clarisma.common.collect.BlockedBloomFilter;
+import com.clarisma.common.collect.OffHeapArena;
+import com.clarisma.common.collect.OffHeapLongSet;
 import com.clarisma.common.pbf.PbfDecoder;
 import com.clarisma.common.text.Format;
 import com.clarisma.common.util.Log;
@@ -18,38 +21,36 @@ import com.geodesk.feature.store.*;
 import com.geodesk.gol.TaskEngine;
 import com.geodesk.gol.build.BuildContext;
 import com.geodesk.gol.build.TileCatalog;
+import com.geodesk.gol.build.WayNodeIndex;
 import com.geodesk.gol.tiles.MemberReader;
 import com.geodesk.gol.util.TileReaderTask;
 import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.api.map.primitive.LongObjectMap;
 import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
 import org.eclipse.collections.api.map.primitive.MutableLongObjectMap;
 import org.eclipse.collections.api.set.primitive.IntSet;
-import org.eclipse.collections.api.set.primitive.LongSet;
-import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
-import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.List;
 
 public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
 {
     private final FeatureStore store;
     private final TileCatalog tileCatalog;
-    private final LongObjectMap<ChangedNode> changedNodes;
-    private final LongObjectMap<ChangedWay> changedWays;
-    private final LongObjectMap<ChangedRelation> changedRelations;
-    private final LongSet nodesOfInterest;
-    private final LongSet waysOfInterest;
-    private final LongSet relationsOfInterest;
-    private final Path wayNodeIndexPath;
+    private final ChangeModel.Table changedNodes;
+    private final ChangeModel.Table changedWays;
+    private final ChangeModel.Table changedRelations;
+    private final OffHeapLongSet nodesOfInterest;
+    private final OffHeapLongSet waysOfInterest;
+    private final OffHeapLongSet relationsOfInterest;
+    /**
+     * A Bloom filter of `nodesOfInterest`, which lets us cheaply reject
+     * most node IDs before probing the set.
+     */
+    private final BlockedBloomFilter nodeFilter;
+    private final WayNodeIndex wayNodeIndex;
     private final Features duplicateNodes;
     private MutableIntObjectMap<SearchTile> tiles;
     private boolean reportProgress = true; // TODO
@@ -63,67 +64,62 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
     private static final int FIND_WAY_NODES = 1 << 3;
     private static final int FIND_DUPLICATE_XY = 1 << 4;
 
-    public FeatureFinder(BuildContext ctx,
-        List<ChangedNode> changedNodeList,
-        List<ChangedWay> changedWayList,
-        List<ChangedRelation> changedRelationList) throws IOException
+    /**
+     * Creates a FeatureFinder for the given changes.
+     *
+     * @param ctx       the BuildContext
+     * @param changes   the changes (must have been sealed)
+     */
+    public FeatureFinder(BuildContext ctx, ChangeModel changes) throws IOException
     {
         super(new SearchTile(-1), 2, false);
         Log.debug("Creating FeatureFinder...");
         store = ctx.getFeatureStore();
         tileCatalog = ctx.getTileCatalog();
         tileCount = tileCatalog.tileCount();
-        wayNodeIndexPath = ctx.indexPath().resolve("waynodes");
+        wayNodeIndex = new WayNodeIndex(WayNodeIndex.path(ctx.indexPath()));
         duplicateNodes = new WorldView(store).select("n[geodesk:duplicate]");
-        changedNodes = getChangedFeatures(changedNodeList);
-        changedWays = getChangedFeatures(changedWayList);
-        changedRelations = getChangedFeatures(changedRelationList);
-        MutableLongSet nodesOfInterest = new LongHashSet(changedNodes.size() * 2);
-        MutableLongSet waysOfInterest = new LongHashSet(changedWays.size() * 2);
-        MutableLongSet relationsOfInterest = new LongHashSet(changedRelations.size() * 2);
-        nodesOfInterest.addAll(changedNodes.keysView());
-        waysOfInterest.addAll(changedWays.keysView());
-        relationsOfInterest.addAll(changedRelations.keysView());
-        for(ChangedWay way: changedWays)
+        changedNodes = changes.nodes();
+        changedWays = changes.ways();
+        changedRelations = changes.relations();
+        OffHeapArena nodesOfInterest = new OffHeapArena(changedNodes.size() * 8);
+        OffHeapArena waysOfInterest = new OffHeapArena(changedWays.size() * 8);
+        OffHeapArena relationsOfInterest = new OffHeapArena(changedRelations.size() * 8);
+        for(int i=0; i<changedNodes.size(); i++) nodesOfInterest.putLong(changedNodes.id(i));
+        for(int i=0; i<changedWays.size(); i++)
         {
-            long[] nodeIds = way.nodeIds;
-            if (nodeIds != null) nodesOfInterest.addAll();
+            waysOfInterest.putLong(changedWays.id(i));
+            long[] nodeIds = changedWays.nodeIds(i);
+            if (nodeIds != null)
+            {
+                for (long nodeId : nodeIds) nodesOfInterest.putLong(nodeId);
+            }
         }
-        MutableLongSet[] membersOfInterest = new MutableLongSet[] {
+        OffHeapArena[] membersOfInterest = new OffHeapArena[] {
             nodesOfInterest, waysOfInterest, relationsOfInterest };
-        for(ChangedRelation rel: changedRelations)
+        for(int i=0; i<changedRelations.size(); i++)
         {
-            long[] memberIds = rel.memberIds;
+            relationsOfInterest.putLong(changedRelations.id(i));
+            long[] memberIds = changedRelations.memberIds(i);
             if(memberIds != null)
             {
                 for (long memberId : memberIds)
                 {
                     long id = FeatureId.id(memberId);
                     int type = FeatureId.typeCode(memberId);
-                    membersOfInterest[type].add(id);
+                    membersOfInterest[type].putLong(id);
                 }
             }
         }
-        this.nodesOfInterest = nodesOfInterest;
-        this.waysOfInterest = waysOfInterest;
-        this.relationsOfInterest = relationsOfInterest;
+        this.nodesOfInterest = new OffHeapLongSet(nodesOfInterest);
+        this.waysOfInterest = new OffHeapLongSet(waysOfInterest);
+        this.relationsOfInterest = new OffHeapLongSet(relationsOfInterest);
+        OffHeapLongSet nodeSet = this.nodesOfInterest;
+        nodeFilter = new BlockedBloomFilter(nodeSet.size(), 12);
+        for(int i=0; i<nodeSet.size(); i++) nodeFilter.add(nodeSet.get(i));
         Log.debug("Created FeatureFinder.");
     }
 
-    private <T extends ChangedFeature> MutableLongObjectMap<T> getChangedFeatures(List<T> list)
-    {
-        MutableLongObjectMap<T> map =new LongObjectHashMap<>(list.size());
-        for(T f: list)
-        {
-            T existing = map.get(f.id());
-            if(existing == null || existing.version < f.version)
-            {
-                map.put(f.id(), f);
-            }
-        }
-        return map;
-    }
-
     public void search(TileFinder tileFinder) throws InterruptedException
     {
         long start = System.currentTimeMillis();
@@ -136,10 +132,12 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
         });
         tileFinder.wayTiles().forEach(t -> markTile(t, FIND_WAYS));
         tileFinder.relationTiles().forEach(t -> markTile(t, FIND_RELATIONS));
-        for(ChangedNode node: changedNodes)
+        for(int i=0; i<changedNodes.size(); i++)
         {
+            // Deleted nodes have no location
+            if(changedNodes.isDeleted(i)) continue;
             // TODO: use tile directly
-            int pile = tileCatalog.resolvePileOfXY(node.x, node.y);
+            int pile = tileCatalog.resolvePileOfXY(changedNodes.x(i), changedNodes.y(i));
             markTile(tileCatalog.tileOfPile(pile), FIND_DUPLICATE_XY);
         }
         start();
@@ -275,66 +273,76 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
             return nodeIds;
         }
 
-        private void findWayNodes() throws IOException
+        private boolean isNodeOfInterest(long nodeId)
+        {
+            return nodeFilter.mightContain(nodeId) && nodesOfInterest.contains(nodeId);
+        }
+
+        private void findWayNodes()
         {
-            Path path = Tip.path(wayNodeIndexPath, currentTip, ".wnx");
-            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            ByteBuffer buf = wayNodeIndex.tile(currentTip);
+            if(buf == null) return;
+            int len = buf.limit();
+            PbfDecoder pbf = new PbfDecoder(buf, 0);
+            long prevWayId = 0;
+            while (pbf.pos() < len)
             {
-                int len = (int) channel.size();
-                ByteBuffer buf = ByteBuffer.allocateDirect(len);
-                channel.read(buf);
-                PbfDecoder pbf = new PbfDecoder(buf, 0);
-                long prevWayId = 0;
-                while (pbf.pos() < len)
+                boolean extract;
+                boolean implicitlyChanged = false;
+                long wayId = pbf.readSignedVarint() + prevWayId;
+                long minNodeId = pbf.readVarint();
+                long maxNodeId = pbf.readVarint() + minNodeId;
+                int nodesLen = (int) pbf.readVarint();
+                int nodesPos = pbf.pos();
+                if(changedWays.contains(wayId))
                 {
-                    boolean extract;
-                    boolean implicitlyChanged = false;
-                    long wayId = pbf.readSignedVarint() + prevWayId;
-                    int savedPos = pbf.pos();
-                    ChangedWay way = changedWays.get(wayId);
-                    if(way != null)
-                    {
-                        // In 99.9% of cases, we could merely check if a way's node
-                        // is contained in the ChangeModel in order to determine
-                        // if we should pick up this way's nodeIDs. However,
-                        // it is possible that a way changed completely, retaining
-                        // none of its past nodes -- therefore, we check if the way
-                        // is modified explicitly
-
-                        extract = true;
-                    }
-                    else
+                    // In 99.9% of cases, we could merely check if a way's node
+                    // is contained in the ChangeModel in order to determine
+                    // if we should pick up this way's nodeIDs. However,
+                    // it is possible that a way changed completely, retaining
+                    // none of its past nodes -- therefore, we check if the way
+                    // is modified explicitly
+
+                    extract = true;
+                }
+                else if(!nodesOfInterest.containsAnyInRange(minNodeId, maxNodeId))
+                {
+                    // None of the way's nodes can be of interest,
+                    // no need to decode them
+                    extract = false;
+                }
+                else
+                {
+                    extract = false;
+                    int nodeCount = (int) pbf.readVarint();
+                    long prevNodeId = 0;
+                    for (int i = 0; i < nodeCount; i++)
                     {
-                        extract = false;
-                        int nodeCount = (int) pbf.readVarint();
-                        long prevNodeId = 0;
-                        for (int i = 0; i < nodeCount; i++)
+                        long nodeId = pbf.readSignedVarint() + prevNodeId;
+                        if (isNodeOfInterest(nodeId))
                         {
-                            long nodeId = pbf.readSignedVarint() + prevNodeId;
-                            if (nodesOfInterest.contains(nodeId))
+                            extract = true;
+                            if(changedNodes.contains(nodeId))
                             {
-                                extract = true;
-                                if(changedNodes.containsKey(nodeId))
-                                {
-                                    implicitlyChanged = true;
-                                }
+                                implicitlyChanged = true;
                             }
-                            prevNodeId = nodeId;
                         }
+                        prevNodeId = nodeId;
                     }
-                    if(extract)
+                }
+                if(extract)
+                {
+                    pbf.seek(nodesPos);
+                    long[] nodeIds = readWayNodes(pbf);
+                    currentTileWayNodes.put(wayId, nodeIds);
+                    if(implicitlyChanged)
                     {
-                        pbf.seek(savedPos);
-                        long[] nodeIds = readWayNodes(pbf);
-                        currentTileWayNodes.put(wayId, nodeIds);
-                        if(implicitlyChanged)
-                        {
-                            implicitlyChangedWays.put(wayId, new ChangedWay(wayId,
-                                0, Integer.MAX_VALUE, null, nodeIds));
-                        }
+                        implicitlyChangedWays.put(wayId, new ChangedWay(wayId,
+                            0, Integer.MAX_VALUE, null, nodeIds));
                     }
-                    prevWayId = wayId;
                 }
+                pbf.seek(nodesPos + nodesLen);
+                prevWayId = wayId;
             }
         }
 
@@ -358,10 +366,9 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
             @Override public void node(int p)
             {
                 long id = StoredNode.id(buf, p);
-                if(nodesOfInterest.contains(id))
+                if(isNodeOfInterest(id))
                 {
-                    ChangedNode node = changedNodes.get(id);
-                    if(node != null)
+                    if(changedNodes.contains(id))
                     {
                         // TODO: update node
                     }
@@ -400,8 +407,7 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
                     if (waysOfInterest.contains(id))
                     {
                         scanWayNodes = true;
-                        way = changedWays.get(id);
-                        if (way != null)
+                        if (changedWays.contains(id))
                         {
                             // TODO: update way
                         }
@@ -424,7 +430,7 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
                         if(nodeIds != null)
                         {
                             long nodeId = nodeIds[i];
-                            if(nodesOfInterest.contains(nodeId))
+                            if(isNodeOfInterest(nodeId))
                             {
                                 locations.add(nodeId);
                                 locations.add(xy);
@@ -451,8 +457,7 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
                 if(relationsOfInterest.contains(id))
                 {
                     // Log.debug("relation/%d", id);
-                    ChangedRelation rel = changedRelations.get(id);
-                    if (rel != null)
+                    if (changedRelations.contains(id))
                     {
                         // TODO: update relation
                         memberReader.start(buf, StoredRelation.bodyPointer(buf, p));
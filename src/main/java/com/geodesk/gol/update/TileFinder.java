@@ -7,6 +7,7 @@
 
 package com.geodesk.gol.update;
 
+import com.clarisma.common.collect.RadixSort;
 import com.clarisma.common.index.IntIndex;
 import com.geodesk.geom.Heading;
 import com.geodesk.geom.Tile;
@@ -19,6 +20,7 @@ import org.eclipse.collections.api.set.primitive.MutableIntSet;
 import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public class TileFinder extends TaskEngine<TileFinder.Task>
 {
@@ -30,11 +32,22 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
     private MutableIntSet wayTiles;
     private MutableIntSet relationTiles;
 
-    private static int BATCH_SIZE = 8192;
+    private boolean readAhead = true;
+
+    // Since each batch is sorted before its IDs are looked up,
+    // larger batches result in more sequential index access
+    private static int BATCH_SIZE = 1 << 16;
+
+    /**
+     * If the IDs of two consecutive lookups (of the same type) are less
+     * than this apart, they are considered part of the same cluster, and
+     * the index range covering the cluster is read ahead as a whole.
+     */
+    private static final long READ_AHEAD_GAP = 1 << 15;
 
     public TileFinder(BuildContext ctx) throws IOException
     {
-        super(new Task(null), 1, true);
+        super(new Task(null, 0), 1, true);
         this.context = ctx;
         newBatch();
         start();
@@ -51,6 +64,19 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
          */
     }
 
+    /**
+     * Enables or disables read-ahead of the index ranges touched by each
+     * batch of lookups (enabled by default). Read-ahead turns the random
+     * access of index lookups into mostly sequential reads, which speeds
+     * up lookups considerably if the indexes are not in the OS cache
+     * (but may be counter-productive if memory is tight).
+     * Must be called before any features are added.
+     */
+    public void readAhead(boolean enabled)
+    {
+        readAhead = enabled;
+    }
+
     public IntSet nodeTiles()
     {
         return nodeTiles;
@@ -79,7 +105,7 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
 
     private void flush()
     {
-        submit(new Task(featureIds));
+        submit(new Task(featureIds, featureCount));
         newBatch();
     }
 
@@ -92,10 +118,12 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
     protected static class Task
     {
         private final long[] featureIds;
+        private final int count;
 
-        public Task(long[] featureIds)
+        public Task(long[] featureIds, int count)
         {
             this.featureIds = featureIds;
+            this.count = count;
         }
     }
 
@@ -142,25 +170,72 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
         }
 
 
+        /**
+         * Reads ahead the index ranges needed for a set of IDs, in
+         * clusters of nearby IDs.
+         *
+         * @param index     the index
+         * @param ids       the IDs (sorted)
+         * @param count     the number of IDs
+         */
+        private void prefetch(IntIndex index, long[] ids, int count)
+        {
+            if(count == 0) return;
+            long clusterStart = ids[0];
+            long prevId = clusterStart;
+            for(int i=1; i<count; i++)
+            {
+                long id = ids[i];
+                if(id - prevId >= READ_AHEAD_GAP)
+                {
+                    index.prefetch(clusterStart, prevId);
+                    clusterStart = id;
+                }
+                prevId = id;
+            }
+            index.prefetch(clusterStart, prevId);
+        }
+
         @Override protected void process(Task task) throws Exception
         {
-            long[] ids = task.featureIds;
-            for(int i=0; i<ids.length; i++)
+            // IDs arrive in the order of the change file, which amounts
+            // to random access into the (multi-GB) indexes. We split them
+            // up by type and sort them, so each index is read front to back
+
+            long[] typedIds = task.featureIds;
+            int count = task.count;
+            int[] typeCounts = new int[3];
+            for(int i=0; i<count; i++) typeCounts[FeatureId.typeCode(typedIds[i])]++;
+            long[][] idsByType = new long[3][];
+            for(int type=0; type<3; type++) idsByType[type] = new long[typeCounts[type]];
+            Arrays.fill(typeCounts, 0);
+            for(int i=0; i<count; i++)
             {
-                long typedId = ids[i];
+                long typedId = typedIds[i];
                 int type = FeatureId.typeCode(typedId);
-                long id = FeatureId.id(typedId);
-                switch(type)
+                idsByType[type][typeCounts[type]++] = FeatureId.id(typedId);
+            }
+
+            IntIndex[] indexes = { nodeIndex, wayIndex, relationIndex };
+            for(int type=0; type<3; type++)
+            {
+                long[] ids = idsByType[type];
+                RadixSort.sort(ids, ids.length);
+                if(readAhead) prefetch(indexes[type], ids, ids.length);
+                for(long id: ids)
                 {
-                case 0:
-                    addNodeTile(id);
-                    break;
-                case 1:
-                    addFeatureTiles(wayTiles, wayIndex, id);
-                    break;
-                case 2:
-                    addFeatureTiles(relationTiles, relationIndex, id);
-                    break;
+                    switch(type)
+                    {
+                    case 0:
+                        addNodeTile(id);
+                        break;
+                    case 1:
+                        addFeatureTiles(wayTiles, wayIndex, id);
+                        break;
+                    case 2:
+                        addFeatureTiles(relationTiles, relationIndex, id);
+                        break;
+                    }
                 }
             }
         }
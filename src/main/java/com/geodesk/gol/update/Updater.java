@@ -42,14 +42,15 @@ public class Updater
         ChangeReader reader = new ChangeReader(context, tileFinder);
         reader.read(oscFile, true); // TODO
         tileFinder.finish();
+        ChangeModel changes = reader.changes();
+        changes.seal();
         reader.dump();
 
         int fileCount = 1;  // TODO
         System.err.format("Read %,d file%s in %s\n", fileCount, fileCount==1 ? "" : "s",
             Format.formatTimespan(System.currentTimeMillis() - start));
 
-        FeatureFinder featureFinder = new FeatureFinder(context,
-            reader.nodes(), reader.ways(), reader.relations());
+        FeatureFinder featureFinder = new FeatureFinder(context, changes);
         featureFinder.search(tileFinder);
     }
 }
@@ -0,0 +1,25 @@
+package com.clarisma.common.collect;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockedBloomFilterTest
+{
+    @Test public void testFalsePositiveRate()
+    {
+        int count = 200_000;
+        BlockedBloomFilter filter = new BlockedBloomFilter(count, 12);
+        for(long v=0; v<count; v++) filter.add(v * 2);
+        for(long v=0; v<count; v++) assertTrue(filter.mightContain(v * 2));
+        int falsePositives = 0;
+        for(long v=0; v<count; v++)
+        {
+            if(filter.mightContain(v * 2 + 1)) falsePositives++;
+        }
+        assertTrue("False-positive rate too high: " + falsePositives,
+            falsePositives < count / 20);
+    }
+}
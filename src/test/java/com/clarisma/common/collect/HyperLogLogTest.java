@@ -0,0 +1,35 @@
+package com.clarisma.common.collect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HyperLogLogTest
+{
+    private static void assertEstimate(long expected, HyperLogLog hll)
+    {
+        long estimate = hll.estimate();
+        assertTrue("Estimate " + estimate + " too far from " + expected,
+            Math.abs(estimate - expected) <= expected * 0.05 + 1);
+    }
+
+    @Test public void testEstimate()
+    {
+        HyperLogLog hll = new HyperLogLog(12);
+        assertEquals(0, hll.estimate());
+        for(int i=0; i<100; i++) hll.add(HyperLogLog.hash("value" + i));
+        assertEstimate(100, hll);
+        for(int i=0; i<1_000_000; i++) hll.add(HyperLogLog.hash("value" + i));
+        assertEstimate(1_000_000, hll);
+    }
+
+    @Test public void testMerge()
+    {
+        HyperLogLog a = new HyperLogLog(12);
+        HyperLogLog b = new HyperLogLog(12);
+        for(int i=0; i<60_000; i++) a.add(HyperLogLog.hash("v" + i));
+        for(int i=40_000; i<100_000; i++) b.add(HyperLogLog.hash("v" + i));
+        a.merge(b);
+        assertEstimate(100_000, a);
+    }
+}
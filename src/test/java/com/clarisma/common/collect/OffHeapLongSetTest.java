@@ -0,0 +1,57 @@
+package com.clarisma.common.collect;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLongSetTest
+{
+    @Test public void testSortAndLookup()
+    {
+        Random random = new Random(42);
+        long[] values = new long[100_000];
+        OffHeapArena arena = new OffHeapArena(64);
+        for(int i=0; i<values.length; i++)
+        {
+            // force plenty of duplicates
+            long v = random.nextLong(1L << 36) & ~0xfL;
+            values[i] = v;
+            arena.putLong(v);
+        }
+        OffHeapLongSet set = new OffHeapLongSet(arena);
+        long[] expected = Arrays.stream(values).sorted().distinct().toArray();
+        assertEquals(expected.length, set.size());
+        for(int i=0; i<expected.length; i++)
+        {
+            assertEquals(expected[i], set.get(i));
+        }
+        for(long v: values)
+        {
+            assertTrue(set.contains(v));
+            assertFalse(set.contains(v + 1));
+        }
+    }
+
+    @Test public void testRange()
+    {
+        OffHeapArena arena = new OffHeapArena(64);
+        for(long v: new long[] { 500, 100, 300 }) arena.putLong(v);
+        OffHeapLongSet set = new OffHeapLongSet(arena);
+        assertTrue(set.containsAnyInRange(100, 100));
+        assertTrue(set.containsAnyInRange(0, 100));
+        assertTrue(set.containsAnyInRange(250, 350));
+        assertFalse(set.containsAnyInRange(101, 299));
+        assertFalse(set.containsAnyInRange(501, 1000));
+        assertFalse(set.containsAnyInRange(0, 99));
+    }
+
+    @Test public void testEmpty()
+    {
+        OffHeapLongSet set = new OffHeapLongSet(new OffHeapArena(64));
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0));
+    }
+}
@@ -0,0 +1,22 @@
+package com.clarisma.common.collect;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RadixSortTest
+{
+    @Test public void testSortArray()
+    {
+        Random random = new Random(7);
+        long[] a = new long[50_000];
+        for(int i=0; i<a.length; i++) a[i] = random.nextLong(1L << 42);
+        long[] expected = Arrays.copyOf(a, a.length - 100);
+        Arrays.sort(expected);
+        RadixSort.sort(a, a.length - 100);
+        assertArrayEquals(expected, Arrays.copyOf(a, a.length - 100));
+    }
+}
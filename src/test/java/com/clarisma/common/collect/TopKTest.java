@@ -0,0 +1,39 @@
+package com.clarisma.common.collect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TopKTest
+{
+    @Test public void testHeavyHitters()
+    {
+        TopK<String> a = new TopK<>(10);
+        TopK<String> b = new TopK<>(10);
+        for(int i=0; i<10_000; i++)
+        {
+            TopK<String> sketch = (i & 1) == 0 ? a : b;
+            sketch.add("rare" + i, 1);
+            if(i % 4 == 0) sketch.add("common", 1);
+            if(i % 5 == 0) sketch.add("frequent", 1);
+        }
+        a.merge(b);
+        assertEquals(10_000 + 2_500 + 2_000, a.totalWeight(), 0);
+
+        List<String> top = new ArrayList<>();
+        a.forEach((item, weight) ->
+        {
+            top.add(item);
+            double actual = item.equals("common") ? 2_500 :
+                item.equals("frequent") ? 2_000 : 1;
+            assertTrue(weight <= actual);
+            assertTrue(weight >= actual - a.maxError());
+        });
+        assertTrue(top.size() <= 10);
+        assertEquals("common", top.get(0));
+        assertEquals("frequent", top.get(1));
+    }
+}
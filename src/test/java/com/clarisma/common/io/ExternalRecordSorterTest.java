@@ -0,0 +1,54 @@
+package com.clarisma.common.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ExternalRecordSorterTest
+{
+    private static List<String> sort(long maxMemory, long maxRecords) throws IOException
+    {
+        Random random = new Random(42);
+        List<String> result = new ArrayList<>();
+        try(ExternalRecordSorter sorter = new ExternalRecordSorter(null, maxMemory))
+        {
+            for(int i=0; i<10_000; i++)
+            {
+                int group = random.nextInt(3);
+                long id = random.nextInt(2000) - 500;
+                sorter.add(group, id, (group + "/" + id).getBytes());
+            }
+            sorter.merge((group, id, data, len) ->
+                result.add(new String(data, 0, len)), maxRecords);
+        }
+        return result;
+    }
+
+    @Test public void testSortAndDeduplicate() throws IOException
+    {
+        List<String> inMemory = sort(Long.MAX_VALUE, Long.MAX_VALUE);
+        List<String> spilled = sort(4096, Long.MAX_VALUE);
+        assertEquals(inMemory, spilled);
+        for(int i=1; i<inMemory.size(); i++)
+        {
+            String[] a = inMemory.get(i-1).split("/");
+            String[] b = inMemory.get(i).split("/");
+            int cmp = Integer.compare(Integer.parseInt(a[0]), Integer.parseInt(b[0]));
+            if(cmp == 0) cmp = Long.compare(Long.parseLong(a[1]), Long.parseLong(b[1]));
+            assertTrue(cmp < 0);
+        }
+    }
+
+    @Test public void testMaxRecords() throws IOException
+    {
+        List<String> all = sort(Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(all.subList(0, 100), sort(Long.MAX_VALUE, 100));
+        assertEquals(all.subList(0, 100), sort(4096, 100));
+        assertEquals(all, sort(4096, all.size() + 1));
+    }
+}
@@ -0,0 +1,61 @@
+package com.clarisma.common.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FlatBufferBuilderTest
+{
+    /**
+     * Returns the absolute position of a field of the table at `table`,
+     * or 0 if the field is absent.
+     */
+    private static int field(ByteBuffer buf, int table, int field)
+    {
+        int vtable = table - buf.getInt(table);
+        int vtableSize = buf.getShort(vtable);
+        int entry = 4 + field * 2;
+        if(entry >= vtableSize) return 0;
+        int ofs = buf.getShort(vtable + entry);
+        return ofs == 0 ? 0 : table + ofs;
+    }
+
+    private static int deref(ByteBuffer buf, int p)
+    {
+        return p + buf.getInt(p);
+    }
+
+    @Test public void testTable()
+    {
+        FlatBufferBuilder builder = new FlatBufferBuilder(16);
+        int name = builder.createString("Hello");
+        builder.startVector(8, 3, 8);
+        for(int i=2; i>=0; i--) builder.addDouble(i + 0.5);
+        int values = builder.endVector();
+        builder.startTable(4);
+        builder.addOffsetField(0, name);
+        builder.addByteField(1, 7, 0);
+        builder.addIntField(2, 0, 0);    // default, omitted
+        builder.addOffsetField(3, values);
+        int root = builder.endTable();
+        builder.finishSizePrefixed(root);
+
+        ByteBuffer buf = ByteBuffer.wrap(builder.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(buf.capacity() - 4, buf.getInt(0));
+        int table = deref(buf, 4);
+        int s = deref(buf, field(buf, table, 0));
+        byte[] chars = new byte[buf.getInt(s)];
+        buf.get(s + 4, chars);
+        assertEquals("Hello", new String(chars, StandardCharsets.UTF_8));
+        assertEquals(7, buf.get(field(buf, table, 1)));
+        assertEquals(0, field(buf, table, 2));
+        int v = deref(buf, field(buf, table, 3));
+        assertEquals(3, buf.getInt(v));
+        assertEquals(0, (v + 4) % 8);
+        for(int i=0; i<3; i++) assertEquals(i + 0.5, buf.getDouble(v + 4 + i * 8), 0);
+    }
+}
@@ -0,0 +1,98 @@
+package com.clarisma.common.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelGzipOutputStreamTest
+{
+    private static byte[] gunzip(byte[] compressed) throws IOException
+    {
+        try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed)))
+        {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test public void testRoundTrip() throws IOException
+    {
+        // Text-like data that spans many blocks, written in odd-sized chunks
+        Random random = new Random(42);
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        for(int i=0; i<20_000; i++)
+        {
+            original.write(("{\"id\":" + random.nextInt(1_000_000) +
+                ",\"name\":\"feature " + i + "\"}\n").getBytes());
+        }
+        byte[] data = original.toByteArray();
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+            buf, 3, 16 * 1024, Deflater.DEFAULT_COMPRESSION);
+        int pos = 0;
+        while(pos < data.length)
+        {
+            int len = Math.min(random.nextInt(5000), data.length - pos);
+            out.write(data, pos, len);
+            pos += len;
+            if(pos < data.length) out.write(data[pos++]);     // single bytes as well
+        }
+        out.close();
+
+        byte[] compressed = buf.toByteArray();
+        assertTrue(compressed.length < data.length / 2);
+        assertArrayEquals(data, gunzip(compressed));
+    }
+
+    @Test public void testEmpty() throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(buf, 2).close();
+        assertEquals(0, gunzip(buf.toByteArray()).length);
+    }
+
+    @Test public void testFlush() throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(buf, 2);
+        out.write("Hello, ".getBytes());
+        out.flush();
+        assertArrayEquals("Hello, ".getBytes(), gunzip(buf.toByteArray()));
+        out.write("world".getBytes());
+        out.close();
+        assertArrayEquals("Hello, world".getBytes(), gunzip(buf.toByteArray()));
+    }
+
+    @Test public void testSharedExecutor() throws IOException
+    {
+        ExecutorService executor = ParallelGzipOutputStream.newExecutor(2);
+        try
+        {
+            ByteArrayOutputStream buf1 = new ByteArrayOutputStream();
+            ByteArrayOutputStream buf2 = new ByteArrayOutputStream();
+            ParallelGzipOutputStream out1 = new ParallelGzipOutputStream(buf1, executor, 2);
+            ParallelGzipOutputStream out2 = new ParallelGzipOutputStream(buf2, executor, 2);
+            out1.write("first".getBytes());
+            out2.write("second".getBytes());
+            out1.close();
+            // Closing one stream leaves the executor to the other
+            assertFalse(executor.isShutdown());
+            out2.write(" stream".getBytes());
+            out2.close();
+            assertArrayEquals("first".getBytes(), gunzip(buf1.toByteArray()));
+            assertArrayEquals("second stream".getBytes(), gunzip(buf2.toByteArray()));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.clarisma.common.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class Utf8SinkTest
+{
+    private static String encode(String s)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8Sink out = new Utf8Sink(bytes);
+        out.print(s);
+        out.close();
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test public void testEncoding()
+    {
+        String[] strings = { "", "abc", "Stra\u00dfe", "\u6771\u4eac", "a\uD83D\uDE00b" };
+        for(String s: strings) assertEquals(s, encode(s));
+        assertEquals("?x", encode("\uD800x"));
+
+        StringBuilder buf = new StringBuilder();
+        for(int i=0; i<100_000; i++) buf.append(i % 7 == 0 ? "\u00e9" : "x");
+        String s = buf.toString();
+        assertEquals(s, encode(s));     // spans several buffers
+    }
+
+    @Test public void testNumbers()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8Sink out = new Utf8Sink(bytes);
+        long[] values = { 0, 7, -7, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE };
+        StringBuilder expected = new StringBuilder();
+        for(long v: values)
+        {
+            out.print(v);
+            out.print(' ');
+            expected.append(v).append(' ');
+        }
+        out.close();
+        assertEquals(expected.toString(), bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test public void testFixed()
+    {
+        assertEquals("13.3923456", Utf8Sink.formatFixed(13.39234561, 7));
+        assertEquals("-0.5", Utf8Sink.formatFixed(-0.5, 7));
+        assertEquals("12", Utf8Sink.formatFixed(12.0000000001, 7));
+        assertEquals("0", Utf8Sink.formatFixed(-0.00000001, 7));
+        assertEquals("180", Utf8Sink.formatFixed(179.99999999, 7));
+        assertEquals("0.07", Utf8Sink.formatFixed(0.07, 2));
+        assertEquals("3", Utf8Sink.formatFixed(2.5, 0));
+        assertEquals("1.0E20", Utf8Sink.formatFixed(1e20, 3));
+        assertEquals("NaN", Utf8Sink.formatFixed(Double.NaN, 7));
+    }
+
+    @Test public void testDiscard()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8Sink out = new Utf8Sink(bytes);
+        out.print("unsent");
+        out.discard();
+        assertEquals(0, bytes.size());
+        out.discard();      // no effect
+        out.close();        // no effect
+        assertEquals(0, bytes.size());
+    }
+}
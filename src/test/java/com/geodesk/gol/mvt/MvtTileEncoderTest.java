@@ -0,0 +1,126 @@
+package com.geodesk.gol.mvt;
+
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+
+import static org.junit.Assert.*;
+
+public class MvtTileEncoderTest
+{
+    private final GeometryFactory factory = new GeometryFactory();
+
+    /**
+     * Returns the Mercator coordinate of a point of tile 0/0/0,
+     * given in tile units (y pointing down).
+     */
+    private static Coordinate tileCoord(int x, int y)
+    {
+        return new Coordinate(Integer.MIN_VALUE + x * 1048576.0,
+            2147483648.0 - y * 1048576.0);
+    }
+
+    private static Coordinate[] tileCoords(int... xy)
+    {
+        Coordinate[] coords = new Coordinate[xy.length / 2];
+        for(int i=0; i<coords.length; i++) coords[i] = tileCoord(xy[i*2], xy[i*2+1]);
+        return coords;
+    }
+
+    private LinearRing ring(int... xy)
+    {
+        return factory.createLinearRing(tileCoords(xy));
+    }
+
+    private static int[] decode(byte[] data)
+    {
+        MutableIntList values = new IntArrayList();
+        int v = 0;
+        int shift = 0;
+        for(byte b: data)
+        {
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+            if((b & 0x80) == 0)
+            {
+                values.add(v);
+                v = 0;
+                shift = 0;
+            }
+        }
+        return values.toArray();
+    }
+
+    private static void assertCommands(MvtTileEncoder encoder, int... expected)
+    {
+        assertArrayEquals(expected, decode(encoder.encodedGeometry()));
+    }
+
+    @Test public void testZigzag()
+    {
+        assertEquals(0, MvtTileEncoder.zigzag(0));
+        assertEquals(1, MvtTileEncoder.zigzag(-1));
+        assertEquals(2, MvtTileEncoder.zigzag(1));
+        assertEquals(3, MvtTileEncoder.zigzag(-2));
+        assertEquals(4, MvtTileEncoder.zigzag(2));
+        assertEquals(0xffff_fffe, MvtTileEncoder.zigzag(Integer.MAX_VALUE));
+        assertEquals(0xffff_ffff, MvtTileEncoder.zigzag(Integer.MIN_VALUE));
+    }
+
+    @Test public void testPoints()
+    {
+        MvtTileEncoder encoder = new MvtTileEncoder(0, 0, 0, false);
+        assertEquals(1, encoder.encodeGeometry(factory.createMultiPointFromCoords(
+            tileCoords(1, 1, 3, 1))));
+        // MoveTo(2), then each point relative to the previous one
+        assertCommands(encoder, 17, 2, 2, 4, 0);
+    }
+
+    @Test public void testLine()
+    {
+        MvtTileEncoder encoder = new MvtTileEncoder(0, 0, 0, false);
+        assertEquals(2, encoder.encodeGeometry(factory.createLineString(
+            tileCoords(0, 0, 5, 5, 5, 5, 8, 2))));
+        // MoveTo(1), LineTo(2); the duplicate point is dropped
+        assertCommands(encoder, 9, 0, 0, 18, 10, 10, 6, 5);
+    }
+
+    @Test public void testRingWinding()
+    {
+        MvtTileEncoder encoder = new MvtTileEncoder(0, 0, 0, false);
+
+        // Exterior ring with positive area (clockwise on screen): kept as-is,
+        // MoveTo(1), LineTo(3), ClosePath(1)
+        assertEquals(3, encoder.encodeGeometry(factory.createPolygon(
+            ring(0, 0, 10, 0, 10, 10, 0, 10, 0, 0))));
+        assertCommands(encoder, 9, 0, 0, 26, 20, 0, 0, 20, 19, 0, 15);
+
+        // The same ring in the opposite direction is reversed
+        assertEquals(3, encoder.encodeGeometry(factory.createPolygon(
+            ring(0, 0, 0, 10, 10, 10, 10, 0, 0, 0))));
+        assertCommands(encoder, 9, 20, 0, 26, 0, 20, 19, 0, 0, 19, 15);
+
+        // An interior ring must have negative area, so a hole given in
+        // the same direction as its exterior ring is reversed
+        assertEquals(3, encoder.encodeGeometry(factory.createPolygon(
+            ring(0, 0, 10, 0, 10, 10, 0, 10, 0, 0),
+            new LinearRing[] { ring(2, 2, 4, 2, 4, 4, 2, 4, 2, 2) })));
+        assertCommands(encoder,
+            9, 0, 0, 26, 20, 0, 0, 20, 19, 0, 15,
+            9, 4, 11, 26, 4, 0, 0, 3, 3, 0, 15);
+    }
+
+    @Test public void testCollapsedRing()
+    {
+        MvtTileEncoder encoder = new MvtTileEncoder(0, 0, 0, false);
+        // All vertices fall into the same tile unit
+        LinearRing tiny = factory.createLinearRing(new Coordinate[] {
+            tileCoord(5, 5), new Coordinate(tileCoord(5, 5).x + 1000, tileCoord(5, 5).y),
+            new Coordinate(tileCoord(5, 5).x + 1000, tileCoord(5, 5).y + 1000),
+            tileCoord(5, 5) });
+        assertEquals(0, encoder.encodeGeometry(factory.createPolygon(tiny)));
+    }
+}
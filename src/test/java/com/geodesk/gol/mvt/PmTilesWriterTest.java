@@ -0,0 +1,133 @@
+package com.geodesk.gol.mvt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class PmTilesWriterTest
+{
+    private static long readVarint(InputStream in) throws IOException
+    {
+        long v = 0;
+        for(int shift = 0; ; shift += 7)
+        {
+            int b = in.read();
+            assertTrue(b >= 0);
+            v |= (long)(b & 0x7f) << shift;
+            if((b & 0x80) == 0) return v;
+        }
+    }
+
+    /**
+     * Decodes a compressed directory into entries of tile ID, offset,
+     * length and run length (the layout used by PmTilesWriter).
+     */
+    private static List<long[]> decodeDirectory(byte[] data, int start, int len) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data, start, len));
+        int count = (int)readVarint(in);
+        long[][] entries = new long[count][4];
+        long id = 0;
+        for(long[] e: entries)
+        {
+            id += readVarint(in);
+            e[0] = id;
+        }
+        for(long[] e: entries) e[3] = readVarint(in);
+        for(long[] e: entries) e[2] = readVarint(in);
+        for(int i=0; i<count; i++)
+        {
+            long ofs = readVarint(in);
+            entries[i][1] = ofs == 0 ? entries[i-1][1] + entries[i-1][2] : ofs - 1;
+        }
+        assertEquals(-1, in.read());
+        return Arrays.asList(entries);
+    }
+
+    private static void assertEntriesEqual(List<long[]> expected, List<long[]> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for(int i=0; i<expected.size(); i++)
+        {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test public void testTileId()
+    {
+        assertEquals(0, PmTilesWriter.tileId(0, 0, 0));
+        assertEquals(1, PmTilesWriter.tileId(1, 0, 0));
+        assertEquals(2, PmTilesWriter.tileId(1, 0, 1));
+        assertEquals(3, PmTilesWriter.tileId(1, 1, 1));
+        assertEquals(4, PmTilesWriter.tileId(1, 1, 0));
+        assertEquals(5, PmTilesWriter.tileId(2, 0, 0));
+        assertEquals(20, PmTilesWriter.tileId(2, 3, 0));
+        assertEquals(21, PmTilesWriter.tileId(3, 0, 0));
+    }
+
+    @Test public void testDirectoryRoundTrip() throws IOException
+    {
+        List<long[]> entries = List.of(
+            new long[] { 0, 0, 100, 1 },
+            new long[] { 1, 100, 200, 1 },          // follows the previous tile
+            new long[] { 5, 1000, 50, 3 },          // gap before this tile
+            new long[] { 1_000_000, 1050, 70_000, 1 });
+        byte[] dir = PmTilesWriter.encodeDirectory(entries, 0, entries.size());
+        assertEntriesEqual(entries, decodeDirectory(dir, 0, dir.length));
+
+        dir = PmTilesWriter.encodeDirectory(entries, 2, 4);
+        assertEntriesEqual(entries.subList(2, 4), decodeDirectory(dir, 0, dir.length));
+    }
+
+    @Test public void testSmallDirectoryHasNoLeaves() throws IOException
+    {
+        List<long[]> entries = new ArrayList<>();
+        for(int i=0; i<100; i++) entries.add(new long[] { i, i * 10L, 10, 1 });
+        byte[][] dirs = PmTilesWriter.encodeDirectories(entries);
+        assertEquals(0, dirs[1].length);
+        assertEntriesEqual(entries, decodeDirectory(dirs[0], 0, dirs[0].length));
+    }
+
+    @Test public void testLeafDirectories() throws IOException
+    {
+        // Random tile sizes don't compress well, so the root directory
+        // won't fit in the first request unless it is split
+        Random random = new Random(42);
+        List<long[]> entries = new ArrayList<>();
+        long ofs = 0;
+        for(int i=0; i<100_000; i++)
+        {
+            long len = 1 + random.nextInt(20_000);
+            entries.add(new long[] { i * 3L, ofs, len, 1 });
+            ofs += len;
+        }
+        byte[][] dirs = PmTilesWriter.encodeDirectories(entries);
+        byte[] root = dirs[0];
+        byte[] leaves = dirs[1];
+        assertTrue(PmTilesWriter.HEADER_SIZE + root.length <= PmTilesWriter.MAX_ROOT_SIZE);
+        assertTrue(leaves.length > 0);
+
+        List<long[]> leafEntries = new ArrayList<>();
+        long leafEnd = 0;
+        for(long[] e: decodeDirectory(root, 0, root.length))
+        {
+            assertEquals(0, e[3]);                  // points to a leaf
+            assertEquals(leafEnd, e[1]);            // leaves are contiguous
+            List<long[]> leaf = decodeDirectory(leaves, (int)e[1], (int)e[2]);
+            assertEquals(e[0], leaf.get(0)[0]);     // keyed by first tile ID
+            leafEntries.addAll(leaf);
+            leafEnd = e[1] + e[2];
+        }
+        assertEquals(leaves.length, leafEnd);
+        assertEntriesEqual(entries, leafEntries);
+    }
+}
@@ -0,0 +1,133 @@
+package com.geodesk.gol.query;
+
+import com.clarisma.common.io.Utf8Sink;
+import org.eclipse.collections.impl.list.mutable.primitive.DoubleArrayList;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FgbFeaturePrinterTest
+{
+    /**
+     * Returns the position of a field of a FlatBuffers table,
+     * or 0 if the field is absent.
+     */
+    private static int field(ByteBuffer buf, int table, int field)
+    {
+        int vtable = table - buf.getInt(table);
+        int vtableSize = buf.getShort(vtable);
+        if(4 + field * 2 >= vtableSize) return 0;
+        int ofs = buf.getShort(vtable + 4 + field * 2);
+        return ofs == 0 ? 0 : table + ofs;
+    }
+
+    private static int deref(ByteBuffer buf, int p)
+    {
+        return p + buf.getInt(p);
+    }
+
+    private static String string(ByteBuffer buf, int p)
+    {
+        int s = deref(buf, p);
+        byte[] bytes = new byte[buf.getInt(s)];
+        buf.get(s + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test public void testHeaderLayout()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FgbFeaturePrinter printer = new FgbFeaturePrinter(new Utf8Sink(bytes));
+        printer.columns(new String[] { "name", "x", "y", "bbox", "addr:*" });
+        printer.printHeader();
+        printer.printFooter();
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[8];
+        buf.get(0, magic);
+        assertArrayEquals("fgb\u0003fgb\u0000".getBytes(StandardCharsets.US_ASCII), magic);
+        // Without features, the size-prefixed header is all that follows
+        assertEquals(buf.capacity() - 12, buf.getInt(8));
+
+        int header = deref(buf, 12);
+        assertEquals(0, field(buf, header, 8));             // features_count: 0
+        int p = field(buf, header, 9);                      // index_node_size: 0 (no index)
+        assertTrue(p != 0);
+        assertEquals(0, buf.getShort(p));
+        assertEquals(0, field(buf, header, 1));             // no envelope
+
+        p = field(buf, header, 10);                         // crs
+        assertEquals(4326, buf.getInt(field(buf, deref(buf, p), 1)));
+
+        // The ID comes first; bbox is omitted
+        String[] names = { "id", "name", "x", "y", "addr:*" };
+        int[] types = { 11, 11, 10, 10, 12 };
+        int columns = deref(buf, field(buf, header, 7));
+        assertEquals(names.length, buf.getInt(columns));
+        for(int i=0; i<names.length; i++)
+        {
+            int column = deref(buf, columns + 4 + i * 4);
+            assertEquals(names[i], string(buf, field(buf, column, 0)));
+            assertEquals(types[i], buf.get(field(buf, column, 1)));
+        }
+    }
+
+    @Test public void testHilbertOrder()
+    {
+        // One feature in each quadrant; the curve starts in the lower left
+        // and ends in the lower right
+        DoubleArrayList bounds = new DoubleArrayList();
+        bounds.addAll(0, 0, 10, 10);            // lower left
+        bounds.addAll(90, 0, 100, 10);          // lower right
+        bounds.addAll(0, 90, 10, 100);          // upper left
+        bounds.addAll(90, 90, 100, 100);        // upper right
+        int[] order = FgbFeaturePrinter.sortFeatures(bounds, new double[] { 0, 0, 100, 100 });
+        assertArrayEquals(new long[] { 0, 2, 3, 1 }, new long[] { order[0], order[1], order[2], order[3] });
+    }
+
+    @Test public void testIndexLayout()
+    {
+        // 20 features need 20 leaves, 2 nodes (of up to 16 children) and a root
+        int count = 20;
+        DoubleArrayList bounds = new DoubleArrayList();
+        int[] order = new int[count];
+        long[] positions = new long[count];
+        for(int i=0; i<count; i++)
+        {
+            bounds.addAll(i, i * 2, i + 1, i * 2 + 1);
+            order[i] = i;
+            positions[i] = i * 100L;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8Sink out = new Utf8Sink(bytes);
+        FgbFeaturePrinter.writeIndex(out, bounds, order, positions);
+        out.flush();
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(23 * 40, buf.capacity());
+        // Each node: minX, minY, maxX, maxY, offset; the root comes first,
+        // and the offset of a node is the index of its first child
+        double[][] expected = {
+            { 0, 0, 20, 39, 1 },            // root
+            { 0, 0, 16, 31, 3 },            // features 0 - 15
+            { 16, 32, 20, 39, 19 },         // features 16 - 19
+        };
+        for(int i=0; i<expected.length; i++)
+        {
+            for(int j=0; j<4; j++) assertEquals(expected[i][j], buf.getDouble(i * 40 + j * 8), 0);
+            assertEquals((long)expected[i][4], buf.getLong(i * 40 + 32));
+        }
+        for(int i=0; i<count; i++)
+        {
+            int p = (3 + i) * 40;
+            assertEquals(i, buf.getDouble(p), 0);
+            assertEquals(i * 2 + 1, buf.getDouble(p + 24), 0);
+            assertEquals(positions[i], buf.getLong(p + 32));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.geodesk.gol.query;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HilbertTest
+{
+    /**
+     * The textbook conversion of a cell to its distance along a Hilbert
+     * curve through an n x n grid (curve starts at 0,0 and ends at n-1,0).
+     */
+    private static long referenceIndex(long n, long x, long y)
+    {
+        long d = 0;
+        for(long s = n / 2; s > 0; s /= 2)
+        {
+            long rx = (x & s) != 0 ? 1 : 0;
+            long ry = (y & s) != 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            if(ry == 0)
+            {
+                if(rx == 1)
+                {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static long index(int x, int y)
+    {
+        return Hilbert.index(x, y) & 0xffff_ffffL;
+    }
+
+    @Test public void testCorners()
+    {
+        assertEquals(0, index(0, 0));
+        assertEquals(1, index(1, 0));
+        assertEquals(0xffff_ffffL, index(Hilbert.MAX, 0));
+        assertEquals(referenceIndex(65536, 0, Hilbert.MAX), index(0, Hilbert.MAX));
+        assertEquals(referenceIndex(65536, Hilbert.MAX, Hilbert.MAX), index(Hilbert.MAX, Hilbert.MAX));
+    }
+
+    @Test public void testMatchesReference()
+    {
+        Random random = new Random(42);
+        for(int i=0; i<10_000; i++)
+        {
+            int x = random.nextInt(Hilbert.MAX + 1);
+            int y = random.nextInt(Hilbert.MAX + 1);
+            assertEquals(referenceIndex(65536, x, y), index(x, y));
+        }
+    }
+
+    @Test public void testConsecutiveCellsAreAdjacent()
+    {
+        // Walk the curve through the lowest 64 x 64 corner of the grid
+        // (which the curve covers in one piece) and check each step
+        int n = 64;
+        int[] xs = new int[n * n];
+        int[] ys = new int[n * n];
+        for(int x=0; x<n; x++)
+        {
+            for(int y=0; y<n; y++)
+            {
+                int d = (int)index(x, y);
+                assertTrue(d >= 0 && d < n * n);
+                xs[d] = x;
+                ys[d] = y;
+            }
+        }
+        for(int d=1; d<n*n; d++)
+        {
+            assertEquals(1, Math.abs(xs[d] - xs[d-1]) + Math.abs(ys[d] - ys[d-1]));
+        }
+    }
+
+    @Test public void testScaledIndex()
+    {
+        // Points are scaled to the grid by their position within the extent
+        assertEquals(0, Hilbert.index(10.0, 20.0, 10, 20, 100, 50));
+        assertEquals(0xffff_ffff, Hilbert.index(110.0, 20.0, 10, 20, 100, 50));
+        assertEquals(Hilbert.index(Hilbert.MAX / 2, Hilbert.MAX / 2),
+            Hilbert.index(60.0, 45.0, 10, 20, 100, 50));
+        // An empty extent maps to the first cell
+        assertEquals(0, Hilbert.index(5.0, 5.0, 5, 5, 0, 0));
+    }
+}
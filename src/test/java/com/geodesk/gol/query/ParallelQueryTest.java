@@ -0,0 +1,145 @@
+package com.geodesk.gol.query;
+
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Box;
+import com.geodesk.geom.Tile;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that each feature is printed by exactly one cell: its home cell
+ * must be one of the cells that are queried (each of which is queried
+ * once), and the feature must be retrieved when that cell is queried
+ * (i.e. its bounding box must intersect the cell).
+ */
+public class ParallelQueryTest
+{
+    private static final Bounds BOUNDS = new Box(
+        -100_000_000, -50_000_000, 150_000_000, 120_000_000);
+
+    private static boolean intersects(Bounds a, Bounds b)
+    {
+        return a.minX() <= b.maxX() && a.maxX() >= b.minX() &&
+            a.minY() <= b.maxY() && a.maxY() >= b.minY();
+    }
+
+    private static MutableIntList cells(ParallelQuery query)
+    {
+        MutableIntList cells = new IntArrayList();
+        query.addCells(cells, new IntHashSet(), BOUNDS);
+        assertFalse(cells.isEmpty());
+        assertEquals(cells.size(), cells.toSet().size());
+        return cells;
+    }
+
+    /**
+     * Creates bounding boxes of all sizes within and around the query's
+     * bounds, as well as boxes that sit on the edges and corners of cells
+     * and of the query's bounds.
+     */
+    private static List<Bounds> features(MutableIntList cells)
+    {
+        Random random = new Random(42);
+        List<Bounds> features = new ArrayList<>();
+        int width = BOUNDS.maxX() - BOUNDS.minX();
+        int height = BOUNDS.maxY() - BOUNDS.minY();
+        for(int i=0; i<5000; i++)
+        {
+            int x = BOUNDS.minX() - width / 5 + random.nextInt(width / 5 * 7);
+            int y = BOUNDS.minY() - height / 5 + random.nextInt(height / 5 * 7);
+            int w = random.nextInt(1 << random.nextInt(28));
+            int h = random.nextInt(1 << random.nextInt(28));
+            features.add(new Box(x, y, x + w, y + h));
+        }
+        for(int i=0; i<500; i++)
+        {
+            Bounds b = Tile.bounds(cells.get(random.nextInt(cells.size())));
+            features.add(new Box(b.minX(), b.minY(), b.minX(), b.minY()));
+            features.add(new Box(b.maxX(), b.maxY(), b.maxX(), b.maxY()));
+            features.add(new Box(b.maxX(), b.minY(), b.maxX() + 1, b.minY()));
+            features.add(new Box(b.minX(), b.maxY(), b.minX(), b.maxY() + 1));
+            features.add(new Box(b.maxX(), b.maxY(), b.maxX() + 1, b.maxY() + 1));
+            features.add(new Box(b.minX(), b.minY(), b.maxX(), b.maxY()));
+            features.add(new Box(b.minX() - 1, b.minY() - 1, b.maxX() + 1, b.maxY() + 1));
+        }
+        int minX = BOUNDS.minX();
+        int minY = BOUNDS.minY();
+        int maxX = BOUNDS.maxX();
+        int maxY = BOUNDS.maxY();
+        features.add(new Box(minX, minY, minX, minY));
+        features.add(new Box(maxX, maxY, maxX, maxY));
+        features.add(new Box(minX - 1000, minY - 1000, minX, minY));
+        features.add(new Box(maxX, maxY, maxX + 1000, maxY + 1000));
+        features.add(new Box(minX - 1000, minY, maxX + 1000, minY));
+        features.add(new Box(maxX, minY - 1000, maxX, maxY + 1000));
+        features.add(new Box(minX - 1000, minY - 1000, maxX + 1000, maxY + 1000));
+        features.add(Box.ofWorld());
+        return features;
+    }
+
+    /**
+     * Returns how often a feature is printed: once for each time its home
+     * cell is queried, provided the feature is retrieved for that cell.
+     */
+    private static int timesPrinted(ParallelQuery query, MutableIntList cells, Bounds b)
+    {
+        int cell = query.homeCell(b);
+        if(cell < 0 || !intersects(b, Tile.bounds(cell))) return 0;
+        return cells.count(c -> c == cell);
+    }
+
+    @Test public void testCellsPrintEachFeatureOnce()
+    {
+        for(int threads: new int[] { 1, 4, 16 })
+        {
+            ParallelQuery query = new ParallelQuery(null, BOUNDS, null,
+                threads, true, Long.MAX_VALUE);
+            MutableIntList cells = cells(query);
+            for(Bounds b: features(cells))
+            {
+                if(!intersects(b, BOUNDS)) continue;
+                assertEquals(b.toString(), 1, timesPrinted(query, cells, b));
+            }
+        }
+    }
+
+    @Test public void testAreaCellsPrintEachFeatureOnce()
+    {
+        // A diamond within the query's bounds (whose corners lie
+        // outside the area)
+        GeometryFactory factory = new GeometryFactory();
+        int midX = (BOUNDS.minX() + BOUNDS.maxX()) / 2;
+        int midY = (BOUNDS.minY() + BOUNDS.maxY()) / 2;
+        Geometry area = factory.createPolygon(new Coordinate[]
+        {
+            new Coordinate(BOUNDS.minX(), midY),
+            new Coordinate(midX, BOUNDS.minY()),
+            new Coordinate(BOUNDS.maxX(), midY),
+            new Coordinate(midX, BOUNDS.maxY()),
+            new Coordinate(BOUNDS.minX(), midY)
+        });
+        ParallelQuery query = new ParallelQuery(null, BOUNDS, null,
+            4, true, Long.MAX_VALUE);
+        query.area(area, null);
+        MutableIntList cells = cells(query);
+        for(Bounds b: features(cells))
+        {
+            Geometry box = factory.toGeometry(new Envelope(
+                b.minX(), b.maxX(), b.minY(), b.maxY()));
+            if(!area.intersects(box)) continue;
+            assertEquals(b.toString(), 1, timesPrinted(query, cells, b));
+        }
+    }
+}
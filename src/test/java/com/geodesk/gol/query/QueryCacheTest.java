@@ -0,0 +1,139 @@
+package com.geodesk.gol.query;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class QueryCacheTest
+{
+    private static void deleteTree(Path dir) throws IOException
+    {
+        try(Stream<Path> files = Files.walk(dir))
+        {
+            for(Path p: files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    private static void store(QueryCache cache, String key, String output, long count) throws IOException
+    {
+        try(QueryCache.Entry entry = cache.write(key))
+        {
+            entry.write(output.getBytes(StandardCharsets.UTF_8));
+            entry.commit(count);
+        }
+    }
+
+    private static String load(QueryCache cache, String key, long expectedCount) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expectedCount, cache.read(key, out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test public void testStoreAndRead() throws IOException
+    {
+        Path dir = Files.createTempDirectory("query-cache");
+        try
+        {
+            QueryCache cache = new QueryCache(dir, 1024 * 1024);
+            String key = QueryCache.key("na[amenity=pub]", null, "geojson");
+            assertEquals(key, QueryCache.key("na[amenity=pub]", null, "geojson"));
+            assertFalse(key.equals(QueryCache.key("na[amenity=pub]", "geojson", null)));
+
+            assertEquals(-1, cache.read(key, new ByteArrayOutputStream()));     // miss
+            store(cache, key, "pub 1\npub 2\n", 2);
+            assertEquals("pub 1\npub 2\n", load(cache, key, 2));                // hit
+            assertEquals(-1, cache.read(QueryCache.key("other"), new ByteArrayOutputStream()));
+        }
+        finally
+        {
+            deleteTree(dir);
+        }
+    }
+
+    @Test public void testUncommittedEntryIsDiscarded() throws IOException
+    {
+        Path dir = Files.createTempDirectory("query-cache");
+        try
+        {
+            QueryCache cache = new QueryCache(dir, 1024 * 1024);
+            String key = QueryCache.key("abandoned");
+            try(QueryCache.Entry entry = cache.write(key))
+            {
+                entry.write("partial".getBytes(StandardCharsets.UTF_8));
+            }
+            assertEquals(-1, cache.read(key, new ByteArrayOutputStream()));
+            try(Stream<Path> files = Files.list(dir))
+            {
+                assertEquals(0, files.count());
+            }
+        }
+        finally
+        {
+            deleteTree(dir);
+        }
+    }
+
+    @Test public void testEvictsLeastRecentlyUsed() throws IOException
+    {
+        Path dir = Files.createTempDirectory("query-cache");
+        try
+        {
+            // Each result takes 8 + 100 bytes, so the cache can hold 3
+            QueryCache cache = new QueryCache(dir, 350);
+            String output = "x".repeat(100);
+            String[] keys = new String[4];
+            long now = System.currentTimeMillis();
+            for(int i=0; i<3; i++)
+            {
+                keys[i] = QueryCache.key("query " + i);
+                store(cache, keys[i], output, i);
+            }
+            // Make the order of use explicit (file times may be coarse):
+            // result 1 is the oldest, result 0 the most recently used
+            Files.setLastModifiedTime(dir.resolve(keys[1] + ".result"), FileTime.fromMillis(now - 30_000));
+            Files.setLastModifiedTime(dir.resolve(keys[2] + ".result"), FileTime.fromMillis(now - 20_000));
+            Files.setLastModifiedTime(dir.resolve(keys[0] + ".result"), FileTime.fromMillis(now - 10_000));
+
+            keys[3] = QueryCache.key("query 3");
+            store(cache, keys[3], output, 3);
+
+            assertEquals(-1, cache.read(keys[1], new ByteArrayOutputStream()));
+            assertEquals(output, load(cache, keys[0], 0));
+            assertEquals(output, load(cache, keys[2], 2));
+            assertEquals(output, load(cache, keys[3], 3));
+        }
+        finally
+        {
+            deleteTree(dir);
+        }
+    }
+
+    @Test public void testDeletesStaleTempFiles() throws IOException
+    {
+        Path dir = Files.createTempDirectory("query-cache");
+        try
+        {
+            Path stale = Files.createFile(dir.resolve("crashed.tmp"));
+            Files.setLastModifiedTime(stale, FileTime.fromMillis(
+                System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+            Path active = Files.createFile(dir.resolve("active.tmp"));
+            new QueryCache(dir, 1024);
+            assertFalse(Files.exists(stale));
+            assertTrue(Files.exists(active));
+        }
+        finally
+        {
+            deleteTree(dir);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.geodesk.gol.query;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SimplifierTest
+{
+    /**
+     * Returns the given number of Mercator units at the Equator, in meters.
+     */
+    private static double meters(double units)
+    {
+        return units * Simplifier.METERS_PER_UNIT_AT_EQUATOR;
+    }
+
+    @Test public void testMetersPerUnit()
+    {
+        assertEquals(Simplifier.METERS_PER_UNIT_AT_EQUATOR, Simplifier.metersPerUnit(0), 1e-12);
+        // At 60 degrees, a unit covers half the distance it does at the Equator
+        double y60 = Math.log(Math.tan(Math.toRadians(75))) / Math.PI * 2147483648.0;
+        assertEquals(Simplifier.METERS_PER_UNIT_AT_EQUATOR / 2, Simplifier.metersPerUnit(y60), 1e-9);
+        assertEquals(Simplifier.metersPerUnit(y60), Simplifier.metersPerUnit(-y60), 1e-12);
+    }
+
+    @Test public void testDropsCollinearVertices()
+    {
+        Simplifier simplifier = new Simplifier();
+        simplifier.tolerance(meters(10));
+        int n = simplifier.simplify(new int[] { 0,0, 1000,0, 2000,0, 3000,1, 4000,0 }, false);
+        assertEquals(2, n);
+        assertEquals(0, simplifier.x(0), 0);
+        assertEquals(4000, simplifier.x(1), 0);
+
+        // A vertex that deviates more than the tolerance is kept
+        n = simplifier.simplify(new int[] { 0,0, 1000,250, 2000,500, 3000,250, 4000,0 }, false);
+        assertEquals(3, n);
+        assertEquals(2000, simplifier.x(1), 0);
+        assertEquals(500, simplifier.y(1), 0);
+    }
+
+    @Test public void testRingKeepsFourVertices()
+    {
+        Simplifier simplifier = new Simplifier();
+        simplifier.tolerance(meters(1_000_000));
+        int[] ring = { 0,0, 1000,0, 2000,0, 2000,1000, 2000,2000, 0,2000, 0,0 };
+        int n = simplifier.simplify(ring, true);
+        assertTrue(n >= 4);
+        assertEquals(simplifier.x(0), simplifier.x(n-1), 0);
+        assertEquals(simplifier.y(0), simplifier.y(n-1), 0);
+
+        // A line can be reduced to its endpoints
+        assertEquals(2, simplifier.simplify(ring, false));
+    }
+
+    @Test public void testSnappingMergesDuplicates()
+    {
+        Simplifier simplifier = new Simplifier();
+        simplifier.grid(meters(100));
+        assertTrue(simplifier.isEnabled());
+        int n = simplifier.simplify(new int[] { 0,0, 10,5, 20,-5, 1000,0, 1010,0, 1990,30 }, false);
+        assertEquals(3, n);
+        assertEquals(0, simplifier.x(0), 1e-6);
+        assertEquals(1000, simplifier.x(1), 1e-6);
+        assertEquals(2000, simplifier.x(2), 1e-6);
+        assertEquals(0, simplifier.y(2), 1e-6);
+    }
+
+    @Test public void testCollapsedRingIsNotSnapped()
+    {
+        Simplifier simplifier = new Simplifier();
+        simplifier.grid(meters(100));
+        int[] ring = { 0,0, 10,0, 10,10, 0,10, 0,0 };
+        // All vertices snap to the same point, so the ring is left as-is
+        assertEquals(5, simplifier.simplify(ring, true));
+        for(int i=0; i<5; i++)
+        {
+            assertEquals(ring[i*2], simplifier.x(i), 0);
+            assertEquals(ring[i*2+1], simplifier.y(i), 0);
+        }
+    }
+}
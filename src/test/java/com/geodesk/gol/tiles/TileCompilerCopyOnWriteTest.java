@@ -0,0 +1,289 @@
+package com.geodesk.gol.tiles;
+
+import com.geodesk.feature.FeatureId;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Tile;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+import static com.geodesk.feature.store.FeatureFlags.AREA_FLAG;
+import static org.junit.Assert.*;
+
+/**
+ * Patches tiles in copy-on-write mode and checks that the result reads the
+ * same as a tile rebuilt from scratch (the way compileAll() does it), and
+ * that changes which cannot be applied in place make the tile fall back
+ * to a full rebuild.
+ *
+ * The original tile is built by the test: nodes tagged `highway` or
+ * `amenity`, highways and buildings, indexed by key category with a small
+ * bucket size, so the spatial index has several levels of branches.
+ */
+public class TileCompilerCopyOnWriteTest
+{
+    private static final String[] GLOBAL_STRINGS =
+    {
+        "", "highway", "building", "amenity", "name", "yes",
+        "residential", "service", "crossing", "pub", "Red Lion"
+    };
+
+    private static final int NODE_COUNT = 40;     // ids 1 to 40
+    private static final int WAY_COUNT = 20;      // ids 1 to 20
+    private static final int AREA_COUNT = 10;     // ids 21 to 30
+
+    private static final long RETAGGED_NODE = FeatureId.ofNode(1);
+    private static final long MOVED_NODE = FeatureId.ofNode(2);
+    private static final long LENGTHENED_WAY = FeatureId.ofWay(3);
+    private static final long RETAGGED_WAY = FeatureId.ofWay(4);
+    private static final long ENLARGED_AREA = FeatureId.ofWay(25);
+
+    private MutableObjectIntMap<String> globalStrings;
+    private IndexSettings indexSettings;
+    private int tile;
+    private ByteBuffer original;
+
+    @Before public void setUp()
+    {
+        globalStrings = new ObjectIntHashMap<>();
+        for(int i=0; i<GLOBAL_STRINGS.length; i++) globalStrings.put(GLOBAL_STRINGS[i], i);
+        MutableIntIntMap keysToCategory = new IntIntHashMap();
+        keysToCategory.put(globalStrings.get("highway"), 1);
+        keysToCategory.put(globalStrings.get("building"), 2);
+        indexSettings = new IndexSettings(4, 8, 1, keysToCategory);
+        tile = Tile.fromColumnRowZoom(2200, 1343, 12);
+        original = buildOriginal();
+    }
+
+    private TTile newTile()
+    {
+        // The TileCatalog is only needed for foreign features
+        return new TTile(tile, globalStrings, null, indexSettings);
+    }
+
+    private ByteBuffer buildOriginal()
+    {
+        TTile t = newTile();
+        Bounds b = t.bounds();
+        int step = (b.maxX() - b.minX()) / 16;
+        int x0 = b.minX() + step * 2;
+        int y0 = b.minY() + step * 2;
+        for(int i=0; i<NODE_COUNT; i++)
+        {
+            TNode node = t.getNode(i + 1);
+            node.flags |= TFeature.LOCAL_FLAG;
+            node.minX = x0 + (i % 8) * step;
+            node.minY = y0 + (i / 8) * step;
+            node.tags = t.getTags((i & 1) == 0 ?
+                new String[] { "amenity", "pub" } :
+                new String[] { "highway", "crossing" });
+        }
+        for(int i=0; i<WAY_COUNT; i++)
+        {
+            TWay way = t.getWay(i + 1);
+            way.flags |= TFeature.LOCAL_FLAG;
+            way.tags = t.getTags(new String[] { "highway", "residential" });
+            way.setCoordinates(zigzag(x0 + i * step / 2, y0, 12, step / 4));
+        }
+        for(int i=0; i<AREA_COUNT; i++)
+        {
+            TWay area = t.getWay(WAY_COUNT + i + 1);
+            area.flags |= TFeature.LOCAL_FLAG | AREA_FLAG;
+            area.tags = t.getTags(new String[] { "building", "yes" });
+            area.setCoordinates(ring(x0 + i * step, y0 + step * 5, step / 2));
+        }
+        t.build();
+        return write(t, null, 0);
+    }
+
+    private static int[] zigzag(int x, int y, int points, int spacing)
+    {
+        int[] coords = new int[points * 2];
+        for(int i=0; i<points; i++)
+        {
+            coords[i*2] = x + (i & 1) * spacing / 3;
+            coords[i*2+1] = y + i * spacing;
+        }
+        return coords;
+    }
+
+    private static int[] ring(int x, int y, int size)
+    {
+        return new int[] { x, y, x + size, y, x + size, y + size, x, y + size, x, y };
+    }
+
+    /**
+     * Applies the same changes to a tile read in copy-on-write mode and
+     * to a fully read tile: new tags (one of them a new tag table), a node
+     * that moves out of its branch, a way with a larger body, and an area
+     * whose bounding box grows.
+     */
+    private void modify(TTile t)
+    {
+        TFeature node = t.getFeature(RETAGGED_NODE);
+        node.tags = t.getTags(new String[] { "amenity", "pub", "name", "Red Lion" });
+        node = t.getFeature(MOVED_NODE);
+        node.minX = t.bounds().maxX() - 1000;
+        node.minY = t.bounds().maxY() - 1000;
+        TWay way = (TWay)t.getFeature(LENGTHENED_WAY);
+        way.setCoordinates(zigzag(way.minX(), way.minY(), 40, 5000));
+        way = (TWay)t.getFeature(RETAGGED_WAY);
+        way.tags = t.getTags(new String[] { "highway", "service" });
+        way = (TWay)t.getFeature(ENLARGED_AREA);
+        way.setCoordinates(ring(way.minX() - 3000, way.minY() - 3000,
+            way.maxX() - way.minX() + 6000));
+    }
+
+    private static boolean isChanged(long typedId)
+    {
+        return typedId == RETAGGED_NODE || typedId == MOVED_NODE ||
+            typedId == LENGTHENED_WAY || typedId == RETAGGED_WAY ||
+            typedId == ENLARGED_AREA;
+    }
+
+    /**
+     * Reads the original tile, marking the features accepted by `changed`.
+     */
+    private TileReader readChanged(LongPredicate changed)
+    {
+        TTile t = newTile();
+        TileReader reader = new TileReader(t, null, original, 0);
+        reader.readChanged(changed);
+        assertTrue(t.hasChanges());
+        return reader;
+    }
+
+    /**
+     * Writes a built tile the way the TileCompiler does.
+     */
+    private static ByteBuffer write(TTile built, ByteBuffer original, int originalSize)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(built.payloadSize() + 4)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        TileCompiler.writeStructs(built, buf, 0, original, originalSize);
+        return buf;
+    }
+
+    private TTile read(ByteBuffer buf)
+    {
+        TTile t = newTile();
+        new TileReader(t, null, buf, 0).read();
+        return t;
+    }
+
+    private static String snapshot(TFeature f)
+    {
+        assertFalse(f + " has not been read", f.isForeign());
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%s %d %d %d %d area=%b tags=", f, f.minX(),
+            f.minY(), f.maxX(), f.maxY(), f.isArea()));
+        TTagTable tags = f.tags();
+        for(int i=0; i<tags.tagCount(); i++)
+        {
+            s.append(Long.toHexString(tags.getTag(i))).append(' ');
+        }
+        if(f instanceof TWay way)
+        {
+            int[] coords = way.coordinates();
+            for(int c: coords) s.append(' ').append(c);
+        }
+        return s.toString();
+    }
+
+    private static boolean entryContains(ByteBuffer buf, int pEntry, int x, int y)
+    {
+        return x >= buf.getInt(pEntry + 4) && y >= buf.getInt(pEntry + 8) &&
+            x <= buf.getInt(pEntry + 12) && y <= buf.getInt(pEntry + 16);
+    }
+
+    @Test public void testRoundTrip()
+    {
+        TileReader reader = readChanged(TileCompilerCopyOnWriteTest::isChanged);
+        TTile patched = reader.tile();
+        assertEquals(5, patched.changes().size());
+        int originalBodySize = patched.getFeature(LENGTHENED_WAY).body().size();
+        modify(patched);
+        assertTrue(patched.getFeature(LENGTHENED_WAY).body().size() > originalBodySize);
+        assertTrue(patched.buildCopyOnWrite(reader.buf(), reader.tileSize()));
+        ByteBuffer patchedBuf = write(patched, reader.buf(), reader.tileSize());
+        TTile patchedResult = read(patchedBuf);
+
+        // The moved node lies outside of every branch that leads to it,
+        // so all of their bounding boxes must have been widened
+        TFeature moved = patched.getFeature(MOVED_NODE);
+        for(TTile.Change change: patched.changes())
+        {
+            if(change.feature() != moved) continue;
+            assertTrue(change.branchEntries().length > 0);
+            for(int pEntry: change.branchEntries())
+            {
+                assertFalse(entryContains(original, pEntry, moved.minX(), moved.minY()));
+                assertTrue(entryContains(patchedBuf, pEntry, moved.minX(), moved.minY()));
+            }
+        }
+
+        TTile rebuilt = read(original);
+        modify(rebuilt);
+        rebuilt.build();
+        TTile rebuiltResult = read(write(rebuilt, null, 0));
+
+        for(int i=1; i<=NODE_COUNT; i++)
+        {
+            long typedId = FeatureId.ofNode(i);
+            assertEquals(snapshot(rebuiltResult.getFeature(typedId)),
+                snapshot(patchedResult.getFeature(typedId)));
+        }
+        for(int i=1; i<=WAY_COUNT+AREA_COUNT; i++)
+        {
+            long typedId = FeatureId.ofWay(i);
+            assertEquals(snapshot(rebuiltResult.getFeature(typedId)),
+                snapshot(patchedResult.getFeature(typedId)));
+        }
+        assertNotEquals(snapshot(read(original).getFeature(ENLARGED_AREA)),
+            snapshot(patchedResult.getFeature(ENLARGED_AREA)));
+    }
+
+    @Test public void testNewFeatureRequiresRebuild()
+    {
+        TileReader reader = readChanged(typedId -> typedId == RETAGGED_NODE);
+        reader.tile().getNode(NODE_COUNT + 1);
+        assertFalse(reader.tile().buildCopyOnWrite(reader.buf(), reader.tileSize()));
+    }
+
+    @Test public void testNodeStubSizeChangeRequiresRebuild()
+    {
+        TileReader reader = readChanged(typedId -> typedId == RETAGGED_NODE);
+        TFeature f = reader.tile().changes().get(0).feature();
+        // A node that becomes a relation member needs a larger stub
+        f.relations = reader.tile().getRelationTable(
+            new TRelationTable(List.of(), new int[0], 4));
+        assertFalse(reader.tile().buildCopyOnWrite(reader.buf(), reader.tileSize()));
+    }
+
+    @Test public void testKeyCategoryEscapeRequiresRebuild()
+    {
+        // The pub sits in the root for features without an indexed key
+        TileReader reader = readChanged(typedId -> typedId == RETAGGED_NODE);
+        TTile.Change change = reader.tile().changes().get(0);
+        assertEquals(0, change.rootIndexBits());
+        change.feature().tags = reader.tile().getTags(
+            new String[] { "amenity", "pub", "building", "yes" });
+        assertFalse(reader.tile().buildCopyOnWrite(reader.buf(), reader.tileSize()));
+    }
+
+    @Test public void testDeadSpaceRequiresRebuild()
+    {
+        // Rewriting every feature appends all bodies, which are larger
+        // than a quarter of the tile
+        TileReader reader = readChanged(typedId -> true);
+        assertFalse(reader.tile().buildCopyOnWrite(reader.buf(), reader.tileSize()));
+    }
+}